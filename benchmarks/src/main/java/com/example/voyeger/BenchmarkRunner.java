@@ -0,0 +1,26 @@
+package com.example.voyeger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry point of benchmarks.jar. Takes the usual JMH command line, but writes results
+ * to jmh-result.json unless -rf / -rff say otherwise, so every run leaves a file that
+ * can be compared against the last one.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        List<String> jmhArgs = new ArrayList<>(Arrays.asList(args));
+        if (!jmhArgs.contains("-rf")) {
+            jmhArgs.add("-rf");
+            jmhArgs.add("json");
+        }
+        if (!jmhArgs.contains("-rff")) {
+            jmhArgs.add("-rff");
+            jmhArgs.add("jmh-result.json");
+        }
+        org.openjdk.jmh.Main.main(jmhArgs.toArray(new String[0]));
+    }
+}
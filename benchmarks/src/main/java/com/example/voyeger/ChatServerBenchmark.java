@@ -0,0 +1,160 @@
+package com.example.voyeger;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server side of one chat message: parsing and dispatching a client's text line
+ * (what ClientHandler does for every line it reads) and fanning a message out to a
+ * room through ChatServer.broadcastMessage. Members are in-memory connections with
+ * real outbound queues, which each invocation drains the way the writers would, so
+ * the numbers cover queueing but no socket I/O. Room events run on the calling thread
+ * (no room workers), so each invocation's fan-out is done when it returns.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ChatServerBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int roomSize;
+
+    @Param({"32", "256", "4096"})
+    int messageBytes;
+
+    // Package-private so the tests can check what an invocation does
+    ChatServer server;
+    final List<BenchConnection> members = new ArrayList<>();
+    BenchConnection sender;
+    String messageLine;
+    private ChatFrame messageFrame;
+    private final List<ChatFrame> drained = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setMode(ChatServerConfig.Mode.NIO);
+        config.setOutboundCapacity(4096);
+        config.setRoomWorkers(0);
+        // One sender dispatching as fast as it can would otherwise only measure the limiter refusing it
+        config.setMessageRate(0);
+        config.setByteRate(0);
+        config.setUserMessageRate(0);
+        config.setUserByteRate(0);
+        server = new ChatServer(8081, config);
+
+        for (int i = 0; i < roomSize; i++) {
+            BenchConnection member = new BenchConnection(server.newOutboundQueue());
+            server.addClient(member);
+            server.handleClientMessage(member, "JOIN:user" + i + ":bench-room");
+            members.add(member);
+        }
+        sender = members.get(0);
+        drainAll(null);
+
+        StringBuilder body = new StringBuilder(messageBytes);
+        while (body.length() < messageBytes) {
+            body.append("Meet at the station at nine, bring the tickets. ");
+        }
+        body.setLength(messageBytes);
+        messageLine = "MESSAGE:user0:12:00:" + body;
+        messageFrame = ChatFrame.of(ChatFrame.Type.MESSAGE, "user0", "bench-room", body.toString());
+    }
+
+    @Benchmark
+    public ChatFrame parseLine() {
+        return ChatFrame.fromText(messageLine, "bench-room");
+    }
+
+    @Benchmark
+    public void dispatchLine(Blackhole blackhole) {
+        blackhole.consume(server.handleClientMessage(sender, messageLine));
+        drainAll(blackhole);
+    }
+
+    @Benchmark
+    public void broadcast(Blackhole blackhole) {
+        server.broadcastMessage(messageFrame, sender);
+        drainAll(blackhole);
+    }
+
+    private void drainAll(Blackhole blackhole) {
+        for (BenchConnection member : members) {
+            member.outbound.drainTo(drained, Integer.MAX_VALUE);
+            for (ChatFrame frame : drained) {
+                if (blackhole != null) {
+                    // What the writer does with each frame
+                    blackhole.consume(frame.encode(false));
+                }
+            }
+            drained.clear();
+        }
+    }
+
+    /** A connected client without a socket; what it is sent stays in its queue. */
+    static class BenchConnection implements ChatConnection {
+        final OutboundQueue outbound;
+        private String username;
+        private String currentRoom;
+        private String sessionToken;
+
+        BenchConnection(OutboundQueue outbound) {
+            this.outbound = outbound;
+        }
+
+        @Override
+        public void sendMessage(ChatFrame message) {
+            outbound.offer(message);
+        }
+
+        @Override
+        public void sendMessages(List<ChatFrame> messages) {
+            outbound.offerAll(messages);
+        }
+
+        @Override
+        public void close() {
+            outbound.close();
+        }
+
+        @Override
+        public boolean isClosed() { return false; }
+
+        @Override
+        public long lastActivityNanos() { return System.nanoTime(); }
+
+        @Override
+        public void sendPing() { }
+
+        @Override
+        public String getUsername() { return username; }
+
+        @Override
+        public void setUsername(String username) { this.username = username; }
+
+        @Override
+        public String getCurrentRoom() { return currentRoom; }
+
+        @Override
+        public void setCurrentRoom(String currentRoom) { this.currentRoom = currentRoom; }
+
+        @Override
+        public String getSessionToken() { return sessionToken; }
+
+        @Override
+        public void setSessionToken(String sessionToken) { this.sessionToken = sessionToken; }
+
+        @Override
+        public String getRemoteAddress() { return "bench"; }
+
+        @Override
+        public OutboundQueue getOutboundQueue() { return outbound; }
+    }
+}
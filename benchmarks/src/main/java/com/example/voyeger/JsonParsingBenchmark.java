@@ -0,0 +1,81 @@
+package com.example.voyeger;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The hand-written JSON parsing on the client: trip and notification lists as the
+ * backend returns them, and the single-field lookup DatabaseManager uses on a user
+ * document. Payloads are built to the backend's field names and typical lengths.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonParsingBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int count;
+
+    private String tripsJson;
+    private String notificationsJson;
+    private String userJson;
+    private DatabaseManager databaseManager;
+
+    @Setup
+    public void setup() {
+        StringBuilder trips = new StringBuilder("[");
+        StringBuilder notifications = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                trips.append(',');
+                notifications.append(',');
+            }
+            trips.append("{\"_id\":\"65f1c2a9e4b0a1b2c3d4").append(String.format("%04x", i))
+                    .append("\",\"title\":\"Weekend in the hills ").append(i)
+                    .append("\",\"route\":\"Dhaka - Sylhet - Srimangal\",\"date\":\"2026-11-")
+                    .append(String.format("%02d", 1 + i % 28))
+                    .append("\",\"budget\":").append(5000 + i * 25)
+                    .append(",\"description\":\"Tea gardens, a lake walk and a night at a local guest house. ")
+                    .append("Bus both ways, shared rooms, meals split evenly.\",\"type\":\"")
+                    .append(i % 3 == 0 ? "GROUP" : "SOLO")
+                    .append("\",\"creatorUsername\":\"traveler").append(i % 50)
+                    .append("\",\"status\":\"POSTED\",\"createdAt\":\"2026-10-01T09:30:00.000Z\",\"__v\":0}");
+            notifications.append("{\"_id\":\"65f1d3b0e4b0a1b2c3d4").append(String.format("%04x", i))
+                    .append("\",\"type\":\"JOIN_REQUEST\",\"tripId\":\"65f1c2a9e4b0a1b2c3d4").append(String.format("%04x", i))
+                    .append("\",\"tripTitle\":\"Weekend in the hills ").append(i)
+                    .append("\",\"tripRoute\":\"Dhaka - Sylhet - Srimangal\",\"requesterUsername\":\"traveler").append(i % 50)
+                    .append("\",\"tripCreatorUsername\":\"organizer").append(i % 7)
+                    .append("\",\"message\":\"Hi, I would love to join this trip\",\"isRead\":false")
+                    .append(",\"createdAt\":\"2026-10-01T09:30:00\"}");
+        }
+        tripsJson = trips.append(']').toString();
+        notificationsJson = notifications.append(']').toString();
+
+        userJson = "{\"_id\":\"65f1a0c1e4b0a1b2c3d40001\",\"username\":\"traveler1\",\"displayName\":\"Traveler One\","
+                + "\"email\":\"traveler1@example.com\",\"password\":\"c2FsdHNhbHRzYWx0:6f1ed002ab5595859014ebf0951522d9\","
+                + "\"bio\":\"Mountains over beaches, trains over planes.\",\"profilePicturePath\":\"/images/p/traveler1.png\","
+                + "\"coverPhotoPath\":\"/images/c/traveler1.png\",\"createdAt\":\"2026-01-01T00:00:00.000Z\"}";
+        databaseManager = DatabaseManager.getInstance();
+    }
+
+    @Benchmark
+    public List<Trip> parseTrips() {
+        return TripApiClient.parseTripsFromJson(tripsJson);
+    }
+
+    @Benchmark
+    public List<Notification> parseNotifications() {
+        return TripApiClient.parseNotificationsFromJson(notificationsJson);
+    }
+
+    @Benchmark
+    public String extractUserField() {
+        // The last field DatabaseManager reads when it loads a user
+        return databaseManager.extractJsonValue(userJson, "coverPhotoPath");
+    }
+}
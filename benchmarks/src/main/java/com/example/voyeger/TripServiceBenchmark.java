@@ -0,0 +1,56 @@
+package com.example.voyeger;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TripService's in-memory queries behind the profile page and the news feed, over a
+ * cache filled through cacheTrip and postTrip the way the app fills it after loading
+ * from the backend. Nothing here talks to the network.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TripServiceBenchmark {
+
+    private static final int USERS = 50;
+
+    @Param({"100", "1000", "10000"})
+    int tripCount;
+
+    private TripService service;
+
+    @Setup
+    public void setup() {
+        service = TripService.getInstance();
+        LocalDateTime now = LocalDateTime.now();
+        for (int i = 0; i < tripCount; i++) {
+            String creator = "traveler" + (i % USERS);
+            service.setCurrentUser(new User(creator, "Traveler " + (i % USERS), creator + "@example.com"));
+            Trip trip = new Trip("trip-" + i, "Weekend in the hills " + i, LocalDate.of(2026, 11, 1 + i % 28),
+                    "Dhaka - Sylhet - Srimangal", 5000 + i * 25, "Tea gardens and a lake walk.",
+                    i % 3 == 0 ? Trip.TripType.GROUP : Trip.TripType.SOLO, creator);
+            service.cacheTrip(trip);
+            TripPost post = service.postTrip(trip.getId(), "Who's in for " + trip.getTitle() + "?");
+            // Spread posting times so sorting the feed has real work to do
+            post.setPostedAt(now.minusMinutes((i * 7919L) % (tripCount * 10L)));
+        }
+    }
+
+    @Benchmark
+    public List<Trip> userTrips() {
+        return service.getUserTrips("traveler7");
+    }
+
+    @Benchmark
+    public List<TripPost> newsFeed() {
+        return service.getNewsFeed();
+    }
+}
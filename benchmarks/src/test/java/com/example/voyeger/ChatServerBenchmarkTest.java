@@ -0,0 +1,43 @@
+package com.example.voyeger;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChatServerBenchmarkTest {
+
+    @Test
+    void aParsedLineIsTheMessageAtItsSize() {
+        ChatServerBenchmark benchmark = setUp(10, 256);
+        ChatFrame frame = benchmark.parseLine();
+        assertEquals(ChatFrame.Type.MESSAGE, frame.getType());
+        assertEquals("user0", frame.getSender());
+        assertEquals(256, frame.getBody().length);
+    }
+
+    @Test
+    void everyDispatchReachesEveryOtherMember() {
+        ChatServerBenchmark benchmark = setUp(10, 32);
+        for (ChatServerBenchmark.BenchConnection member : benchmark.members) {
+            // The joins were drained in setup, so nothing but the messages is counted
+            assertEquals(0, member.outbound.depth());
+        }
+        // Far past the default rate limits, which the benchmark turns off
+        int messages = 200;
+        for (int i = 0; i < messages; i++) {
+            assertTrue(benchmark.server.handleClientMessage(benchmark.sender, benchmark.messageLine));
+        }
+        for (ChatServerBenchmark.BenchConnection member : benchmark.members) {
+            assertEquals(member == benchmark.sender ? 0 : messages, member.outbound.depth(), member.getUsername());
+        }
+    }
+
+    private static ChatServerBenchmark setUp(int roomSize, int messageBytes) {
+        ChatServerBenchmark benchmark = new ChatServerBenchmark();
+        benchmark.roomSize = roomSize;
+        benchmark.messageBytes = messageBytes;
+        benchmark.setup();
+        return benchmark;
+    }
+}
@@ -0,0 +1,32 @@
+package com.example.voyeger;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class JsonParsingBenchmarkTest {
+
+    @Test
+    void payloadsParseIntoEveryRecord() {
+        JsonParsingBenchmark benchmark = new JsonParsingBenchmark();
+        benchmark.count = 100;
+        benchmark.setup();
+
+        List<Trip> trips = benchmark.parseTrips();
+        assertEquals(100, trips.size());
+        Trip last = trips.get(99);
+        assertEquals("Weekend in the hills 99", last.getTitle());
+        assertEquals("Dhaka - Sylhet - Srimangal", last.getRoute());
+        assertEquals(5000 + 99 * 25, last.getBudget());
+        assertEquals("traveler49", last.getCreatorUsername());
+
+        List<Notification> notifications = benchmark.parseNotifications();
+        assertEquals(100, notifications.size());
+        assertEquals("traveler49", notifications.get(99).getRequesterUsername());
+        assertEquals("Weekend in the hills 99", notifications.get(99).getTripTitle());
+
+        assertEquals("/images/c/traveler1.png", benchmark.extractUserField());
+    }
+}
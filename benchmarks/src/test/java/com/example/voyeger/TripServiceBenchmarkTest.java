@@ -0,0 +1,36 @@
+package com.example.voyeger;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TripServiceBenchmarkTest {
+
+    // TripService is a singleton, so this is the only setup run in this JVM
+    @Test
+    void queriesRunOverTheWholeCache() {
+        TripServiceBenchmark benchmark = new TripServiceBenchmark();
+        benchmark.tripCount = 1000;
+        benchmark.setup();
+
+        List<Trip> trips = benchmark.userTrips();
+        assertEquals(20, trips.size());
+        for (Trip trip : trips) {
+            assertEquals("traveler7", trip.getCreatorUsername());
+        }
+
+        List<TripPost> feed = benchmark.newsFeed();
+        assertEquals(1000, feed.size());
+        boolean reordered = false;
+        for (int i = 1; i < feed.size(); i++) {
+            assertFalse(feed.get(i).getPostedAt().isAfter(feed.get(i - 1).getPostedAt()));
+            reordered |= !feed.get(i).getPostedAt().equals(feed.get(i - 1).getPostedAt());
+        }
+        // Posting times are spread, so the sort has real work to do
+        assertTrue(reordered);
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.voyeger;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps one ChatServer from being swamped by its clients: a cap on open connections,
+ * a rate limit on accepting new ones, and token buckets for the frames and bytes each
+ * connection, and each user over all their connections, may send.
+ *
+ * A connection over the cap or the accept rate is closed straight away; clients fail
+ * over to another server. A frame over a bucket's limit is dropped before the server
+ * does any work for it, and the sender is told at most once a second. Limits are sized
+ * so that a person typing never meets them; a script flooding a room runs into them
+ * within its first burst, and everyone else's messages keep their usual latency.
+ */
+final class AdmissionControl {
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long NOTICE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final ChatServerConfig config;
+    private final TokenBucket accepts;
+    private final Map<ChatConnection, Limits> connections = new ConcurrentHashMap<>();
+    private final Map<String, Limits> users = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+    // Counted here and read by the metrics endpoint
+    final LongAdder rejectedFull = new LongAdder();
+    final LongAdder rejectedRate = new LongAdder();
+    final LongAdder limitedConnection = new LongAdder();
+    final LongAdder limitedUser = new LongAdder();
+
+    AdmissionControl(ChatServerConfig config) {
+        this.config = config;
+        this.accepts = config.getAcceptRate() > 0 ? new TokenBucket(config.getAcceptRate(), config.getAcceptRate()) : null;
+    }
+
+    /** Whether a just-accepted connection may stay, with open connections already open. */
+    boolean admit(int open) {
+        if (config.getMaxConnections() > 0 && open >= config.getMaxConnections()) {
+            rejectedFull.increment();
+            return false;
+        }
+        if (accepts != null && !accepts.tryTake(1)) {
+            rejectedRate.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Charges one frame of the given size to the client's and its user's buckets.
+     *
+     * @return false when the frame is over a limit and should be dropped
+     */
+    boolean allow(ChatConnection client, int bytes) {
+        Limits connection = connections.computeIfAbsent(client, c -> new Limits(
+                config.getMessageRate(), config.getByteRate()));
+        if (!connection.tryTake(bytes)) {
+            limitedConnection.increment();
+            return false;
+        }
+        String username = client.getUsername();
+        if (username == null) {
+            return true;
+        }
+        Limits user = users.computeIfAbsent(username, u -> new Limits(
+                config.getUserMessageRate(), config.getUserByteRate()));
+        if (!user.tryTake(bytes)) {
+            limitedUser.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /** Whether the client should be told about a dropped frame now; true at most once a second. */
+    boolean noticeDue(ChatConnection client) {
+        Limits connection = connections.get(client);
+        if (connection == null) {
+            return false;
+        }
+        long now = System.nanoTime();
+        long last = connection.lastNotice.get();
+        return now - last >= NOTICE_INTERVAL_NANOS && connection.lastNotice.compareAndSet(last, now);
+    }
+
+    /** Forgets a closed connection, and now and then the users whose buckets have refilled. */
+    void release(ChatConnection client) {
+        connections.remove(client);
+        long now = System.nanoTime();
+        long last = lastSweep.get();
+        if (now - last >= SWEEP_INTERVAL_NANOS && lastSweep.compareAndSet(last, now)) {
+            users.values().removeIf(Limits::isFull);
+        }
+    }
+
+    private final class Limits {
+        private final TokenBucket messages;
+        private final TokenBucket bytes;
+        private final AtomicLong lastNotice = new AtomicLong(System.nanoTime() - NOTICE_INTERVAL_NANOS);
+
+        Limits(double messageRate, long byteRate) {
+            this.messages = messageRate > 0 ? new TokenBucket(messageRate, config.getMessageBurst()) : null;
+            this.bytes = byteRate > 0 ? new TokenBucket(byteRate, config.getByteBurst()) : null;
+        }
+
+        boolean tryTake(int size) {
+            return (messages == null || messages.tryTake(1)) && (bytes == null || bytes.tryTake(size));
+        }
+
+        boolean isFull() {
+            return (messages == null || messages.isFull()) && (bytes == null || bytes.isFull());
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.example.voyeger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous, level-gated logger shared by the chat servers and the backend clients.
+ *
+ * A call records its level, event name and up to four key/value fields into a slot of
+ * a preallocated ring buffer and returns; one background thread formats the slots and
+ * writes them to stdout as lines like
+ * <pre>
+ *   2026-01-01T12:00:00.000Z INFO  chat.server client.joined user=alice room=lobby
+ * </pre>
+ * Nothing is formatted or concatenated on the calling thread, and a call below the
+ * component's level returns before touching the ring, so disabled logging costs a
+ * field read. When the ring is full new records are dropped and counted rather than
+ * blocking the caller. Field values are formatted later on the log thread, so pass
+ * immutable values (strings, numbers, frames), not objects that are about to change.
+ *
+ * Levels come from system properties: log.level sets the default (INFO), and
+ * log.&lt;component&gt; overrides one component, e.g. -Dlog.chat.server=debug or
+ * -Dlog.api=off. log.bufferSize sets the ring size (8192).
+ */
+public final class AsyncLog {
+
+    public enum Level { TRACE, DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final Map<String, AsyncLog> LOGGERS = new ConcurrentHashMap<>();
+    private static final Ring RING = new Ring(Integer.getInteger("log.bufferSize", 8192));
+
+    private final String component;
+    private volatile Level level;
+
+    private AsyncLog(String component, Level level) {
+        this.component = component;
+        this.level = level;
+    }
+
+    public static AsyncLog get(String component) {
+        return LOGGERS.computeIfAbsent(component, c -> new AsyncLog(c,
+                parseLevel(System.getProperty("log." + c, System.getProperty("log.level", "info")))));
+    }
+
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    public String getComponent() { return component; }
+    public Level getLevel() { return level; }
+    public void setLevel(Level level) { this.level = level; }
+
+    public boolean isEnabled(Level candidate) {
+        return candidate.compareTo(level) >= 0 && candidate != Level.OFF;
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public void trace(String event, String k1, Object v1, String k2, Object v2) {
+        if (isEnabled(Level.TRACE)) RING.publish(this, Level.TRACE, event, k1, v1, k2, v2, null, null, null, null, null);
+    }
+
+    public void debug(String event) {
+        if (isEnabled(Level.DEBUG)) RING.publish(this, Level.DEBUG, event, null, null, null, null, null, null, null, null, null);
+    }
+
+    public void debug(String event, String k1, Object v1) {
+        if (isEnabled(Level.DEBUG)) RING.publish(this, Level.DEBUG, event, k1, v1, null, null, null, null, null, null, null);
+    }
+
+    public void debug(String event, String k1, Object v1, String k2, Object v2) {
+        if (isEnabled(Level.DEBUG)) RING.publish(this, Level.DEBUG, event, k1, v1, k2, v2, null, null, null, null, null);
+    }
+
+    public void debug(String event, String k1, Object v1, String k2, Object v2, String k3, Object v3) {
+        if (isEnabled(Level.DEBUG)) RING.publish(this, Level.DEBUG, event, k1, v1, k2, v2, k3, v3, null, null, null);
+    }
+
+    public void info(String event) {
+        if (isEnabled(Level.INFO)) RING.publish(this, Level.INFO, event, null, null, null, null, null, null, null, null, null);
+    }
+
+    public void info(String event, String k1, Object v1) {
+        if (isEnabled(Level.INFO)) RING.publish(this, Level.INFO, event, k1, v1, null, null, null, null, null, null, null);
+    }
+
+    public void info(String event, String k1, Object v1, String k2, Object v2) {
+        if (isEnabled(Level.INFO)) RING.publish(this, Level.INFO, event, k1, v1, k2, v2, null, null, null, null, null);
+    }
+
+    public void info(String event, String k1, Object v1, String k2, Object v2, String k3, Object v3) {
+        if (isEnabled(Level.INFO)) RING.publish(this, Level.INFO, event, k1, v1, k2, v2, k3, v3, null, null, null);
+    }
+
+    public void info(String event, String k1, Object v1, String k2, Object v2, String k3, Object v3,
+                     String k4, Object v4) {
+        if (isEnabled(Level.INFO)) RING.publish(this, Level.INFO, event, k1, v1, k2, v2, k3, v3, k4, v4, null);
+    }
+
+    public void warn(String event) {
+        if (isEnabled(Level.WARN)) RING.publish(this, Level.WARN, event, null, null, null, null, null, null, null, null, null);
+    }
+
+    public void warn(String event, String k1, Object v1) {
+        if (isEnabled(Level.WARN)) RING.publish(this, Level.WARN, event, k1, v1, null, null, null, null, null, null, null);
+    }
+
+    public void warn(String event, String k1, Object v1, String k2, Object v2) {
+        if (isEnabled(Level.WARN)) RING.publish(this, Level.WARN, event, k1, v1, k2, v2, null, null, null, null, null);
+    }
+
+    public void warn(String event, String k1, Object v1, Throwable error) {
+        if (isEnabled(Level.WARN)) RING.publish(this, Level.WARN, event, k1, v1, null, null, null, null, null, null, error);
+    }
+
+    public void error(String event, Throwable error) {
+        if (isEnabled(Level.ERROR)) RING.publish(this, Level.ERROR, event, null, null, null, null, null, null, null, null, error);
+    }
+
+    public void error(String event, String k1, Object v1) {
+        if (isEnabled(Level.ERROR)) RING.publish(this, Level.ERROR, event, k1, v1, null, null, null, null, null, null, null);
+    }
+
+    public void error(String event, String k1, Object v1, Throwable error) {
+        if (isEnabled(Level.ERROR)) RING.publish(this, Level.ERROR, event, k1, v1, null, null, null, null, null, null, error);
+    }
+
+    public void error(String event, String k1, Object v1, String k2, Object v2, Throwable error) {
+        if (isEnabled(Level.ERROR)) RING.publish(this, Level.ERROR, event, k1, v1, k2, v2, null, null, null, null, error);
+    }
+
+    /** Records dropped because the ring was full, since startup. */
+    public static long droppedCount() {
+        return RING.dropped.sum();
+    }
+
+    private static final class Slot {
+        // Equals the claiming sequence once the record is complete and readable
+        volatile long sequence = -1;
+        long time;
+        Level level;
+        AsyncLog logger;
+        String event;
+        final String[] keys = new String[4];
+        final Object[] values = new Object[4];
+        Throwable error;
+    }
+
+    /**
+     * Multi-producer, single-consumer ring. Producers claim a sequence with a CAS on
+     * tail only while the consumer is less than a full lap behind, fill that slot and
+     * publish it by writing its sequence; the consumer reads slots strictly in order
+     * and advances head once it has copied one out.
+     */
+    private static final class Ring implements Runnable {
+        private final Slot[] slots;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        private volatile long head;
+        private final LongAdder dropped = new LongAdder();
+        private final PrintStream out = new PrintStream(
+                new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024), false, StandardCharsets.UTF_8);
+        private final StringBuilder line = new StringBuilder(256);
+        private long droppedReported;
+        private volatile boolean stopping;
+
+        Ring(int requested) {
+            int capacity = Integer.highestOneBit(Math.max(64, requested - 1)) << 1;
+            slots = new Slot[capacity];
+            for (int i = 0; i < capacity; i++) {
+                slots[i] = new Slot();
+            }
+            mask = capacity - 1;
+
+            Thread writer = new Thread(this, "async-log");
+            writer.setDaemon(true);
+            writer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                stopping = true;
+                try {
+                    writer.join(2000);
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "async-log-drain"));
+        }
+
+        void publish(AsyncLog logger, Level level, String event, String k1, Object v1, String k2, Object v2,
+                     String k3, Object v3, String k4, Object v4, Throwable error) {
+            long seq;
+            do {
+                seq = tail.get();
+                if (seq - head >= slots.length) {
+                    dropped.increment();
+                    return;
+                }
+            } while (!tail.compareAndSet(seq, seq + 1));
+
+            Slot slot = slots[(int) (seq & mask)];
+            slot.time = System.currentTimeMillis();
+            slot.level = level;
+            slot.logger = logger;
+            slot.event = event;
+            slot.keys[0] = k1;
+            slot.values[0] = v1;
+            slot.keys[1] = k2;
+            slot.values[1] = v2;
+            slot.keys[2] = k3;
+            slot.values[2] = v3;
+            slot.keys[3] = k4;
+            slot.values[3] = v4;
+            slot.error = error;
+            slot.sequence = seq;
+        }
+
+        @Override
+        public void run() {
+            boolean pending = false;
+            while (true) {
+                Slot slot = slots[(int) (head & mask)];
+                if (slot.sequence != head) {
+                    if (pending) {
+                        reportDropped();
+                        out.flush();
+                        pending = false;
+                    }
+                    if (stopping && tail.get() == head) {
+                        return;
+                    }
+                    LockSupport.parkNanos(1_000_000);
+                    continue;
+                }
+                write(slot);
+                slot.logger = null;
+                slot.event = null;
+                slot.values[0] = slot.values[1] = slot.values[2] = slot.values[3] = null;
+                slot.error = null;
+                head = head + 1;
+                pending = true;
+            }
+        }
+
+        private void write(Slot slot) {
+            line.setLength(0);
+            line.append(Instant.ofEpochMilli(slot.time)).append(' ');
+            String level = slot.level.name();
+            line.append(level);
+            for (int i = level.length(); i < 5; i++) {
+                line.append(' ');
+            }
+            line.append(' ').append(slot.logger.component).append(' ').append(slot.event);
+            for (int i = 0; i < slot.keys.length && slot.keys[i] != null; i++) {
+                line.append(' ').append(slot.keys[i]).append('=');
+                appendValue(String.valueOf(slot.values[i]));
+            }
+            if (slot.error != null) {
+                line.append(" error=");
+                appendValue(String.valueOf(slot.error));
+            }
+            out.println(line);
+            if (slot.error != null && slot.level.compareTo(Level.ERROR) >= 0) {
+                slot.error.printStackTrace(out);
+            }
+        }
+
+        private void appendValue(String value) {
+            boolean quote = value.isEmpty();
+            for (int i = 0; i < value.length() && !quote; i++) {
+                char c = value.charAt(i);
+                quote = c <= ' ' || c == '"' || c == '=';
+            }
+            if (!quote) {
+                line.append(value);
+                return;
+            }
+            line.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"': line.append("\\\""); break;
+                    case '\\': line.append("\\\\"); break;
+                    case '\n': line.append("\\n"); break;
+                    case '\r': line.append("\\r"); break;
+                    default: line.append(c);
+                }
+            }
+            line.append('"');
+        }
+
+        private void reportDropped() {
+            long total = dropped.sum();
+            if (total != droppedReported) {
+                out.println(Instant.now() + " WARN  log dropped count=" + (total - droppedReported));
+                droppedReported = total;
+            }
+        }
+    }
+}
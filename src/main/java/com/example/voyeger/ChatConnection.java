@@ -0,0 +1,37 @@
+package com.example.voyeger;
+
+import java.util.List;
+
+/**
+ * One client connection to a ChatServer, independent of the I/O engine that drives it.
+ * Both the blocking ClientHandler and the NIO connection implement this so the
+ * server's protocol handling and broadcast code work the same for either mode.
+ * The HeartbeatMonitor watches it through the Peer methods.
+ */
+interface ChatConnection extends HeartbeatMonitor.Peer {
+    void sendMessage(ChatFrame message);
+
+    /** Sends several frames as one batch, e.g. a room's history on join. */
+    void sendMessages(List<ChatFrame> messages);
+
+    @Override
+    void close();
+
+    String getUsername();
+
+    void setUsername(String username);
+
+    String getCurrentRoom();
+
+    void setCurrentRoom(String currentRoom);
+
+    /** Resume token the server gave this connection on JOIN, or null before that. */
+    String getSessionToken();
+
+    void setSessionToken(String sessionToken);
+
+    @Override
+    String getRemoteAddress();
+
+    OutboundQueue getOutboundQueue();
+}
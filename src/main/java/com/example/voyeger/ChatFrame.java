@@ -0,0 +1,403 @@
+package com.example.voyeger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * One chat protocol message with typed fields, plus its two wire encodings.
+ *
+ * Binary frame, version 1 (all integers big-endian):
+ * <pre>
+ *   int32   length of everything after this field
+ *   byte    version (1)
+ *   byte    type code
+ *   byte    flags, bit 0: message id present, bit 1: room sequence present
+ *   int64   timestamp, epoch millis
+ *   int64   message id, only when flag bit 0 is set
+ *   int64   room sequence, only when flag bit 1 is set
+ *   uint16  sender length, then UTF-8 bytes
+ *   uint16  room length, then UTF-8 bytes
+ *   int32   body length, then body bytes
+ * </pre>
+ * A client switches a connection to binary by sending the text line {@link #NEGOTIATE}
+ * and waiting for {@link #NEGOTIATE_OK}; everything after that is frames in both
+ * directions. Clients that never ask keep the colon-delimited text protocol.
+ *
+ * Private chat reuses the room field as the other party's username, and in GET_USERS
+ * and USERS_PAGE as the cursor into the user list. USER_ONLINE, USER_OFFLINE and
+ * USERS_PAGE carry the user list's version as their message id.
+ *
+ * The message id is assigned by the server a message first reaches and stays with it
+ * across the mesh, so a server can drop a copy it has already delivered. The room
+ * sequence is local to one server: each server numbers the messages it delivers to a
+ * room so a client can ask that server for everything after the last one it saw.
+ * A client resuming on another server after a failover therefore sends the id of the
+ * last message it saw, along with the SESSION token its previous server gave it.
+ *
+ * Frames are immutable once built, and each encoding is produced at most once and
+ * shared by every connection a broadcast reaches.
+ */
+final class ChatFrame {
+    static final int VERSION = 1;
+    static final String NEGOTIATE = "PROTO:BIN/1";
+    static final String NEGOTIATE_OK = "PROTO_OK:BIN/1";
+    static final int MAX_FRAME_LENGTH = 1024 * 1024;
+    static final int MAX_LINE_LENGTH = 64 * 1024;
+    static final int FLAG_ID = 0x01;
+    static final int FLAG_SEQ = 0x02;
+
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("HH:mm").withZone(ZoneId.systemDefault());
+
+    enum Type {
+        // Group chat (ChatServer, MessengerController)
+        JOIN(1), MESSAGE(2), FILE(3), LEAVE(4), USER_JOIN(5), USER_LEAVE(6), HISTORY(7), SESSION(9),
+        // Presence, to subscribed clients and between servers (PresenceIndex)
+        PRESENCE(10), PRESENCE_SYNC(11),
+        // Server mesh
+        HELLO(20), INTEREST(21), CATCH_UP(22),
+        // Private chat (PrivateChatServer, PrivateChatController)
+        USERNAME(40), SUCCESS(41), PRIVATE(42), PRIVATE_MESSAGE(43), SENT(44), ERROR(45),
+        USERS(46), GET_USERS(47), DISCONNECT(48), USER_ONLINE(49), USER_OFFLINE(50), USERS_PAGE(51),
+        // Heartbeats, either server and either direction
+        PING(60), PONG(61);
+
+        private static final Type[] BY_CODE = new Type[128];
+        static {
+            for (Type type : values()) {
+                BY_CODE[type.code] = type;
+            }
+        }
+
+        final int code;
+
+        Type(int code) {
+            this.code = code;
+        }
+
+        static Type fromCode(int code) throws IOException {
+            Type type = code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+            if (type == null) {
+                throw new IOException("unknown frame type " + code);
+            }
+            return type;
+        }
+    }
+
+    private final Type type;
+    private final String sender;
+    private final String room;
+    private final long timestamp;
+    private final long id;
+    private final long seq;
+    private final byte[] body;
+    // Lazily built, shared encodings; a benign race can at worst build one twice
+    private volatile byte[] wire;
+    private volatile String text;
+    private volatile byte[] textLine;
+
+    ChatFrame(Type type, String sender, String room, long timestamp, byte[] body) {
+        this(type, sender, room, timestamp, 0, 0, body);
+    }
+
+    ChatFrame(Type type, String sender, String room, long timestamp, long id, long seq, byte[] body) {
+        this.type = type;
+        this.sender = sender != null ? sender : "";
+        this.room = room != null ? room : "";
+        this.timestamp = timestamp;
+        this.id = id;
+        this.seq = seq;
+        this.body = body != null ? body : new byte[0];
+    }
+
+    static ChatFrame of(Type type, String sender, String room, String body) {
+        return new ChatFrame(type, sender, room, System.currentTimeMillis(),
+                body != null ? body.getBytes(StandardCharsets.UTF_8) : null);
+    }
+
+    Type getType() { return type; }
+    String getSender() { return sender; }
+    String getRoom() { return room; }
+    long getTimestamp() { return timestamp; }
+    /** Cluster-wide message id, or 0 when none has been assigned. */
+    long getId() { return id; }
+    /** Position in this server's history for the room, or 0 when not recorded. */
+    long getSeq() { return seq; }
+    byte[] getBody() { return body; }
+
+    String getBodyText() {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    /** HH:mm in local time, the format the text protocol carries. */
+    String getTimeText() {
+        return TIME_FORMAT.format(Instant.ofEpochMilli(timestamp));
+    }
+
+    /** Same frame addressed to another room, keeping the original timestamp and body. */
+    ChatFrame withRoom(String newRoom) {
+        ChatFrame copy = new ChatFrame(type, sender, newRoom, timestamp, id, seq, body);
+        copy.text = text;
+        copy.textLine = textLine;
+        return copy;
+    }
+
+    /** Same frame stamped with a message id; the text form does not carry ids. */
+    ChatFrame withId(long newId) {
+        ChatFrame copy = new ChatFrame(type, sender, room, timestamp, newId, seq, body);
+        copy.text = text;
+        copy.textLine = textLine;
+        return copy;
+    }
+
+    /** Same frame stamped with a room sequence; the text form does not carry it. */
+    ChatFrame withSeq(long newSeq) {
+        ChatFrame copy = new ChatFrame(type, sender, room, timestamp, id, newSeq, body);
+        copy.text = text;
+        copy.textLine = textLine;
+        return copy;
+    }
+
+    // ---- text protocol ----
+
+    /**
+     * Parses a group chat text line. The original line is kept as the frame's text
+     * encoding so text clients receive it byte for byte.
+     *
+     * @return null for lines that are not part of the group protocol
+     */
+    static ChatFrame fromText(String line, String defaultRoom) {
+        ChatFrame frame = null;
+        if (line.startsWith("JOIN:")) {
+            // JOIN:user:room, JOIN:user:room:seq to resume after a known sequence,
+            // or JOIN:user:room:seq:token to resume a session
+            String[] parts = line.substring(5).split(":", 3);
+            if (parts.length >= 2) {
+                frame = of(Type.JOIN, parts[0], parts[1], parts.length == 3 ? parts[2] : null);
+            }
+        } else if (line.startsWith("MESSAGE:") || line.startsWith("FILE:")) {
+            boolean file = line.startsWith("FILE:");
+            // sender:HH:mm:content
+            String[] parts = line.substring(file ? 5 : 8).split(":", 4);
+            if (parts.length == 4) {
+                frame = of(file ? Type.FILE : Type.MESSAGE, parts[0], defaultRoom, parts[3]);
+            }
+        } else if (line.startsWith("LEAVE:")) {
+            frame = of(Type.LEAVE, line.substring(6), defaultRoom, null);
+        } else if (line.startsWith("USER_JOIN:")) {
+            String[] parts = line.substring(10).split(":");
+            if (parts.length == 2) {
+                frame = of(Type.USER_JOIN, parts[0], parts[1], null);
+            }
+        } else if (line.startsWith("USER_LEAVE:")) {
+            frame = of(Type.USER_LEAVE, line.substring(11), defaultRoom, null);
+        } else if (line.equals("PING") || line.equals("PONG")) {
+            frame = of(line.equals("PING") ? Type.PING : Type.PONG, null, defaultRoom, null);
+        } else if (line.startsWith("PRESENCE:") || line.startsWith("PRESENCE_SYNC:")) {
+            // PRESENCE:room subscribes ("PRESENCE:" for everyone); PRESENCE:room:+user and
+            // PRESENCE_SYNC:room:user,user are what subscribers get
+            boolean sync = line.startsWith("PRESENCE_SYNC:");
+            String[] parts = line.substring(sync ? 14 : 9).split(":", 2);
+            frame = of(sync ? Type.PRESENCE_SYNC : Type.PRESENCE, null, parts[0], parts.length == 2 ? parts[1] : null);
+        } else if (line.startsWith("HISTORY:")) {
+            // HISTORY:room:seq
+            String[] parts = line.substring(8).split(":");
+            if (parts.length == 2) {
+                frame = of(Type.HISTORY, null, parts[0], parts[1]);
+            }
+        }
+        if (frame != null) {
+            frame.text = line;
+        }
+        return frame;
+    }
+
+    /** The frame as a text protocol line, without the trailing newline. */
+    String toText() {
+        String t = text;
+        if (t == null) {
+            t = renderText();
+            text = t;
+        }
+        return t;
+    }
+
+    private String renderText() {
+        // Text is newline delimited, so bodies from binary clients lose their line breaks
+        String body = getBodyText().replace('\r', ' ').replace('\n', ' ');
+        switch (type) {
+            case JOIN: return "JOIN:" + sender + ":" + room + (body.isEmpty() ? "" : ":" + body);
+            case MESSAGE: return "MESSAGE:" + sender + ":" + getTimeText() + ":" + body;
+            case FILE: return "FILE:" + sender + ":" + getTimeText() + ":" + body;
+            case LEAVE: return "LEAVE:" + sender;
+            case USER_JOIN: return "USER_JOIN:" + sender + ":" + room;
+            case USER_LEAVE: return "USER_LEAVE:" + sender;
+            case HISTORY: return "HISTORY:" + room + ":" + body;
+            case SESSION: return "SESSION:" + body;
+            case PRESENCE: return "PRESENCE:" + room + (body.isEmpty() ? "" : ":" + body);
+            case PRESENCE_SYNC: return "PRESENCE_SYNC:" + room + ":" + body;
+            case HELLO: return "HELLO:" + sender;
+            case INTEREST: return "INTEREST:" + getBodyText().replace('\n', ',');
+            case CATCH_UP: return "CATCH_UP:" + room + ":" + id;
+            case USERNAME: return sender;
+            case SUCCESS: return "SUCCESS:" + body;
+            case PRIVATE: return "PRIVATE:" + room + ":" + body;
+            case PRIVATE_MESSAGE: return "MESSAGE:" + sender + ":" + body;
+            case SENT: return "SENT:" + room + ":" + body;
+            case ERROR: return "ERROR:" + body;
+            case USERS: return "USERS:" + body;
+            case GET_USERS: return body.isEmpty() ? "GET_USERS" : "GET_USERS:" + body + (room.isEmpty() ? "" : ":" + room);
+            case USER_ONLINE: return "USER_ONLINE:" + id + ":" + sender;
+            case USER_OFFLINE: return "USER_OFFLINE:" + id + ":" + sender;
+            case USERS_PAGE: return "USERS_PAGE:" + id + ":" + room + ":" + body;
+            case DISCONNECT: return "DISCONNECT";
+            case PING: return "PING";
+            case PONG: return "PONG";
+            default: throw new IllegalStateException("no text form for " + type);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toText();
+    }
+
+    /** UTF-8 text line including the newline, cached for fan-out. */
+    byte[] toTextLine() {
+        byte[] line = textLine;
+        if (line == null) {
+            line = (toText() + "\n").getBytes(StandardCharsets.UTF_8);
+            textLine = line;
+        }
+        return line;
+    }
+
+    byte[] encode(boolean binary) {
+        return binary ? toBinary() : toTextLine();
+    }
+
+    // ---- binary protocol ----
+
+    /** The length-prefixed binary frame, cached for fan-out. */
+    byte[] toBinary() {
+        byte[] bytes = wire;
+        if (bytes == null) {
+            bytes = renderBinary();
+            wire = bytes;
+        }
+        return bytes;
+    }
+
+    private byte[] renderBinary() {
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        if (senderBytes.length > 0xFFFF || roomBytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("sender or room too long for a frame");
+        }
+        int length = 1 + 1 + 1 + 8 + (id != 0 ? 8 : 0) + (seq != 0 ? 8 : 0)
+                + 2 + senderBytes.length + 2 + roomBytes.length + 4 + body.length;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length);
+        buffer.put((byte) VERSION);
+        buffer.put((byte) type.code);
+        buffer.put((byte) ((id != 0 ? FLAG_ID : 0) | (seq != 0 ? FLAG_SEQ : 0)));
+        buffer.putLong(timestamp);
+        if (id != 0) {
+            buffer.putLong(id);
+        }
+        if (seq != 0) {
+            buffer.putLong(seq);
+        }
+        buffer.putShort((short) senderBytes.length).put(senderBytes);
+        buffer.putShort((short) roomBytes.length).put(roomBytes);
+        buffer.putInt(body.length).put(body);
+        return buffer.array();
+    }
+
+    /** Decodes one frame whose length prefix has already been consumed. */
+    static ChatFrame decode(ByteBuffer buffer) throws IOException {
+        int version = buffer.get() & 0xFF;
+        if (version != VERSION) {
+            throw new IOException("unsupported frame version " + version);
+        }
+        Type type = Type.fromCode(buffer.get());
+        int flags = buffer.get();
+        long timestamp = buffer.getLong();
+        long id = (flags & FLAG_ID) != 0 ? buffer.getLong() : 0;
+        long seq = (flags & FLAG_SEQ) != 0 ? buffer.getLong() : 0;
+        String sender = readString(buffer);
+        String room = readString(buffer);
+        int bodyLength = buffer.getInt();
+        if (bodyLength < 0 || bodyLength > buffer.remaining()) {
+            throw new IOException("bad frame body length " + bodyLength);
+        }
+        byte[] body = new byte[bodyLength];
+        buffer.get(body);
+        return new ChatFrame(type, sender, room, timestamp, id, seq, body);
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getShort() & 0xFFFF;
+        if (length > buffer.remaining()) {
+            throw new IOException("bad frame string length " + length);
+        }
+        if (!buffer.hasArray()) {
+            // Direct and mapped buffers, e.g. frames read back from the message log
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /** Blocking read of one frame. */
+    static ChatFrame read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("bad frame length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        try {
+            return decode(ByteBuffer.wrap(bytes));
+        } catch (RuntimeException e) {
+            throw new IOException("malformed frame", e);
+        }
+    }
+
+    /**
+     * Reads one UTF-8 text line straight from a byte stream, so a connection can switch
+     * to binary frames after negotiation without a Reader having buffered past the line.
+     *
+     * @return the line without its terminator, or null at end of stream
+     */
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                if (line.size() == 0) {
+                    return null;
+                }
+                throw new EOFException("stream ended mid-line");
+            }
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("line exceeds " + MAX_LINE_LENGTH + " bytes");
+            }
+            line.write(b);
+        }
+        byte[] bytes = line.toByteArray();
+        int end = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, end, StandardCharsets.UTF_8);
+    }
+}
@@ -2,69 +2,668 @@ package com.example.voyeger;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class ChatServer {
+    private static final AsyncLog LOG = AsyncLog.get("chat.server");
+    private static final int MAX_LOG_REPLAY = 500;
+    private static final int HISTORY_READERS = 2;
+    private static final int HISTORY_READS_QUEUED = 256;
+
     private int port;
-    private Set<ClientHandler> clients = ConcurrentHashMap.newKeySet();
+    private Set<ChatConnection> clients = ConcurrentHashMap.newKeySet();
+    private RoomIndex rooms = new RoomIndex();
+    // Every change to a room and every delivery to it runs on the room's worker
+    private RoomExecutor roomExecutor;
+    private AdmissionControl admission;
+    private PresenceIndex presence;
     private List<ChatServer> otherServers = new ArrayList<>();
-    private ExecutorService executor = Executors.newCachedThreadPool();
+    private ExecutorService executor;
+    private ExecutorService writers;
     private String serverName;
+    private ChatServerConfig config;
+    private ServerMesh mesh;
+    private OutboundQueue.Stats outboundStats = new OutboundQueue.Stats();
+    private ConsistentHashRing roomPlacement = new ConsistentHashRing(ChatServerConfig.clusterServers());
+    // Random high bits keep ids from different servers apart without coordination
+    private AtomicLong messageIds = new AtomicLong(ThreadLocalRandom.current().nextLong() << 32);
+    private MessageIdFilter deliveredIds = new MessageIdFilter(16_384);
+    private RoomHistory history;
+    private MessageLog messageLog;
+    // Reads older history back from the log, off the threads that serve connections
+    private ThreadPoolExecutor historyReads;
+    // Counted here and read by the metrics endpoint
+    private LongAdder accepted = new LongAdder();
+    private LongAdder messagesIn = new LongAdder();
+    private LongAdder bytesIn = new LongAdder();
+    private LongAdder bytesOut = new LongAdder();
+    private LongAdder relayedIn = new LongAdder();
+    private LongAdder caughtUp = new LongAdder();
+    private LongAdder resumed = new LongAdder();
+    private ServerMetrics.Latency relayLatency = new ServerMetrics.Latency();
+    private volatile boolean listening;
+    private HeartbeatMonitor heartbeats;
+    private FileTransferServer files;
+    // Resume tokens of this server's connections; a token is portable, any server with the
+    // cluster secret accepts it
+    private Map<String, ChatConnection> sessions = new ConcurrentHashMap<>();
+    private SessionTokens tokens;
 
     public ChatServer(int port) {
+        this(port, ChatServerConfig.fromSystemProperties(port));
+    }
+
+    public ChatServer(int port, ChatServerConfig config) {
         this.port = port;
+        this.config = config;
         this.serverName = "Server-" + port;
+        this.history = new RoomHistory(config.getHistorySize());
+        this.executor = config.getMode() == ChatServerConfig.Mode.NIO ? null : config.newConnectionExecutor();
+        this.writers = config.getMode() == ChatServerConfig.Mode.NIO ? null : config.newWriterExecutor();
+        this.roomExecutor = new RoomExecutor(serverName, config.getRoomWorkers());
+        this.admission = new AdmissionControl(config);
+        this.presence = new PresenceIndex(serverName, this::replicatePresence);
+        byte[] secret = config.getClusterSecret() != null
+                ? config.getClusterSecret().getBytes(StandardCharsets.UTF_8) : SessionTokens.randomSecret();
+        this.tokens = new SessionTokens(secret, config.getSessionMaxAgeMillis());
     }
 
     public void start() {
+        openMessageLog();
+        if (!config.getPeers().isEmpty()) {
+            PeerAuth auth = config.getClusterSecret() != null
+                    ? new PeerAuth(config.getClusterSecret().getBytes(StandardCharsets.UTF_8)) : null;
+            mesh = new ServerMesh(this, config.getPeerAddress(), config.getPeerHost(), config.getPeerPort(),
+                    config.getPeers(), auth);
+            mesh.start();
+            if (config.getClusterSecret() == null) {
+                LOG.warn("sessions.local", "server", serverName, "reason", "chat.clusterSecret is not set");
+            }
+        }
+        startStatsReporter();
+        if (config.getHeartbeatIdleMillis() > 0) {
+            heartbeats = new HeartbeatMonitor(serverName, config.getHeartbeatIdleMillis(), config.getHeartbeatTimeoutMillis());
+        }
+        startFileTransfers();
+        startMetrics();
+        if (config.getMode() == ChatServerConfig.Mode.NIO) {
+            startNio();
+            return;
+        }
+
         try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println(serverName + " started on port " + port);
+            LOG.info("server.started", "server", serverName, "port", port, "mode", config.getMode().name().toLowerCase());
             logToAllServers(serverName + " is now ONLINE");
+            listening = true;
 
             while (true) {
                 Socket clientSocket = serverSocket.accept();
+                if (!admit(clientSocket.getInetAddress().getHostAddress())) {
+                    clientSocket.close();
+                    continue;
+                }
                 ClientHandler clientHandler = new ClientHandler(clientSocket, this);
-                clients.add(clientHandler);
+                addClient(clientHandler);
                 executor.execute(clientHandler);
-                System.out.println(serverName + ": New client connected from " +
-                        clientSocket.getInetAddress().getHostAddress());
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            LOG.error("server.stopped", "server", serverName, e);
+        } finally {
+            listening = false;
+        }
+    }
+
+    /** Opens the persistent log, if configured, and refills room history from it. */
+    private void openMessageLog() {
+        if (config.getLogDir() == null) {
+            return;
+        }
+        try {
+            messageLog = new MessageLog(Paths.get(config.getLogDir(), serverName), config.getLogSegmentBytes(),
+                    config.getLogRetentionMillis(), config.getLogFsyncMillis());
+            if (history.isEnabled()) {
+                for (String room : messageLog.rooms()) {
+                    history.restore(room, messageLog.before(room, Long.MAX_VALUE, config.getHistorySize()));
+                }
+            }
+            messageLog.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(messageLog::close, serverName + "-log-close"));
+            AtomicInteger readers = new AtomicInteger();
+            historyReads = new ThreadPoolExecutor(HISTORY_READERS, HISTORY_READERS, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(HISTORY_READS_QUEUED), task -> {
+                        Thread thread = new Thread(task, serverName + "-history-" + readers.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        } catch (IOException e) {
+            LOG.error("log.open.failed", "dir", config.getLogDir(), e);
+            messageLog = null;
         }
     }
 
-    public void broadcastMessage(String message, ClientHandler sender) {
-        String formattedMessage = "[" + serverName + "] " + message;
-        System.out.println(formattedMessage);
+    private void startNio() {
+        NioChatEngine engine = new NioChatEngine(this, port, config.getReactorThreads());
+        try {
+            LOG.info("server.started", "server", serverName, "port", port, "mode", "nio/" + config.getReactorThreads());
+            logToAllServers(serverName + " is now ONLINE");
+            listening = true;
+            engine.run();
+        } catch (IOException e) {
+            LOG.error("server.stopped", "server", serverName, e);
+        } finally {
+            listening = false;
+        }
+    }
 
-        // Broadcast to all clients on this server
-        for (ClientHandler client : clients) {
-            if (client != sender) {
-                client.sendMessage(message);
+    private void startFileTransfers() {
+        int filePort = config.filePortFor(port);
+        if (filePort <= 0) {
+            return;
+        }
+        try {
+            files = FileTransferServer.start(serverName, filePort, Paths.get(config.getFileDir(), serverName),
+                    config.getFileMaxBytes(), config.getFileTotalBytes(), config.getFileRetentionMillis());
+        } catch (IOException e) {
+            LOG.warn("files.failed", "port", filePort, e);
+        }
+    }
+
+    private void startMetrics() {
+        int metricsPort = config.metricsPortFor(port);
+        if (metricsPort <= 0) {
+            return;
+        }
+        ServerMetrics metrics = new ServerMetrics(serverName);
+        metrics.gauge("chat_clients_connected", "Client connections open now", clients::size);
+        metrics.gauge("chat_rooms", "Rooms with members on this server", rooms::roomCount);
+        metrics.gauge("chat_presence_users_online", "Users connected anywhere in the cluster", presence::onlineCount);
+        metrics.gauge("chat_room_tasks_queued", "Room events waiting for their room's worker", roomExecutor::queuedCount);
+        metrics.counter("chat_connections_accepted_total", "Client connections accepted", accepted::sum);
+        metrics.counter("chat_messages_in_total", "Frames received from clients", messagesIn::sum);
+        metrics.counter("chat_messages_out_total", "Frames queued to clients", outboundStats.enqueued::sum);
+        metrics.counter("chat_bytes_in_total", "Bytes read from clients", bytesIn::sum);
+        metrics.counter("chat_bytes_out_total", "Bytes written to clients", bytesOut::sum);
+        metrics.gauge("chat_outbound_queue_depth", "Frames waiting in all client queues", () -> queueDepth(false));
+        metrics.gauge("chat_outbound_queue_max_depth", "Frames waiting in the fullest client queue", () -> queueDepth(true));
+        metrics.counter("chat_socket_writes_total", "Socket writes the queued frames went out in", outboundStats.writes::sum);
+        metrics.counter("chat_outbound_dropped_total", "Frames dropped from full client queues", outboundStats.dropped::sum);
+        metrics.counter("chat_outbound_coalesced_total", "Queued frames replaced by newer ones", outboundStats.coalesced::sum);
+        metrics.counter("chat_slow_client_disconnects_total", "Clients disconnected for not keeping up",
+                outboundStats.disconnected::sum);
+        metrics.counter("chat_connections_rejected_total", "Connections closed because the server was full",
+                admission.rejectedFull::sum);
+        metrics.counter("chat_connections_throttled_total", "Connections closed for arriving faster than the accept rate",
+                admission.rejectedRate::sum);
+        metrics.counter("chat_frames_throttled_total", "Frames dropped for exceeding their connection's rate limits",
+                admission.limitedConnection::sum);
+        metrics.counter("chat_frames_throttled_user_total", "Frames dropped for exceeding their user's rate limits",
+                admission.limitedUser::sum);
+        if (heartbeats != null) {
+            metrics.counter("chat_heartbeat_evictions_total", "Clients closed for not answering a PING",
+                    heartbeats::evictedCount);
+        }
+        if (files != null) {
+            metrics.counter("chat_file_bytes_in_total", "Attachment bytes uploaded, chunk headers included", files.bytesIn::sum);
+            metrics.counter("chat_file_bytes_out_total", "Attachment bytes downloaded, chunk headers included", files.bytesOut::sum);
+            metrics.counter("chat_file_uploads_total", "Attachments stored", files.uploads::sum);
+            metrics.counter("chat_file_downloads_total", "Attachments sent in full", files.downloads::sum);
+            metrics.counter("chat_file_expired_total", "Attachments deleted after the retention period", files.expired::sum);
+            metrics.counter("chat_file_rejected_total", "Uploads refused because the server's total was used up",
+                    files.rejected::sum);
+            metrics.gauge("chat_file_stored_bytes", "Bytes of attachments kept, uploads in progress at their full size",
+                    files::storedBytes);
+        }
+        if (messageLog != null) {
+            metrics.counter("chat_log_dropped_total", "Messages left out of the on-disk log because its writer fell behind",
+                    messageLog::droppedCount);
+            metrics.gauge("chat_history_reads_queued", "HISTORY requests waiting to be read back from the log",
+                    () -> historyReads.getQueue().size());
+        }
+        metrics.counter("chat_relay_in_total", "Messages received from other servers", relayedIn::sum);
+        metrics.counter("chat_sessions_resumed_total", "Joins that resumed a session with its token", resumed::sum);
+        metrics.counter("chat_catchup_in_total", "Missed messages fetched from other servers for resumed clients",
+                caughtUp::sum);
+        // Millisecond timestamps from the sending server, so this assumes synchronized clocks
+        metrics.latency("chat_relay_latency_seconds", "Time from send on another server to delivery here", relayLatency);
+        metrics.counter("log_records_dropped_total", "Log records dropped because the log buffer was full",
+                AsyncLog::droppedCount);
+        metrics.setHealthCheck(() -> listening);
+        metrics.setLoad(clients::size, config.getMaxConnections());
+        try {
+            MetricsHttpServer.start(config.getMetricsHost(), metricsPort, metrics);
+        } catch (IOException e) {
+            LOG.warn("metrics.failed", "port", metricsPort, e);
+        }
+    }
+
+    private long queueDepth(boolean max) {
+        long total = 0;
+        long deepest = 0;
+        for (ChatConnection client : clients) {
+            int depth = client.getOutboundQueue().depth();
+            total += depth;
+            deepest = Math.max(deepest, depth);
+        }
+        return max ? deepest : total;
+    }
+
+    void countBytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    void countBytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    private void startStatsReporter() {
+        if (config.getStatsIntervalSeconds() <= 0) {
+            return;
+        }
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, serverName + "-stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        int interval = config.getStatsIntervalSeconds();
+        reporter.scheduleAtFixedRate(this::logQueueStats, interval, interval, TimeUnit.SECONDS);
+    }
+
+    private void logQueueStats() {
+        int totalDepth = 0;
+        int maxDepth = 0;
+        int maxHighWater = 0;
+        for (ChatConnection client : clients) {
+            int depth = client.getOutboundQueue().depth();
+            totalDepth += depth;
+            maxDepth = Math.max(maxDepth, depth);
+            maxHighWater = Math.max(maxHighWater, client.getOutboundQueue().highWater());
+        }
+        LOG.info("outbound.queues", "server", serverName, "clients", clients.size(),
+                "depth", totalDepth, "maxDepth", maxDepth);
+        LOG.info("outbound.totals", "maxHighWater", maxHighWater, "enqueued", outboundStats.enqueued.sum(),
+                "dropped", outboundStats.dropped.sum(), "coalesced", outboundStats.coalesced.sum());
+        LOG.info("outbound.disconnects", "server", serverName, "slow", outboundStats.disconnected.sum());
+    }
+
+    OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(config.getOutboundCapacity(), config.getOverflowPolicy(), outboundStats);
+    }
+
+    ChatServerConfig getConfig() {
+        return config;
+    }
+
+    void executeWriter(Runnable writer) {
+        writers.execute(writer);
+    }
+
+    /** Whether a just-accepted connection may stay; the caller closes it otherwise. */
+    boolean admit(String remote) {
+        if (admission.admit(clients.size())) {
+            return true;
+        }
+        LOG.debug("client.rejected", "server", serverName, "remote", remote, "clients", clients.size());
+        return false;
+    }
+
+    void addClient(ChatConnection client) {
+        clients.add(client);
+        accepted.increment();
+        if (heartbeats != null) {
+            heartbeats.watch(client);
+        }
+        LOG.info("client.connected", "server", serverName, "remote", client.getRemoteAddress());
+    }
+
+    /**
+     * Handles one text protocol line from a client. Shared by the blocking and NIO engines.
+     *
+     * @return false when the client left and its connection should be closed
+     */
+    boolean handleClientMessage(ChatConnection client, String message) {
+        LOG.debug("client.line", "server", serverName, "line", message);
+
+        ChatFrame frame = ChatFrame.fromText(message, client.getCurrentRoom());
+        return frame == null || handleClientFrame(client, frame);
+    }
+
+    /**
+     * Handles one parsed message from a client, whichever protocol it arrived in.
+     *
+     * @return false when the client left and its connection should be closed
+     */
+    boolean handleClientFrame(ChatConnection client, ChatFrame frame) {
+        messagesIn.increment();
+        if (!admitFrame(client, frame)) {
+            return true;
+        }
+        String room = client.getCurrentRoom();
+        switch (frame.getType()) {
+            case JOIN:
+                if (frame.getSender().isEmpty() || frame.getRoom().isEmpty()) {
+                    break;
+                }
+                leaveRoom(room, client);
+                client.setUsername(frame.getSender());
+                client.setCurrentRoom(frame.getRoom());
+                // JOIN:user:room:seq[:token] (or a binary JOIN with the last message id) resumes after that point
+                String[] resume = frame.getBodyText().split(":", 2);
+                boolean resuming = openSession(client, resume.length == 2 ? resume[1] : "");
+                roomExecutor.execute(frame.getRoom(), () -> {
+                    history.join(frame.getRoom(), frame.getId(), parseSeq(resume[0]),
+                            () -> joinRoom(frame.getRoom(), client),
+                            backlog -> replay(client, backlog, frame.getId() != 0 || !frame.getBodyText().isEmpty()));
+                    if (frame.getId() != 0 && history.isEnabled() && !history.holds(frame.getRoom(), frame.getId())) {
+                        // Resumed here from another server, and this one was not getting the room's messages
+                        catchUp(frame.getRoom(), frame.getId());
+                    }
+                });
+                if (!resuming) {
+                    broadcastMessage(ChatFrame.of(ChatFrame.Type.USER_JOIN, client.getUsername(), client.getCurrentRoom(), null), client);
+                }
+                LOG.info("client.joined", "user", client.getUsername(), "room", client.getCurrentRoom(),
+                        "home", homeServerFor(client.getCurrentRoom()), "resumed", resuming);
+                break;
+            case MESSAGE:
+            case FILE:
+                if (room == null) {
+                    break;
+                }
+                // Messages always go to the room the sender joined, whatever the frame says
+                broadcastMessage(room.equals(frame.getRoom()) ? frame : frame.withRoom(room), client);
+                LOG.debug("client.message", "type", frame.getType(), "user", client.getUsername(), "room", room);
+                break;
+            case HISTORY:
+                // Only the room the client is in, and without joining it again
+                if (room != null && room.equals(frame.getRoom())) {
+                    long since = parseSeq(frame.getBodyText());
+                    long oldest = history.oldestSeq(room);
+                    if (messageLog != null && frame.getId() == 0 && since + 1 < oldest) {
+                        // Older than memory holds: that part comes from disk, which neither a
+                        // reactor nor the room's worker may wait for
+                        try {
+                            historyReads.execute(() -> replayFromLog(client, room, since, oldest));
+                        } catch (RejectedExecutionException e) {
+                            client.sendMessage(ChatFrame.of(ChatFrame.Type.ERROR, null, room, "History is busy; try again shortly"));
+                        }
+                    } else {
+                        history.join(room, frame.getId(), since, () -> { },
+                                backlog -> replay(client, backlog, false));
+                    }
+                }
+                break;
+            case PRESENCE:
+                // Subscription to a room's members, or to everyone online for an empty room
+                presence.subscribe(frame.getRoom(), client);
+                break;
+            case PING:
+                client.sendMessage(ChatFrame.of(ChatFrame.Type.PONG, null, null, null));
+                break;
+            case PONG:
+                // Receiving it was the point; the connection recorded the activity
+                break;
+            case LEAVE:
+                if (room != null) {
+                    broadcastMessage(ChatFrame.of(ChatFrame.Type.USER_LEAVE, client.getUsername(), room, null), client);
+                    leaveRoom(room, client);
+                }
+                LOG.info("client.left", "user", client.getUsername(), "room", room);
+                return false;
+            default:
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Charges a frame to its sender's rate limits. Heartbeats are free and a LEAVE always
+     * gets through; anything else over the limit is dropped.
+     */
+    private boolean admitFrame(ChatConnection client, ChatFrame frame) {
+        ChatFrame.Type type = frame.getType();
+        if (type == ChatFrame.Type.PING || type == ChatFrame.Type.PONG) {
+            return true;
+        }
+        int bytes = frame.getBody().length + frame.getSender().length() + frame.getRoom().length();
+        if (admission.allow(client, bytes) || type == ChatFrame.Type.LEAVE) {
+            return true;
+        }
+        if (admission.noticeDue(client)) {
+            LOG.info("client.throttled", "server", serverName, "user", client.getUsername(), "remote", client.getRemoteAddress());
+            client.sendMessage(ChatFrame.of(ChatFrame.Type.ERROR, null, null, "Sending too fast; some messages were not delivered"));
+        }
+        return false;
+    }
+
+    /**
+     * Resumes the client's session if it sent back a token that verifies for its user and
+     * room, then issues it a new token, which is sent to the client before any replay.
+     *
+     * @return true when the client resumed a session, which then is not announced again
+     */
+    private boolean openSession(ChatConnection client, String token) {
+        long now = System.currentTimeMillis();
+        // A token this cluster did not issue to this user for this room, or an expired one, is a fresh join
+        boolean resuming = !token.isEmpty() && tokens.verify(token, client.getUsername(), client.getCurrentRoom(), now);
+        if (resuming) {
+            ChatConnection previous = sessions.remove(token);
+            if (previous != null && previous != client) {
+                // The same client's old connection, dead without either side noticing yet
+                LOG.info("session.replaced", "user", client.getUsername(), "remote", previous.getRemoteAddress());
+                previous.close();
             }
+            resumed.increment();
         }
+        String previousToken = client.getSessionToken();
+        if (previousToken != null) {
+            sessions.remove(previousToken, client);
+        }
+        // Issued afresh on every join, so a session that keeps reconnecting never runs out
+        String issued = tokens.issue(client.getUsername(), client.getCurrentRoom(), now);
+        client.setSessionToken(issued);
+        sessions.put(issued, client);
+        client.sendMessage(ChatFrame.of(ChatFrame.Type.SESSION, null, null, issued));
+        return resuming;
+    }
 
-        // Broadcast to other servers
+    /** Asks the other servers for the room's messages after afterId. */
+    private void catchUp(String room, long afterId) {
         for (ChatServer server : otherServers) {
-            server.receiveMessageFromOtherServer(message, this.serverName);
+            for (ChatFrame message : server.historyAfter(room, afterId)) {
+                receiveCatchUp(message, server.getServerName());
+            }
         }
+        if (mesh != null) {
+            mesh.requestCatchUp(room, afterId);
+        }
+    }
+
+    List<ChatFrame> historyAfter(String room, long afterId) {
+        return history.after(room, afterId);
     }
 
-    public void receiveMessageFromOtherServer(String message, String sourceServer) {
-        String formattedMessage = "[Cross-Server from " + sourceServer + "] " + message;
-        System.out.println(formattedMessage);
+    /** Id of the newest message this server holds for the room, or 0 for none. */
+    long newestMessageId(String room) {
+        return history.newestId(room);
+    }
 
-        // Broadcast to all clients on this server
-        for (ClientHandler client : clients) {
-            client.sendMessage(message);
+    // On a history reader: replays a room's messages after since from the log, then from
+    // memory if the log caught up to what memory holds
+    private void replayFromLog(ChatConnection client, String room, long since, long oldest) {
+        List<ChatFrame> older = messageLog.after(room, since, MAX_LOG_REPLAY);
+        boolean truncated = older.size() == MAX_LOG_REPLAY;
+        older.removeIf(f -> f.getSeq() >= oldest);
+        replay(client, older, false);
+        if (!truncated) {
+            history.join(room, 0, oldest - 1, () -> { }, backlog -> replay(client, backlog, false));
         }
+        // Otherwise that was one page; the client asks again from the last seq it got
     }
 
-    public void logToAllServers(String logMessage) {
+    private static long parseSeq(String seq) {
+        try {
+            return seq.isEmpty() ? 0 : Long.parseLong(seq.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Queues a room's backlog on one connection as a single batch. A client resuming
+     * after a reconnect already shows its own messages, so those are left out.
+     */
+    private void replay(ChatConnection client, List<ChatFrame> backlog, boolean resuming) {
+        if (resuming) {
+            backlog.removeIf(frame -> frame.getSender().equals(client.getUsername()));
+        }
+        if (!backlog.isEmpty()) {
+            client.sendMessages(backlog);
+            LOG.debug("history.replayed", "user", client.getUsername(), "room", client.getCurrentRoom(), "count", backlog.size());
+        }
+    }
+
+    private static boolean isHistory(ChatFrame message) {
+        return message.getType() == ChatFrame.Type.MESSAGE || message.getType() == ChatFrame.Type.FILE;
+    }
+
+    // Room worker only
+    private void joinRoom(String room, ChatConnection client) {
+        if (rooms.members(room).contains(client)) {
+            return;
+        }
+        if (rooms.join(room, client) && mesh != null) {
+            mesh.interestChanged();
+        }
+        presence.localJoin(client.getUsername(), room);
+    }
+
+    private void leaveRoom(String room, ChatConnection client) {
+        if (room == null) {
+            return;
+        }
+        // Taken now: by the time the room's worker runs this, a JOIN may have renamed the client
+        String username = client.getUsername();
+        roomExecutor.execute(room, () -> {
+            if (!rooms.members(room).contains(client)) {
+                return;
+            }
+            if (rooms.leave(room, client) && mesh != null) {
+                mesh.interestChanged();
+            }
+            presence.localLeave(username, room);
+        });
+    }
+
+    PresenceIndex presence() {
+        return presence;
+    }
+
+    // Called by PresenceIndex in version order, one delta at a time
+    private void replicatePresence(ChatFrame delta) {
         for (ChatServer server : otherServers) {
-            System.out.println("[Server Network] " + logMessage);
+            server.presence().applyDelta(delta);
+        }
+        if (mesh != null) {
+            mesh.relayPresence(delta);
+        }
+    }
+
+    /** Rooms with members here, which is what peers need to route to this server. */
+    List<String> localRooms() {
+        return rooms.roomNames();
+    }
+
+    boolean hasLocalMembers(String room) {
+        return !rooms.members(room).isEmpty();
+    }
+
+    public void broadcastMessage(ChatFrame message, ChatConnection sender) {
+        String room = sender.getCurrentRoom();
+        if (room == null) {
+            // Nothing to deliver until the client has joined a room
+            return;
+        }
+        if (message.getId() == 0) {
+            long id = messageIds.incrementAndGet();
+            message = message.withId(id != 0 ? id : messageIds.incrementAndGet());
+        }
+        deliveredIds.firstSeen(message.getId());
+        LOG.debug("broadcast", "server", serverName, "room", room, "frame", message);
+        ChatFrame unstamped = message;
+        roomExecutor.execute(room, () -> {
+            // Broadcast to the sender's room on this server
+            ChatFrame stamped = recordAndDeliver(unstamped, room, sender);
+
+            // Forward only to servers with members in the room, in this JVM and over the mesh
+            for (ChatServer server : otherServers) {
+                if (server.hasLocalMembers(room)) {
+                    server.receiveMessageFromOtherServer(stamped, this.serverName);
+                }
+            }
+            if (mesh != null) {
+                mesh.relay(stamped);
+            }
+        });
+    }
+
+    public void receiveMessageFromOtherServer(ChatFrame message, String sourceServer) {
+        if (message.getId() != 0 && !deliveredIds.firstSeen(message.getId())) {
+            return;
+        }
+        relayedIn.increment();
+        relayLatency.record((System.currentTimeMillis() - message.getTimestamp()) * 1000);
+        String room = message.getRoom();
+        LOG.debug("broadcast.remote", "from", sourceServer, "room", room, "frame", message);
+
+        // Broadcast to members of the room on this server
+        roomExecutor.execute(room, () -> recordAndDeliver(message, room, null));
+    }
+
+    /** A message a peer sent back for a resumed client; old by nature, so not counted as a relay. */
+    void receiveCatchUp(ChatFrame message, String sourceServer) {
+        if (message.getId() == 0 || !isHistory(message) || !deliveredIds.firstSeen(message.getId())) {
+            return;
+        }
+        caughtUp.increment();
+        LOG.debug("broadcast.catchup", "from", sourceServer, "room", message.getRoom(), "frame", message);
+        roomExecutor.execute(message.getRoom(), () -> recordAndDeliver(message, message.getRoom(), null));
+    }
+
+    /**
+     * Chat messages go through room history (and the log); presence events are only
+     * delivered. Room worker only.
+     */
+    private ChatFrame recordAndDeliver(ChatFrame message, String room, ChatConnection sender) {
+        if (!isHistory(message)) {
+            deliverLocal(message, room, sender);
+            return message;
+        }
+        return history.record(message, stamped -> {
+            deliverLocal(stamped, room, sender);
+            if (messageLog != null) {
+                messageLog.append(stamped);
+            }
+        });
+    }
+
+    private void deliverLocal(ChatFrame message, String room, ChatConnection sender) {
+        for (ChatConnection client : rooms.members(room)) {
+            if (client != sender) {
+                client.sendMessage(message);
+            }
+        }
+    }
+
+    public void logToAllServers(String logMessage) {
+        if (!otherServers.isEmpty()) {
+            LOG.info("network", "server", serverName, "event", logMessage);
         }
     }
 
@@ -72,9 +671,25 @@ public class ChatServer {
         otherServers.add(server);
     }
 
-    public void removeClient(ClientHandler client) {
+    public void removeClient(ChatConnection client) {
         clients.remove(client);
-        System.out.println(serverName + ": Client disconnected. Remaining clients: " + clients.size());
+        admission.release(client);
+        presence.unsubscribeAll(client);
+        if (client.getSessionToken() != null) {
+            sessions.remove(client.getSessionToken(), client);
+        }
+        leaveRoom(client.getCurrentRoom(), client);
+        LOG.info("client.disconnected", "server", serverName, "remaining", clients.size());
+    }
+
+    /** The server the room hashes to on the shared placement ring. */
+    public String homeServerFor(String room) {
+        return roomPlacement.nodeFor(room);
+    }
+
+    public boolean isHomeFor(String room) {
+        String home = homeServerFor(room);
+        return home == null || home.equals(config.getAdvertisedAddress());
     }
 
     public String getServerName() {
@@ -82,67 +697,179 @@ public class ChatServer {
     }
 }
 
-class ClientHandler implements Runnable {
+class ClientHandler implements Runnable, ChatConnection {
+    private static final AsyncLog LOG = AsyncLog.get("chat.server");
+
     private Socket socket;
     private ChatServer server;
-    private PrintWriter out;
-    private BufferedReader in;
-    private String username;
-    private String currentRoom;
+    private OutboundQueue outbound;
+    private boolean binary;
+    // Set once the handshake is done; until then frames only queue
+    private volatile FrameWriter writer;
+    // Whether a drain task is queued or running; at most one writes to the socket at a time
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile String username;
+    private volatile String currentRoom;
+    private volatile String sessionToken;
+    private volatile long lastActivity = System.nanoTime();
 
     public ClientHandler(Socket socket, ChatServer server) {
         this.socket = socket;
         this.server = server;
+        this.outbound = server.newOutboundQueue();
     }
 
     @Override
     public void run() {
         try {
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
-
-            String message;
-            while ((message = in.readLine()) != null) {
-                System.out.println(server.getServerName() + " Received raw: " + message);
-
-                if (message.startsWith("JOIN:")) {
-                    String[] parts = message.substring(5).split(":");
-                    if (parts.length == 2) {
-                        this.username = parts[0];
-                        this.currentRoom = parts[1];
-                        String joinMessage = "USER_JOIN:" + username + ":" + currentRoom;
-                        server.broadcastMessage(joinMessage, this);
-                        System.out.println(server.getServerName() + ": " + username + " joined room: " + currentRoom);
-                    }
-                } else if (message.startsWith("MESSAGE:")) {
-                    server.broadcastMessage(message, this);
-                    System.out.println(server.getServerName() + ": Message from " + username + ": " + message);
-                } else if (message.startsWith("FILE:")) {
-                    server.broadcastMessage(message, this);
-                    System.out.println(server.getServerName() + ": File shared by " + username + ": " + message);
-                } else if (message.startsWith("LEAVE:")) {
-                    String leaveMessage = "USER_LEAVE:" + username;
-                    server.broadcastMessage(leaveMessage, this);
-                    System.out.println(server.getServerName() + ": " + username + " left the room");
-                    break;
-                }
+            InputStream in = new BufferedInputStream(new ServerMetrics.CountingInputStream(socket.getInputStream(), server::countBytesIn));
+            OutputStream out = new BufferedOutputStream(new ServerMetrics.CountingOutputStream(socket.getOutputStream(), server::countBytesOut),
+                    server.getConfig().getFlushBytes());
+
+            // A client may ask for binary frames on its first line; everyone else stays on text
+            String first = ChatFrame.readLine(in);
+            if (ChatFrame.NEGOTIATE.equals(first)) {
+                binary = true;
+                out.write((ChatFrame.NEGOTIATE_OK + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+            ChatServerConfig config = server.getConfig();
+            writer = new FrameWriter(outbound, out, binary, config.getFlushMillis(), config.getFlushBytes());
+            scheduleDrain();
+
+            if (binary) {
+                readFrames(new DataInputStream(in));
+            } else {
+                readLines(first, new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
             }
         } catch (IOException e) {
-            System.out.println(server.getServerName() + ": Client connection error: " + e.getMessage());
+            LOG.warn("client.error", "server", server.getServerName(), "error", e.getMessage());
         } finally {
+            close();
+            server.removeClient(this);
+        }
+    }
+
+    private void readLines(String message, BufferedReader in) throws IOException {
+        while (message != null) {
+            lastActivity = System.nanoTime();
+            if (!server.handleClientMessage(this, message)) {
+                return;
+            }
+            message = in.readLine();
+        }
+    }
+
+    private void readFrames(DataInputStream in) throws IOException {
+        while (true) {
+            ChatFrame frame;
             try {
-                socket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+                frame = ChatFrame.read(in);
+            } catch (EOFException e) {
+                return;
             }
-            server.removeClient(this);
+            lastActivity = System.nanoTime();
+            if (!server.handleClientFrame(this, frame)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Starts a drain task on the server's writer executor unless one is already going. The
+     * task writes what is queued and ends, so an idle connection holds only its reader
+     * thread, and a stalled socket holds one pool thread instead of the broadcaster.
+     */
+    private void scheduleDrain() {
+        if (writer != null && draining.compareAndSet(false, true)) {
+            server.executeWriter(this::drainOutbound);
+        }
+    }
+
+    private void drainOutbound() {
+        try {
+            while (true) {
+                writer.writeQueued();
+                draining.set(false);
+                // A frame queued after the last drain but before the flag cleared found it set; pick it up
+                if (outbound.depth() == 0 || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void sendMessage(ChatFrame message) {
+        if (!outbound.offer(message)) {
+            LOG.warn("client.slow", "server", server.getServerName(), "user", username);
+            close();
+            return;
         }
+        LOG.trace("client.queued", "user", username, "frame", message);
+        scheduleDrain();
     }
 
-    public void sendMessage(String message) {
-        if (out != null) {
-            out.println(message);
-            System.out.println(server.getServerName() + " Sent to client: " + message);
+    @Override
+    public void sendMessages(List<ChatFrame> messages) {
+        if (!outbound.offerAll(messages)) {
+            LOG.warn("client.slow", "server", server.getServerName(), "user", username);
+            close();
+            return;
         }
+        scheduleDrain();
     }
-}
\ No newline at end of file
+
+    @Override
+    public void close() {
+        outbound.close();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOG.warn("client.close", "user", username, e);
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    @Override
+    public long lastActivityNanos() { return lastActivity; }
+
+    @Override
+    public void sendPing() {
+        sendMessage(ChatFrame.of(ChatFrame.Type.PING, null, null, null));
+    }
+
+    @Override
+    public String getUsername() { return username; }
+
+    @Override
+    public void setUsername(String username) { this.username = username; }
+
+    @Override
+    public String getCurrentRoom() { return currentRoom; }
+
+    @Override
+    public void setCurrentRoom(String currentRoom) { this.currentRoom = currentRoom; }
+
+    @Override
+    public String getSessionToken() { return sessionToken; }
+
+    @Override
+    public void setSessionToken(String sessionToken) { this.sessionToken = sessionToken; }
+
+    @Override
+    public String getRemoteAddress() {
+        return socket.getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() { return outbound; }
+}
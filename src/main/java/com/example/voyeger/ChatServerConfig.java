@@ -0,0 +1,445 @@
+package com.example.voyeger;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Startup options for ChatServer and PrivateChatServer. fromSystemProperties reads each
+ * one from a chat.* system property, so the ChatServer1-5 launchers can be switched
+ * without code changes, e.g.
+ * {@code java -Dchat.mode=nio -Dchat.reactors=4 com.example.voyeger.ChatServer1}.
+ * Each getter names its property and default.
+ */
+public class ChatServerConfig {
+
+    public enum Mode {
+        BLOCKING,   // one platform thread per connection from a cached pool
+        VIRTUAL,    // one virtual thread per connection, same blocking handler code
+        NIO         // selector-based reactors shared by all connections
+    }
+
+    public static final int[] DEFAULT_CLUSTER_PORTS = {8081, 8082, 8083, 8084, 8085};
+    public static final int PEER_PORT_OFFSET = 1000;
+    public static final int METRICS_PORT_OFFSET = 2000;
+    public static final int FILE_PORT_OFFSET = 3000;
+
+    private Mode mode = Mode.BLOCKING;
+    private int reactorThreads = Runtime.getRuntime().availableProcessors();
+    private int roomWorkers = Runtime.getRuntime().availableProcessors();
+    private int peerPort = -1;
+    private String advertisedAddress;
+    private String peerHost;
+    private List<String> peers = new ArrayList<>();
+    private int outboundCapacity = 1024;
+    private OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+    private int statsIntervalSeconds = 60;
+    private int historySize = 100;
+    private String logDir;
+    private int logSegmentBytes = 16 * 1024 * 1024;
+    private long logRetentionMillis = TimeUnit.DAYS.toMillis(7);
+    private long logFsyncMillis = 1000;
+    private int metricsPort = -1;
+    private String metricsHost;
+    private int filePort = -1;
+    private String fileDir = Paths.get(System.getProperty("java.io.tmpdir"), "voyeger-files").toString();
+    private long fileMaxBytes = 256L * 1024 * 1024;
+    private long fileTotalBytes = 4096L * 1024 * 1024;
+    private long fileRetentionMillis = TimeUnit.DAYS.toMillis(7);
+    private long heartbeatIdleMillis = TimeUnit.SECONDS.toMillis(30);
+    private long heartbeatTimeoutMillis = TimeUnit.SECONDS.toMillis(10);
+    private long flushMillis = 1;
+    private int maxConnections = 10_000;
+    private int acceptRate = 500;
+    private int messageRate = 20;
+    private int messageBurst = 40;
+    private int byteRate = 64 * 1024;
+    private int byteBurst = 256 * 1024;
+    private int userMessageRate = 40;
+    private int userByteRate = 128 * 1024;
+    private int flushBytes = 32 * 1024;
+    private String offlineDir = Paths.get(System.getProperty("java.io.tmpdir"), "voyeger-offline").toString();
+    private long offlineRetentionMillis = TimeUnit.DAYS.toMillis(7);
+    private int offlineMaxMessages = 500;
+    private long offlineMaxBytes = 256L * 1024 * 1024;
+    private int offlineMaxPerSender = 200;
+    private int offlineMaxRecipientsPerSender = 20;
+    private String clusterSecret;
+    private long sessionMaxAgeMillis = TimeUnit.HOURS.toMillis(24);
+
+    public static ChatServerConfig fromSystemProperties() {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setMode(Mode.valueOf(System.getProperty("chat.mode", "blocking").trim().toUpperCase()));
+        config.setReactorThreads(Integer.getInteger("chat.reactors", config.getReactorThreads()));
+        config.setRoomWorkers(Integer.getInteger("chat.roomWorkers", config.getRoomWorkers()));
+        config.setOutboundCapacity(Integer.getInteger("chat.outboundCapacity", config.getOutboundCapacity()));
+        config.setOverflowPolicy(OutboundQueue.OverflowPolicy.valueOf(
+                System.getProperty("chat.overflowPolicy", "drop_oldest").trim().toUpperCase()));
+        config.setStatsIntervalSeconds(Integer.getInteger("chat.statsInterval", config.getStatsIntervalSeconds()));
+        config.setHistorySize(Integer.getInteger("chat.historySize", config.getHistorySize()));
+        config.setLogDir(System.getProperty("chat.logDir"));
+        config.setLogSegmentBytes(Integer.getInteger("chat.logSegmentMB", config.getLogSegmentBytes() >> 20) << 20);
+        config.setLogRetentionMillis(TimeUnit.HOURS.toMillis(
+                Long.getLong("chat.logRetentionHours", TimeUnit.MILLISECONDS.toHours(config.getLogRetentionMillis()))));
+        config.setLogFsyncMillis(Long.getLong("chat.logFsyncMillis", config.getLogFsyncMillis()));
+        config.setMetricsPort(Integer.getInteger("chat.metricsPort", config.getMetricsPort()));
+        config.setMetricsHost(System.getProperty("chat.metricsHost"));
+        config.setFilePort(Integer.getInteger("chat.filePort", config.getFilePort()));
+        config.setFileDir(System.getProperty("chat.fileDir", config.getFileDir()));
+        config.setFileMaxBytes(Long.getLong("chat.fileMaxMB", config.getFileMaxBytes() >> 20) << 20);
+        config.setFileTotalBytes(Long.getLong("chat.fileTotalMB", config.getFileTotalBytes() >> 20) << 20);
+        config.setFileRetentionMillis(TimeUnit.HOURS.toMillis(Long.getLong("chat.fileRetentionHours",
+                TimeUnit.MILLISECONDS.toHours(config.getFileRetentionMillis()))));
+        config.setHeartbeatIdleMillis(TimeUnit.SECONDS.toMillis(
+                Long.getLong("chat.heartbeatIdleSeconds", TimeUnit.MILLISECONDS.toSeconds(config.getHeartbeatIdleMillis()))));
+        config.setHeartbeatTimeoutMillis(TimeUnit.SECONDS.toMillis(
+                Long.getLong("chat.heartbeatTimeoutSeconds", TimeUnit.MILLISECONDS.toSeconds(config.getHeartbeatTimeoutMillis()))));
+        config.setFlushMillis(Long.getLong("chat.flushMillis", config.getFlushMillis()));
+        config.setFlushBytes(Integer.getInteger("chat.flushKB", config.getFlushBytes() >> 10) << 10);
+        config.setMaxConnections(Integer.getInteger("chat.maxConnections", config.getMaxConnections()));
+        config.setAcceptRate(Integer.getInteger("chat.acceptRate", config.getAcceptRate()));
+        config.setMessageRate(Integer.getInteger("chat.messageRate", config.getMessageRate()));
+        config.setMessageBurst(Integer.getInteger("chat.messageBurst", config.getMessageBurst()));
+        config.setByteRate(Integer.getInteger("chat.byteRateKB", config.getByteRate() >> 10) << 10);
+        config.setByteBurst(Integer.getInteger("chat.byteBurstKB", config.getByteBurst() >> 10) << 10);
+        config.setUserMessageRate(Integer.getInteger("chat.userMessageRate", config.getUserMessageRate()));
+        config.setUserByteRate(Integer.getInteger("chat.userByteRateKB", config.getUserByteRate() >> 10) << 10);
+        config.setOfflineDir(System.getProperty("chat.offlineDir", config.getOfflineDir()));
+        config.setOfflineRetentionMillis(TimeUnit.HOURS.toMillis(Long.getLong("chat.offlineRetentionHours",
+                TimeUnit.MILLISECONDS.toHours(config.getOfflineRetentionMillis()))));
+        config.setOfflineMaxMessages(Integer.getInteger("chat.offlineMaxMessages", config.getOfflineMaxMessages()));
+        config.setOfflineMaxBytes(Long.getLong("chat.offlineMaxMB", config.getOfflineMaxBytes() >> 20) << 20);
+        config.setOfflineMaxPerSender(Integer.getInteger("chat.offlineMaxPerSender", config.getOfflineMaxPerSender()));
+        config.setOfflineMaxRecipientsPerSender(Integer.getInteger("chat.offlineMaxRecipientsPerSender",
+                config.getOfflineMaxRecipientsPerSender()));
+        config.setClusterSecret(System.getProperty("chat.clusterSecret"));
+        config.setSessionMaxAgeMillis(TimeUnit.HOURS.toMillis(Long.getLong("chat.sessionMaxAgeHours",
+                TimeUnit.MILLISECONDS.toHours(config.getSessionMaxAgeMillis()))));
+        return config;
+    }
+
+    /** Reads system properties and fills in the peer mesh defaults for a server on this port. */
+    public static ChatServerConfig fromSystemProperties(int port) {
+        ChatServerConfig config = fromSystemProperties();
+        config.setPeerPort(Integer.getInteger("chat.peerPort", port + PEER_PORT_OFFSET));
+        config.setAdvertisedAddress(System.getProperty("chat.advertise", "localhost:" + port));
+        config.setPeerHost(System.getProperty("chat.peerHost"));
+
+        String peerList = System.getProperty("chat.peers");
+        if (peerList != null) {
+            for (String peer : peerList.split(",")) {
+                if (!peer.trim().isEmpty()) {
+                    config.getPeers().add(peer.trim());
+                }
+            }
+        } else if (isDefaultClusterPort(port)) {
+            for (int other : DEFAULT_CLUSTER_PORTS) {
+                if (other != port) {
+                    config.getPeers().add("localhost:" + (other + PEER_PORT_OFFSET));
+                }
+            }
+        }
+        return config;
+    }
+
+    /**
+     * The chat servers rooms are placed on, as host:port: chat.servers (comma separated),
+     * by default the standard ports on localhost. Clients read the same property, so both
+     * sides build the same ConsistentHashRing.
+     */
+    public static List<String> clusterServers() {
+        List<String> servers = new ArrayList<>();
+        String serverList = System.getProperty("chat.servers");
+        if (serverList != null) {
+            for (String server : serverList.split(",")) {
+                if (!server.trim().isEmpty()) {
+                    servers.add(server.trim());
+                }
+            }
+        } else {
+            for (int port : DEFAULT_CLUSTER_PORTS) {
+                servers.add("localhost:" + port);
+            }
+        }
+        return servers;
+    }
+
+    private static boolean isDefaultClusterPort(int port) {
+        for (int clusterPort : DEFAULT_CLUSTER_PORTS) {
+            if (clusterPort == port) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** host:peerPort other servers dial to reach this one, matching their chat.peers entries. */
+    public String getPeerAddress() {
+        return advertisedHost() + ":" + peerPort;
+    }
+
+    private String advertisedHost() {
+        String host = advertisedAddress != null ? advertisedAddress : "localhost";
+        int colon = host.lastIndexOf(':');
+        return colon >= 0 ? host.substring(0, colon) : host;
+    }
+
+    /** Creates the per-connection executor for the thread-per-connection modes. */
+    public ExecutorService newConnectionExecutor() {
+        if (mode == Mode.VIRTUAL) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Creates the executor that runs on-demand writes to clients in the thread-per-connection
+     * modes. Its platform threads retire after a second idle, so the writer threads alive
+     * follow the connections being written to rather than the connections open.
+     */
+    public ExecutorService newWriterExecutor() {
+        if (mode == Mode.VIRTUAL) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        AtomicInteger threads = new AtomicInteger();
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 1, TimeUnit.SECONDS, new SynchronousQueue<>(), task -> {
+            Thread thread = new Thread(task, "chat-writer-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** How connections are served, chat.mode (blocking); PrivateChatServer supports blocking and virtual. */
+    public Mode getMode() { return mode; }
+    public void setMode(Mode mode) { this.mode = mode; }
+
+    /** Port other servers dial for the mesh, chat.peerPort (the client port + 1000). */
+    public int getPeerPort() { return peerPort; }
+    public void setPeerPort(int peerPort) { this.peerPort = peerPort; }
+
+    /**
+     * host:port clients reach this server at, its node on the placement ring: chat.advertise
+     * (localhost and the client port). Only fromSystemProperties(port) fills it in.
+     */
+    public String getAdvertisedAddress() {
+        if (advertisedAddress == null) {
+            throw new IllegalStateException("no advertised address; read the config with fromSystemProperties(port)");
+        }
+        return advertisedAddress;
+    }
+
+    public void setAdvertisedAddress(String advertisedAddress) { this.advertisedAddress = advertisedAddress; }
+
+    /**
+     * Address the peer listener binds to: chat.peerHost, or by default the advertised host,
+     * so a server meshes on the interface its peers dial rather than on every interface.
+     */
+    public String getPeerHost() { return peerHost != null ? peerHost : advertisedHost(); }
+    public void setPeerHost(String peerHost) { this.peerHost = peerHost; }
+
+    /**
+     * host:peerPort of the servers to mesh with, chat.peers (comma separated). When it is not set,
+     * a server on one of the standard cluster ports links to the other standard ports on localhost.
+     */
+    public List<String> getPeers() { return peers; }
+    public void setPeers(List<String> peers) { this.peers = peers; }
+
+    /** Frames queued to one client at most, chat.outboundCapacity (1024). */
+    public int getOutboundCapacity() { return outboundCapacity; }
+    public void setOutboundCapacity(int outboundCapacity) { this.outboundCapacity = Math.max(1, outboundCapacity); }
+
+    /** What a full client queue does with the next frame, chat.overflowPolicy (drop_oldest). */
+    public OutboundQueue.OverflowPolicy getOverflowPolicy() { return overflowPolicy; }
+    public void setOverflowPolicy(OutboundQueue.OverflowPolicy overflowPolicy) { this.overflowPolicy = overflowPolicy; }
+
+    /** Seconds between queue statistics in the log, chat.statsInterval (60); 0 turns them off. */
+    public int getStatsIntervalSeconds() { return statsIntervalSeconds; }
+    public void setStatsIntervalSeconds(int statsIntervalSeconds) { this.statsIntervalSeconds = statsIntervalSeconds; }
+
+    /** Messages kept per room for catch-up on join, chat.historySize (100); 0 turns history off. */
+    public int getHistorySize() { return historySize; }
+    public void setHistorySize(int historySize) { this.historySize = Math.max(0, historySize); }
+
+    /**
+     * Directory for the persistent MessageLog, chat.logDir, each server writing to its own
+     * subdirectory; null keeps history in memory only.
+     */
+    public String getLogDir() { return logDir; }
+    public void setLogDir(String logDir) { this.logDir = logDir; }
+
+    /** Size a MessageLog segment is sealed at, chat.logSegmentMB (16). */
+    public int getLogSegmentBytes() { return logSegmentBytes; }
+    public void setLogSegmentBytes(int logSegmentBytes) { this.logSegmentBytes = Math.max(1 << 20, logSegmentBytes); }
+
+    /** How long sealed log segments are kept, chat.logRetentionHours (168). */
+    public long getLogRetentionMillis() { return logRetentionMillis; }
+    public void setLogRetentionMillis(long logRetentionMillis) { this.logRetentionMillis = logRetentionMillis; }
+
+    /** How often log writes are forced to disk, chat.logFsyncMillis (1000); 0 forces every batch. */
+    public long getLogFsyncMillis() { return logFsyncMillis; }
+    public void setLogFsyncMillis(long logFsyncMillis) { this.logFsyncMillis = Math.max(0, logFsyncMillis); }
+
+    /**
+     * HTTP port for /metrics and /health, chat.metricsPort: -1 (the default) for the client port +
+     * 2000, 0 for none.
+     */
+    public int getMetricsPort() { return metricsPort; }
+    public void setMetricsPort(int metricsPort) { this.metricsPort = metricsPort; }
+
+    /** Metrics port for a server listening for clients on the given port, or 0 when disabled. */
+    public int metricsPortFor(int port) {
+        return metricsPort < 0 ? port + METRICS_PORT_OFFSET : metricsPort;
+    }
+
+    /**
+     * Address /metrics and /health bind to: chat.metricsHost, or by default the advertised
+     * host, so ServerSelector on other machines can probe the load; localhost keeps both private.
+     */
+    public String getMetricsHost() { return metricsHost != null ? metricsHost : advertisedHost(); }
+    public void setMetricsHost(String metricsHost) { this.metricsHost = metricsHost; }
+
+    /** Port for attachment transfers, chat.filePort: -1 (the default) for the client port + 3000, 0 for none. */
+    public int getFilePort() { return filePort; }
+    public void setFilePort(int filePort) { this.filePort = filePort; }
+
+    /** File transfer port for a server listening for clients on the given port, or 0 when disabled. */
+    public int filePortFor(int port) {
+        return filePort < 0 ? port + FILE_PORT_OFFSET : filePort;
+    }
+
+    /** Directory attachments are kept in, chat.fileDir (voyeger-files in java.io.tmpdir). */
+    public String getFileDir() { return fileDir; }
+    public void setFileDir(String fileDir) { this.fileDir = fileDir; }
+
+    /** Largest attachment accepted, chat.fileMaxMB (256). */
+    public long getFileMaxBytes() { return fileMaxBytes; }
+    public void setFileMaxBytes(long fileMaxBytes) { this.fileMaxBytes = Math.max(0, fileMaxBytes); }
+
+    /** Bytes of attachments, finished or still uploading, one server keeps at most, chat.fileTotalMB (4096). */
+    public long getFileTotalBytes() { return fileTotalBytes; }
+    public void setFileTotalBytes(long fileTotalBytes) { this.fileTotalBytes = Math.max(0, fileTotalBytes); }
+
+    /**
+     * How long an attachment is kept after its last chunk arrived, chat.fileRetentionHours (168);
+     * 0 keeps it for good.
+     */
+    public long getFileRetentionMillis() { return fileRetentionMillis; }
+    public void setFileRetentionMillis(long fileRetentionMillis) { this.fileRetentionMillis = Math.max(0, fileRetentionMillis); }
+
+    /**
+     * How long a client may stay silent before it is sent PING, chat.heartbeatIdleSeconds (30); 0
+     * disables heartbeats.
+     */
+    public long getHeartbeatIdleMillis() { return heartbeatIdleMillis; }
+    public void setHeartbeatIdleMillis(long heartbeatIdleMillis) { this.heartbeatIdleMillis = Math.max(0, heartbeatIdleMillis); }
+
+    /** How long after a PING a silent client is closed, chat.heartbeatTimeoutSeconds (10). */
+    public long getHeartbeatTimeoutMillis() { return heartbeatTimeoutMillis; }
+    public void setHeartbeatTimeoutMillis(long heartbeatTimeoutMillis) {
+        this.heartbeatTimeoutMillis = Math.max(1, heartbeatTimeoutMillis);
+    }
+
+    /**
+     * How long the first queued frame may wait for others to share its socket write,
+     * chat.flushMillis (1); 0 writes as soon as the writer gets to the connection.
+     */
+    public long getFlushMillis() { return flushMillis; }
+    public void setFlushMillis(long flushMillis) { this.flushMillis = Math.max(0, flushMillis); }
+
+    /** Queued bytes that trigger a write before the linger is up, chat.flushKB (32). */
+    public int getFlushBytes() { return flushBytes; }
+    public void setFlushBytes(int flushBytes) { this.flushBytes = Math.max(1024, flushBytes); }
+
+    /** Open client connections at most, chat.maxConnections (10000); 0 for no cap. */
+    public int getMaxConnections() { return maxConnections; }
+    public void setMaxConnections(int maxConnections) { this.maxConnections = Math.max(0, maxConnections); }
+
+    /** New connections accepted per second at most, chat.acceptRate (500); 0 for no limit. */
+    public int getAcceptRate() { return acceptRate; }
+    public void setAcceptRate(int acceptRate) { this.acceptRate = Math.max(0, acceptRate); }
+
+    /** Frames per second one connection may send, chat.messageRate (20); 0 for no limit. */
+    public int getMessageRate() { return messageRate; }
+    public void setMessageRate(int messageRate) { this.messageRate = Math.max(0, messageRate); }
+
+    /** Frames one connection may send at once before its rate applies, chat.messageBurst (40). */
+    public int getMessageBurst() { return messageBurst; }
+    public void setMessageBurst(int messageBurst) { this.messageBurst = Math.max(1, messageBurst); }
+
+    /** Bytes per second one connection may send, chat.byteRateKB (64); 0 for no limit. */
+    public int getByteRate() { return byteRate; }
+    public void setByteRate(int byteRate) { this.byteRate = Math.max(0, byteRate); }
+
+    /** Bytes one connection may send at once before its rate applies, chat.byteBurstKB (256). */
+    public int getByteBurst() { return byteBurst; }
+    public void setByteBurst(int byteBurst) { this.byteBurst = Math.max(1, byteBurst); }
+
+    /** Frames per second one user may send over all their connections, chat.userMessageRate (40); 0 for no limit. */
+    public int getUserMessageRate() { return userMessageRate; }
+    public void setUserMessageRate(int userMessageRate) { this.userMessageRate = Math.max(0, userMessageRate); }
+
+    /** Bytes per second one user may send over all their connections, chat.userByteRateKB (128); 0 for no limit. */
+    public int getUserByteRate() { return userByteRate; }
+    public void setUserByteRate(int userByteRate) { this.userByteRate = Math.max(0, userByteRate); }
+
+    /**
+     * Directory PrivateChatServer keeps messages for offline users in, chat.offlineDir (voyeger-
+     * offline in java.io.tmpdir).
+     */
+    public String getOfflineDir() { return offlineDir; }
+    public void setOfflineDir(String offlineDir) { this.offlineDir = offlineDir; }
+
+    /** How long a message for an offline user is kept, chat.offlineRetentionHours (168). */
+    public long getOfflineRetentionMillis() { return offlineRetentionMillis; }
+    public void setOfflineRetentionMillis(long offlineRetentionMillis) { this.offlineRetentionMillis = Math.max(0, offlineRetentionMillis); }
+
+    /** Messages kept for one offline recipient at most, chat.offlineMaxMessages (500); 0 turns offline messages off. */
+    public int getOfflineMaxMessages() { return offlineMaxMessages; }
+    public void setOfflineMaxMessages(int offlineMaxMessages) { this.offlineMaxMessages = Math.max(0, offlineMaxMessages); }
+
+    /** Bytes of messages kept for all offline recipients together at most, chat.offlineMaxMB (256). */
+    public long getOfflineMaxBytes() { return offlineMaxBytes; }
+    public void setOfflineMaxBytes(long offlineMaxBytes) { this.offlineMaxBytes = Math.max(0, offlineMaxBytes); }
+
+    /** Messages one sender may have waiting over all offline recipients, chat.offlineMaxPerSender (200). */
+    public int getOfflineMaxPerSender() { return offlineMaxPerSender; }
+    public void setOfflineMaxPerSender(int offlineMaxPerSender) { this.offlineMaxPerSender = Math.max(0, offlineMaxPerSender); }
+
+    /**
+     * Different offline recipients one sender may have messages waiting for,
+     * chat.offlineMaxRecipientsPerSender (20).
+     */
+    public int getOfflineMaxRecipientsPerSender() { return offlineMaxRecipientsPerSender; }
+    public void setOfflineMaxRecipientsPerSender(int offlineMaxRecipientsPerSender) {
+        this.offlineMaxRecipientsPerSender = Math.max(0, offlineMaxRecipientsPerSender);
+    }
+
+    /**
+     * Key for session tokens and mesh handshakes, chat.clusterSecret, shared by every server of
+     * the cluster; null when none was given. A server without one makes up a token key of its
+     * own, so its tokens resume sessions on it alone.
+     */
+    public String getClusterSecret() { return clusterSecret; }
+    public void setClusterSecret(String clusterSecret) { this.clusterSecret = clusterSecret; }
+
+    /** How long after it was issued a session token still resumes its session, chat.sessionMaxAgeHours (24). */
+    public long getSessionMaxAgeMillis() { return sessionMaxAgeMillis; }
+    public void setSessionMaxAgeMillis(long sessionMaxAgeMillis) { this.sessionMaxAgeMillis = Math.max(0, sessionMaxAgeMillis); }
+
+    /** Selector threads in NIO mode, chat.reactors (one per core). */
+    public int getReactorThreads() { return reactorThreads; }
+    public void setReactorThreads(int reactorThreads) { this.reactorThreads = Math.max(1, reactorThreads); }
+
+    /**
+     * Threads that run room events, each room pinned to one, chat.roomWorkers (one per core); 0
+     * runs them on the receiving thread.
+     */
+    public int getRoomWorkers() { return roomWorkers; }
+    public void setRoomWorkers(int roomWorkers) { this.roomWorkers = Math.max(0, roomWorkers); }
+}
@@ -0,0 +1,110 @@
+package com.example.voyeger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Maps room names to chat servers. Each server is placed on the ring at many
+ * virtual points, and a room belongs to the first server clockwise from the
+ * room's hash. Adding or removing a server only moves the rooms next to its
+ * points, so everyone else keeps their home server.
+ *
+ * Clients and servers build the ring from the same member list and the same
+ * hash, so they agree on placement without talking to each other.
+ */
+public class ConsistentHashRing {
+    private static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final Set<String> members = new LinkedHashSet<>();
+    private final int virtualNodes;
+
+    public ConsistentHashRing(Collection<String> servers) {
+        this(servers, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ConsistentHashRing(Collection<String> servers, int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+        for (String server : servers) {
+            addServer(server);
+        }
+    }
+
+    public synchronized void add(String server) {
+        addServer(server);
+    }
+
+    private void addServer(String server) {
+        if (members.add(server)) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(server + "#" + i), server);
+            }
+        }
+    }
+
+    public synchronized void remove(String server) {
+        if (members.remove(server)) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.remove(hash(server + "#" + i), server);
+            }
+        }
+    }
+
+    /** The home server for a room, or null if the ring is empty. */
+    public synchronized String nodeFor(String room) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(room));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * All servers in the order a client should try them for this room: the home
+     * server first, then each distinct server met walking clockwise. Failover for a
+     * room therefore always lands on the same next server.
+     */
+    public synchronized List<String> preferenceList(String room) {
+        List<String> order = new ArrayList<>(members.size());
+        if (ring.isEmpty()) {
+            return order;
+        }
+        long h = hash(room);
+        for (String server : ring.tailMap(h, true).values()) {
+            if (!order.contains(server)) {
+                order.add(server);
+                if (order.size() == members.size()) {
+                    return order;
+                }
+            }
+        }
+        for (String server : ring.headMap(h, false).values()) {
+            if (!order.contains(server)) {
+                order.add(server);
+                if (order.size() == members.size()) {
+                    break;
+                }
+            }
+        }
+        return order;
+    }
+
+    public synchronized Set<String> getMembers() {
+        return new LinkedHashSet<>(members);
+    }
+
+    // FNV-1a over UTF-8 bytes with a murmur3 finalizer; stable across JVMs and hosts
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xFF);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
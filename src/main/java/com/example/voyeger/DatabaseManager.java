@@ -13,11 +13,12 @@ import java.util.Map;
 public class DatabaseManager {
     private static DatabaseManager instance;
     private static final String BASE_URL = "http://localhost:5000";
+    private static final AsyncLog LOG = AsyncLog.get("db");
     private HttpClient httpClient;
 
     private DatabaseManager() {
         httpClient = HttpClient.newHttpClient();
-        System.out.println("✅ Connected to backend server: " + BASE_URL);
+        LOG.info("backend.client.ready", "url", BASE_URL);
     }
 
     public static DatabaseManager getInstance() {
@@ -49,7 +50,7 @@ public class DatabaseManager {
 
             return Base64.getEncoder().encodeToString(combined);
         } catch (Exception e) {
-            e.printStackTrace();
+            LOG.error("password.hash.failed", e);
             return null;
         }
     }
@@ -77,7 +78,7 @@ public class DatabaseManager {
             // Compare hashes
             return MessageDigest.isEqual(inputPasswordHash, storedPasswordHash);
         } catch (Exception e) {
-            e.printStackTrace();
+            LOG.error("password.verify.failed", e);
             return false;
         }
     }
@@ -90,7 +91,7 @@ public class DatabaseManager {
             // Hash the password
             String hashedPassword = hashPassword(password);
             if (hashedPassword == null) {
-                System.err.println("❌ Failed to hash password");
+                LOG.warn("user.register.failed", "user", username, "reason", "password hash");
                 return false;
             }
 
@@ -111,20 +112,18 @@ public class DatabaseManager {
 
             HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
 
-            System.out.println("Server response code: " + response.statusCode());
-            System.out.println("Server response body: " + response.body());
+            LOG.debug("user.register.response", "status", response.statusCode(), "body", response.body());
 
             if (response.statusCode() == 200) {
-                System.out.println("✅ User registered successfully: " + username);
+                LOG.info("user.registered", "user", username);
                 return true;
             } else {
-                System.err.println("❌ Registration failed with status: " + response.statusCode());
+                LOG.warn("user.register.failed", "user", username, "status", response.statusCode());
                 return false;
             }
 
         } catch (Exception e) {
-            System.err.println("❌ Error registering user: " + e.getMessage());
-            e.printStackTrace();
+            LOG.error("user.register.failed", "user", username, e);
             return false;
         }
     }
@@ -145,7 +144,7 @@ public class DatabaseManager {
             HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
 
             if (response.statusCode() != 200) {
-                System.out.println("User not found: " + response.statusCode());
+                LOG.info("user.login.rejected", "reason", "not found", "status", response.statusCode());
                 return null; // User not found
             }
 
@@ -157,7 +156,7 @@ public class DatabaseManager {
 
             // Verify password
             if (storedPassword == null || !verifyPassword(password, storedPassword)) {
-                System.out.println("Invalid password");
+                LOG.info("user.login.rejected", "reason", "invalid password");
                 return null; // Invalid password
             }
 
@@ -177,12 +176,11 @@ public class DatabaseManager {
             String coverPhoto = extractJsonValue(jsonResponse, "coverPhotoPath");
             if (coverPhoto != null) user.setCoverPhotoPath(coverPhoto);
 
-            System.out.println("✅ User logged in successfully: " + user.getUsername());
+            LOG.info("user.logged-in", "user", user.getUsername());
             return user;
 
         } catch (Exception e) {
-            System.err.println("❌ Error logging in: " + e.getMessage());
-            e.printStackTrace();
+            LOG.error("user.login.failed", e);
             return null;
         }
     }
@@ -190,7 +188,7 @@ public class DatabaseManager {
     /**
      * Simple JSON value extractor (without external library)
      */
-    private String extractJsonValue(String json, String key) {
+    String extractJsonValue(String json, String key) {
         try {
             String searchKey = "\"" + key + "\":\"";
             int startIndex = json.indexOf(searchKey);
@@ -227,7 +225,7 @@ public class DatabaseManager {
             return response.statusCode() == 200;
 
         } catch (Exception e) {
-            System.err.println("❌ Error updating user profile: " + e.getMessage());
+            LOG.warn("user.update.failed", "error", e.getMessage());
             return false;
         }
     }
@@ -261,17 +259,15 @@ public class DatabaseManager {
             HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
 
             if (response.statusCode() == 200) {
-                System.out.println("✅ Trip saved successfully: " + trip.getTitle());
+                LOG.info("trip.saved", "trip", trip.getId(), "title", trip.getTitle());
                 return true;
             } else {
-                System.err.println("❌ Failed to save trip. Status: " + response.statusCode());
-                System.err.println("Response: " + response.body());
+                LOG.warn("trip.save.failed", "status", response.statusCode(), "body", response.body());
                 return false;
             }
 
         } catch (Exception e) {
-            System.err.println("❌ Error saving trip: " + e.getMessage());
-            e.printStackTrace();
+            LOG.error("trip.save.failed", e);
             return false;
         }
     }
@@ -280,7 +276,7 @@ public class DatabaseManager {
      * Close connection
      */
     public void close() {
-        System.out.println("Backend connection closed");
+        LOG.info("backend.client.closed");
     }
 
     /**
@@ -0,0 +1,251 @@
+package com.example.voyeger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Chat attachments, moved on a side channel so a large file never holds up the chat
+ * messages on the same server. Every ChatServer takes file transfers on its own port
+ * (FileTransferServer, by default the client port + 3000), and the FILE message a
+ * client broadcasts only carries a {@link Ref} to the uploaded file.
+ *
+ * One request per connection, answered by a text line:
+ * <pre>
+ *   PUT id size    OK offset   then the client sends chunks from offset; DONE once all are stored
+ *   GET id offset  OK size     then the server sends chunks from offset
+ *                  ERR reason  the request failed and retrying will not help
+ *                  RETRY reason  a chunk arrived damaged; send the request again
+ * </pre>
+ * Files travel in CHUNK_SIZE chunks, each an int32 length, an int32 CRC32C of the
+ * bytes and then the bytes; only the last chunk may be shorter. Both directions
+ * resume: the server keeps every verified chunk of an upload and answers a repeated
+ * PUT with where to continue, and a download asks for the first chunk it lacks.
+ * Neither side ever holds more than one chunk in memory.
+ */
+final class FileTransfer {
+    static final int CHUNK_SIZE = 256 * 1024;
+    static final int TIMEOUT_MILLIS = 30_000;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final SecureRandom IDS = new SecureRandom();
+
+    private FileTransfer() {
+    }
+
+    /** What a FILE message carries to point at an uploaded file: id:size:host:port:name. */
+    static final class Ref {
+        final String id;
+        final long size;
+        final String server;
+        final String name;
+
+        Ref(String id, long size, String server, String name) {
+            this.id = id;
+            this.size = size;
+            this.server = server;
+            this.name = name;
+        }
+
+        String encode() {
+            return id + ":" + size + ":" + server + ":" + name;
+        }
+
+        /** @return null for a plain file name, as sent by clients from before file transfer */
+        static Ref parse(String body) {
+            String[] parts = body.split(":", 5);
+            if (parts.length != 5 || !isValidId(parts[0])) {
+                return null;
+            }
+            try {
+                return new Ref(parts[0], Long.parseLong(parts[1]), parts[2] + ":" + Integer.parseInt(parts[3]), parts[4]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /** A request the server refused; retrying it will not help. */
+    static final class RejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RejectedException(String message) {
+            super(message);
+        }
+    }
+
+    static String newId() {
+        byte[] random = new byte[16];
+        IDS.nextBytes(random);
+        return HexFormat.of().formatHex(random);
+    }
+
+    /** Ids name files in the server's spool directory, so nothing but 32 hex digits is accepted. */
+    static boolean isValidId(String id) {
+        return id.length() == 32 && id.chars().allMatch(c -> (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'));
+    }
+
+    /** The file transfer address of a chat server listening for clients at host:port. */
+    static String serverFor(String chatServer) {
+        int colon = chatServer.lastIndexOf(':');
+        return chatServer.substring(0, colon) + ":"
+                + (Integer.parseInt(chatServer.substring(colon + 1)) + ChatServerConfig.FILE_PORT_OFFSET);
+    }
+
+    /** Uploads a file, resuming after a dropped connection from the last chunk the server kept. */
+    static void upload(String server, String id, Path file) throws IOException {
+        long size = Files.size(file);
+        IOException failure = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try (Socket socket = connect(server); FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE + 8));
+                InputStream replies = new BufferedInputStream(socket.getInputStream());
+                out.write(("PUT " + id + " " + size + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                long offset = expectOk(ChatFrame.readLine(replies));
+
+                ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+                CRC32C crc = new CRC32C();
+                while (offset < size) {
+                    chunk.clear().limit((int) Math.min(CHUNK_SIZE, size - offset));
+                    while (chunk.hasRemaining()) {
+                        if (in.read(chunk, offset + chunk.position()) < 0) {
+                            throw new RejectedException(file + " shrank during upload");
+                        }
+                    }
+                    crc.reset();
+                    crc.update(chunk.array(), 0, chunk.limit());
+                    out.writeInt(chunk.limit());
+                    out.writeInt((int) crc.getValue());
+                    out.write(chunk.array(), 0, chunk.limit());
+                    offset += chunk.limit();
+                }
+                out.flush();
+                String reply = ChatFrame.readLine(replies);
+                if ("DONE".equals(reply)) {
+                    return;
+                }
+                expectOk(reply);
+                throw new IOException("unexpected reply " + reply);
+            } catch (RejectedException e) {
+                throw e;
+            } catch (IOException e) {
+                failure = e;
+                backOff(attempt);
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Downloads a file into target through a .part file next to it, which a later call
+     * resumes from if this one fails.
+     */
+    static void download(Ref ref, Path target) throws IOException {
+        Path part = target.resolveSibling(target.getFileName() + ".part");
+        IOException failure = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try (Socket socket = connect(ref.server);
+                 FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                // Chunks are written only once verified, so any whole chunk on disk is good
+                long offset = out.size() / CHUNK_SIZE * CHUNK_SIZE;
+                out.truncate(offset);
+                OutputStream request = socket.getOutputStream();
+                request.write(("GET " + ref.id + " " + offset + "\n").getBytes(StandardCharsets.UTF_8));
+                request.flush();
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), CHUNK_SIZE));
+                long size = expectOk(ChatFrame.readLine(in));
+
+                ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+                CRC32C crc = new CRC32C();
+                while (offset < size) {
+                    int length = in.readInt();
+                    int expected = in.readInt();
+                    if (length <= 0 || length > CHUNK_SIZE || offset + length > size) {
+                        throw new IOException("bad chunk length " + length);
+                    }
+                    in.readFully(chunk.array(), 0, length);
+                    crc.reset();
+                    crc.update(chunk.array(), 0, length);
+                    if ((int) crc.getValue() != expected) {
+                        throw new IOException("checksum mismatch at " + offset);
+                    }
+                    chunk.clear().limit(length);
+                    while (chunk.hasRemaining()) {
+                        out.write(chunk, offset + chunk.position());
+                    }
+                    offset += length;
+                }
+            } catch (RejectedException e) {
+                throw e;
+            } catch (IOException e) {
+                failure = e;
+                backOff(attempt);
+                continue;
+            }
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        throw failure;
+    }
+
+    private static Socket connect(String server) throws IOException {
+        int colon = server.lastIndexOf(':');
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1))),
+                    TIMEOUT_MILLIS);
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            return socket;
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /** @return the number after OK */
+    private static long expectOk(String reply) throws IOException {
+        if (reply == null) {
+            throw new IOException("connection closed");
+        }
+        if (reply.startsWith("OK ")) {
+            try {
+                return Long.parseLong(reply.substring(3).trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("bad reply " + reply);
+            }
+        }
+        if (reply.startsWith("ERR ")) {
+            throw new RejectedException(reply.substring(4));
+        }
+        throw new IOException(reply);
+    }
+
+    private static void backOff(int attempt) throws IOException {
+        if (attempt == MAX_ATTEMPTS) {
+            return;
+        }
+        try {
+            TimeUnit.MILLISECONDS.sleep(250L << attempt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package com.example.voyeger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Server side of FileTransfer: stores the attachments clients upload to one ChatServer
+ * and sends them to whoever asks, one virtual thread per transfer.
+ *
+ * An upload goes to id.part, with the CRC32C of every stored chunk in id.crc. A chunk
+ * is written only after its checksum matched, and id.crc is what counts as stored, so
+ * a PUT repeated after a dropped connection continues after the last whole chunk. The
+ * finished file is forced to disk and renamed to id.data. Downloads send each chunk's
+ * header from id.crc and the bytes with FileChannel.transferTo, straight from the page
+ * cache to the socket; the server never reads a file's content into the heap.
+ *
+ * A newer PUT for the same id takes the upload over and closes the older connection,
+ * which is usually a client that has already given up on it. Chunk writes happen under
+ * a lock striped by id, so the two never interleave.
+ *
+ * All files together, finished or not, may take up at most maxTotalBytes: an upload
+ * counts at its full size from its first PUT, and one that would go over is refused.
+ * Once a minute the files of every id whose last chunk arrived more than
+ * retentionMillis ago are deleted, abandoned uploads included, and their bytes become
+ * free again.
+ */
+final class FileTransferServer {
+    private static final AsyncLog LOG = AsyncLog.get("chat.files");
+    private static final int LOCK_STRIPES = 64;
+    private static final long SWEEP_INTERVAL_MILLIS = 60_000;
+    private static final String[] SUFFIXES = {".data", ".part", ".crc"};
+
+    private final String name;
+    private final Path dir;
+    private final long maxBytes;
+    private final long maxTotalBytes;
+    private final long retentionMillis;
+    private final ServerSocketChannel listener;
+    private final Map<String, SocketChannel> uploaders = new ConcurrentHashMap<>();
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    private final ReentrantLock spaceLock = new ReentrantLock();
+    // Guarded by spaceLock: the bytes each id counts against maxTotalBytes, and their sum
+    private final Map<String, Long> charged = new HashMap<>();
+    private long chargedBytes;
+    // Counted here and read by the metrics endpoint
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder uploads = new LongAdder();
+    final LongAdder downloads = new LongAdder();
+    final LongAdder expired = new LongAdder();
+    final LongAdder rejected = new LongAdder();
+
+    private FileTransferServer(String name, Path dir, long maxBytes, long maxTotalBytes, long retentionMillis,
+                               ServerSocketChannel listener) {
+        this.name = name;
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.maxTotalBytes = maxTotalBytes;
+        this.retentionMillis = retentionMillis;
+        this.listener = listener;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    static FileTransferServer start(String name, int port, Path dir, long maxBytes, long maxTotalBytes,
+                                    long retentionMillis) throws IOException {
+        Files.createDirectories(dir);
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(port));
+        FileTransferServer server = new FileTransferServer(name, dir, maxBytes, maxTotalBytes, retentionMillis, listener);
+        server.sweep();
+        Thread acceptor = new Thread(server::acceptLoop, name + "-files");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name + "-files-sweep");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(server::sweep, SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        LOG.info("files.started", "server", name, "port", port, "dir", dir, "storedBytes", server.storedBytes());
+        return server;
+    }
+
+    /** Bytes counted against the total, for the metrics endpoint. */
+    long storedBytes() {
+        spaceLock.lock();
+        try {
+            return chargedBytes;
+        } finally {
+            spaceLock.unlock();
+        }
+    }
+
+    private void acceptLoop() {
+        try {
+            while (true) {
+                SocketChannel channel = listener.accept();
+                Thread.ofVirtual().name(name + "-file-" + channel.socket().getPort()).start(() -> serve(channel));
+            }
+        } catch (IOException e) {
+            LOG.error("files.stopped", "server", name, e);
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        String request = null;
+        try (channel) {
+            channel.socket().setSoTimeout(FileTransfer.TIMEOUT_MILLIS);
+            // Reads go through the socket's stream so the timeout applies; writes use the channel
+            DataInputStream in = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream(),
+                    FileTransfer.CHUNK_SIZE));
+            request = ChatFrame.readLine(in);
+            String[] parts = request != null ? request.split(" ") : new String[0];
+            if (parts.length != 3 || !FileTransfer.isValidId(parts[1])) {
+                reply(channel, "ERR bad request");
+            } else if (parts[0].equals("PUT")) {
+                receive(channel, in, parts[1], Long.parseLong(parts[2]));
+            } else if (parts[0].equals("GET")) {
+                send(channel, parts[1], Long.parseLong(parts[2]));
+            } else {
+                reply(channel, "ERR bad request");
+            }
+        } catch (NumberFormatException e) {
+            LOG.warn("files.bad.request", "request", request);
+        } catch (EOFException e) {
+            LOG.debug("files.closed", "request", request);
+        } catch (IOException e) {
+            LOG.warn("files.failed", "request", request, "error", e.getMessage());
+        }
+    }
+
+    private void receive(SocketChannel channel, DataInputStream in, String id, long size) throws IOException {
+        if (size < 0 || size > maxBytes) {
+            reply(channel, "ERR larger than " + maxBytes + " bytes");
+            return;
+        }
+        Path data = dir.resolve(id + ".data");
+        if (Files.exists(data)) {
+            // Finished already; the client lost the DONE
+            reply(channel, "OK " + size);
+            reply(channel, "DONE");
+            return;
+        }
+        if (!reserve(id, size)) {
+            rejected.increment();
+            LOG.warn("files.full", "id", id, "bytes", size);
+            reply(channel, "ERR server storage full");
+            return;
+        }
+        SocketChannel previous = uploaders.put(id, channel);
+        if (previous != null) {
+            LOG.info("files.upload.replaced", "id", id);
+            previous.close();
+        }
+        ReentrantLock lock = locks[Math.floorMod(id.hashCode(), LOCK_STRIPES)];
+        Path partPath = dir.resolve(id + ".part");
+        try (FileChannel part = FileChannel.open(partPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                     StandardOpenOption.WRITE);
+             FileChannel crcs = FileChannel.open(dir.resolve(id + ".crc"), StandardOpenOption.CREATE,
+                     StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long offset;
+            lock.lock();
+            try {
+                long chunks = Math.min(crcs.size() / 4, part.size() / FileTransfer.CHUNK_SIZE);
+                offset = chunks * FileTransfer.CHUNK_SIZE;
+                crcs.truncate(chunks * 4);
+                part.truncate(offset);
+            } finally {
+                lock.unlock();
+            }
+            reply(channel, "OK " + offset);
+
+            byte[] buffer = new byte[FileTransfer.CHUNK_SIZE];
+            ByteBuffer crcBuffer = ByteBuffer.allocate(4);
+            CRC32C crc = new CRC32C();
+            while (offset < size) {
+                int length = in.readInt();
+                int expected = in.readInt();
+                if (length <= 0 || length > FileTransfer.CHUNK_SIZE || offset + length > size
+                        || (length < FileTransfer.CHUNK_SIZE && offset + length != size)) {
+                    reply(channel, "ERR bad chunk length " + length);
+                    return;
+                }
+                in.readFully(buffer, 0, length);
+                bytesIn.add(8 + length);
+                crc.reset();
+                crc.update(buffer, 0, length);
+                if ((int) crc.getValue() != expected) {
+                    reply(channel, "RETRY checksum mismatch at " + offset);
+                    return;
+                }
+                lock.lock();
+                try {
+                    if (uploaders.get(id) != channel) {
+                        return;
+                    }
+                    writeFully(part, ByteBuffer.wrap(buffer, 0, length), offset);
+                    writeFully(crcs, crcBuffer.clear().putInt(expected).flip(), offset / FileTransfer.CHUNK_SIZE * 4);
+                    offset += length;
+                    if (offset == size) {
+                        part.force(true);
+                        crcs.force(true);
+                        Files.move(partPath, data, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            if (size == 0) {
+                Files.move(partPath, data, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } finally {
+            uploaders.remove(id, channel);
+        }
+        uploads.increment();
+        reply(channel, "DONE");
+        LOG.info("files.uploaded", "server", name, "id", id, "bytes", size);
+    }
+
+    private void send(SocketChannel channel, String id, long offset) throws IOException {
+        FileChannel file;
+        try {
+            file = FileChannel.open(dir.resolve(id + ".data"), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            reply(channel, "ERR no such file");
+            return;
+        }
+        try (file; FileChannel crcs = FileChannel.open(dir.resolve(id + ".crc"), StandardOpenOption.READ)) {
+            long size = file.size();
+            if (offset < 0) {
+                reply(channel, "ERR bad offset");
+                return;
+            }
+            offset = Math.min(offset, size) / FileTransfer.CHUNK_SIZE * FileTransfer.CHUNK_SIZE;
+            reply(channel, "OK " + size);
+
+            ByteBuffer header = ByteBuffer.allocate(8);
+            while (offset < size) {
+                int length = (int) Math.min(FileTransfer.CHUNK_SIZE, size - offset);
+                header.clear().limit(4);
+                readFully(crcs, header, offset / FileTransfer.CHUNK_SIZE * 4);
+                int checksum = header.getInt(0);
+                header.clear();
+                header.putInt(length).putInt(checksum).flip();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                long sent = 0;
+                while (sent < length) {
+                    sent += file.transferTo(offset + sent, length - sent, channel);
+                }
+                bytesOut.add(8 + length);
+                offset += length;
+            }
+        }
+        downloads.increment();
+    }
+
+    // Counts the upload at its full size; a repeated PUT only pays for what it adds
+    private boolean reserve(String id, long size) {
+        spaceLock.lock();
+        try {
+            long had = charged.getOrDefault(id, 0L);
+            long extra = size - had;
+            if (extra > 0 && chargedBytes + extra > maxTotalBytes) {
+                return false;
+            }
+            if (extra > 0) {
+                charged.put(id, size);
+                chargedBytes += extra;
+            }
+            return true;
+        } finally {
+            spaceLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the files of ids untouched for the retention period and recounts what the
+     * rest take up, so files removed or left behind by hand are accounted for too.
+     */
+    private void sweep() {
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        Map<String, Long> sizes = new HashMap<>();
+        Map<String, Long> modified = new HashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                int dot = fileName.indexOf('.');
+                String id = dot > 0 ? fileName.substring(0, dot) : fileName;
+                if (!FileTransfer.isValidId(id)) {
+                    continue;
+                }
+                try {
+                    long size = fileName.endsWith(".crc") ? 0 : Files.size(file);
+                    sizes.merge(id, size, Long::sum);
+                    modified.merge(id, Files.getLastModifiedTime(file).toMillis(), Math::max);
+                } catch (NoSuchFileException e) {
+                    // Renamed or deleted under us; the next sweep sees how it ended
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("files.sweep.failed", "server", name, "error", e.getMessage());
+            return;
+        }
+
+        int deleted = 0;
+        for (Map.Entry<String, Long> file : modified.entrySet()) {
+            String id = file.getKey();
+            if (retentionMillis == 0 || file.getValue() >= cutoff || uploaders.containsKey(id)) {
+                continue;
+            }
+            ReentrantLock lock = locks[Math.floorMod(id.hashCode(), LOCK_STRIPES)];
+            lock.lock();
+            try {
+                if (uploaders.containsKey(id)) {
+                    continue;
+                }
+                for (String suffix : SUFFIXES) {
+                    Files.deleteIfExists(dir.resolve(id + suffix));
+                }
+                sizes.remove(id);
+                deleted++;
+            } catch (IOException e) {
+                LOG.warn("files.delete.failed", "id", id, "error", e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+        }
+        expired.add(deleted);
+
+        spaceLock.lock();
+        try {
+            // An upload in progress keeps counting at its full size
+            for (Map.Entry<String, Long> upload : charged.entrySet()) {
+                if (uploaders.containsKey(upload.getKey())) {
+                    sizes.merge(upload.getKey(), upload.getValue(), Math::max);
+                }
+            }
+            charged.clear();
+            charged.putAll(sizes);
+            chargedBytes = sizes.values().stream().mapToLong(Long::longValue).sum();
+        } finally {
+            spaceLock.unlock();
+        }
+        if (deleted > 0) {
+            LOG.info("files.expired", "server", name, "files", deleted, "storedBytes", storedBytes());
+        }
+    }
+
+    private static void reply(SocketChannel channel, String line) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    private static void writeFully(FileChannel file, ByteBuffer bytes, long position) throws IOException {
+        while (bytes.hasRemaining()) {
+            position += file.write(bytes, position);
+        }
+    }
+
+    private static void readFully(FileChannel file, ByteBuffer bytes, long position) throws IOException {
+        while (bytes.hasRemaining()) {
+            int read = file.read(bytes, position);
+            if (read < 0) {
+                throw new EOFException("checksum file too short");
+            }
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.voyeger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The writer side of a thread-per-connection client: takes frames off its OutboundQueue
+ * and writes them to the socket, coalescing whatever arrives close together into one
+ * socket write.
+ *
+ * Once the first frame of a batch is in hand the writer lets lingerMillis pass (unless
+ * that batch is already flushBytes) and then writes everything queued by then with one
+ * flush. A busy room that fans out a burst of messages thus costs each member one
+ * write and a few packets instead of one per message, and clients read several frames
+ * per read. A quiet connection pays at most the linger in extra latency; 0 flushes
+ * every batch as soon as it is drained. out should buffer flushBytes, so a batch
+ * larger than that goes out in flushBytes writes.
+ *
+ * A writer either owns a thread for the life of the connection (run) or is started on
+ * demand when frames are queued and gives its thread back once the queue is empty
+ * (writeQueued); the caller makes sure only one of those runs at a time.
+ */
+final class FrameWriter {
+    static final int MAX_BATCH = 256;
+
+    private final OutboundQueue queue;
+    private final OutputStream out;
+    private final boolean binary;
+    private final long lingerNanos;
+    private final int flushBytes;
+
+    FrameWriter(OutboundQueue queue, OutputStream out, boolean binary, long lingerMillis, int flushBytes) {
+        this.queue = queue;
+        this.out = out;
+        this.binary = binary;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.flushBytes = flushBytes;
+    }
+
+    /** Writes until the queue is closed and empty. */
+    void run() throws IOException, InterruptedException {
+        List<ChatFrame> batch = new ArrayList<>(MAX_BATCH);
+        while (queue.awaitAndDrain(batch, MAX_BATCH)) {
+            writeBatch(batch);
+        }
+    }
+
+    /** Writes what is queued, lingering as run() does, and returns once the queue is empty. */
+    void writeQueued() throws IOException, InterruptedException {
+        List<ChatFrame> batch = new ArrayList<>(MAX_BATCH);
+        while (queue.drainTo(batch, MAX_BATCH) > 0) {
+            writeBatch(batch);
+        }
+    }
+
+    private void writeBatch(List<ChatFrame> batch) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + lingerNanos;
+        int pending = write(batch);
+        // Sleep out the linger rather than wait on the queue, which would wake the
+        // writer for every frame offered; frames queued meanwhile wake nobody
+        long remaining;
+        while (pending < flushBytes && (remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        while (queue.drainTo(batch, MAX_BATCH) > 0) {
+            write(batch);
+        }
+        out.flush();
+        queue.recordWrite();
+    }
+
+    private int write(List<ChatFrame> batch) throws IOException {
+        int bytes = 0;
+        for (ChatFrame frame : batch) {
+            byte[] encoded = frame.encode(binary);
+            out.write(encoded);
+            bytes += encoded.length;
+        }
+        batch.clear();
+        return bytes;
+    }
+}
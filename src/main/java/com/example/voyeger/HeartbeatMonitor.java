@@ -0,0 +1,90 @@
+package com.example.voyeger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Finds client connections that have gone quiet and evicts the dead ones, using one
+ * TimingWheel for every connection of a server.
+ *
+ * Reading from a connection only records the time. Each connection has one pending
+ * check on the wheel, due when it would have been idle for idleTimeout. If something
+ * arrived in the meantime the check just moves to the new due time; if not, the
+ * server sends PING and looks again after pongTimeout, and a connection that is still
+ * silent then is closed. A half-open connection is therefore gone within
+ * idleTimeout + pongTimeout (plus a tick), and the per-message cost of all this is one
+ * timestamp, whatever the number of connections.
+ */
+class HeartbeatMonitor {
+    private static final AsyncLog LOG = AsyncLog.get("heartbeat");
+
+    /** A connection the monitor can watch. */
+    interface Peer {
+        /** System.nanoTime() of the last data received. */
+        long lastActivityNanos();
+
+        /** Queues a PING; must not block. */
+        void sendPing();
+
+        void close();
+
+        boolean isClosed();
+
+        String getRemoteAddress();
+    }
+
+    private final TimingWheel wheel;
+    private final long idleNanos;
+    private final long pongTimeoutNanos;
+    private final LongAdder evicted = new LongAdder();
+
+    HeartbeatMonitor(String name, long idleTimeoutMillis, long pongTimeoutMillis) {
+        this.wheel = new TimingWheel(name + "-heartbeat", 250, TimeUnit.MILLISECONDS, 512);
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.pongTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(pongTimeoutMillis);
+    }
+
+    /** Starts watching a newly accepted connection. */
+    void watch(Peer peer) {
+        wheel.schedule(new Check(peer), idleNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Connections closed for not answering a PING, since startup. */
+    long evictedCount() {
+        return evicted.sum();
+    }
+
+    void stop() {
+        wheel.stop();
+    }
+
+    // Runs on the wheel thread
+    private final class Check implements Runnable {
+        private final Peer peer;
+        private boolean pinged;
+
+        Check(Peer peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        public void run() {
+            if (peer.isClosed()) {
+                return;
+            }
+            long idle = System.nanoTime() - peer.lastActivityNanos();
+            if (idle < idleNanos) {
+                pinged = false;
+                wheel.schedule(this, idleNanos - idle, TimeUnit.NANOSECONDS);
+            } else if (!pinged) {
+                pinged = true;
+                peer.sendPing();
+                wheel.schedule(this, pongTimeoutNanos, TimeUnit.NANOSECONDS);
+            } else {
+                evicted.increment();
+                LOG.info("peer.evicted", "remote", peer.getRemoteAddress(), "idleMillis", TimeUnit.NANOSECONDS.toMillis(idle));
+                peer.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.voyeger;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent log-linear histogram in the style of HdrHistogram: every power-of-two
+ * range is split into 64 equal sub-buckets, so any recorded value is reported within
+ * about 1.6% of its true size from 1 up to Long.MAX_VALUE in a fixed 30 KB of counters.
+ * Recording is one atomic increment and never allocates, so many threads can record
+ * into one histogram.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int HALF_SUB_BUCKETS = 1 << (SUB_BUCKET_BITS - 1);
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * HALF_SUB_BUCKETS + 2 * HALF_SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(indexOf(value));
+        totalCount.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    // Values below 128 get their own bucket; above that the top 7 bits pick one
+    static int indexOf(long value) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return (shift << (SUB_BUCKET_BITS - 1)) + (int) (value >>> shift);
+    }
+
+    /** Largest value that lands in the bucket, which is what percentiles report. */
+    static long highestValueAt(int index) {
+        if (index < 2 * HALF_SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index >> (SUB_BUCKET_BITS - 1)) - 1;
+        long subBucket = index - ((long) shift << (SUB_BUCKET_BITS - 1));
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    long getTotalCount() {
+        return totalCount.sum();
+    }
+
+    long getSum() {
+        return sum.sum();
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    double getMean() {
+        long count = totalCount.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /** Adds everything recorded in other to this histogram. */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        totalCount.add(other.totalCount.sum());
+        sum.add(other.sum.sum());
+        max.accumulate(other.max.get());
+    }
+
+    /** Value at or below which the given percentage (0-100) of recorded values fall. */
+    long getValueAtPercentile(double percentile) {
+        long count = totalCount.sum();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueAt(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Prints the percentile distribution the way HdrHistogram does: rows at 0%, 50%,
+     * 75%, 87.5% and so on, halving the remaining distance each time, with values
+     * divided by scale (e.g. 1000 to print microseconds as milliseconds).
+     */
+    void printPercentiles(PrintStream out, double scale) {
+        out.printf("%12s %14s %10s %14s%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)");
+        long count = totalCount.sum();
+        if (count == 0) {
+            return;
+        }
+        double percentile = 0;
+        double step = 50;
+        while (true) {
+            long value = getValueAtPercentile(percentile);
+            long below = countAtOrBelow(value);
+            out.printf("%12.3f %14.12f %10d %14.2f%n", value / scale, percentile / 100, below,
+                    percentile < 100 ? 100 / (100 - percentile) : Double.POSITIVE_INFINITY);
+            if (below >= count || percentile >= 100) {
+                break;
+            }
+            percentile += step;
+            step /= 2;
+            if (step < 1e-6) {
+                percentile = 100;
+            }
+        }
+        out.printf("#[Mean = %.3f, Max = %.3f, Total count = %d]%n", getMean() / scale, getMax() / scale, count);
+    }
+
+    private long countAtOrBelow(long value) {
+        long seen = 0;
+        for (int i = 0, last = indexOf(value); i <= last; i++) {
+            seen += counts.get(i);
+        }
+        return seen;
+    }
+}
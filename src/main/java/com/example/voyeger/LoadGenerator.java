@@ -0,0 +1,442 @@
+package com.example.voyeger;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Headless load test for ChatServer and PrivateChatServer. It opens thousands of
+ * simulated clients on virtual threads that speak the same text protocols as the
+ * JavaFX controllers, then reports throughput and end-to-end delivery latency.
+ *
+ * Group mode (the default) puts load.roomSize clients in each room. Each client sends
+ * JOIN:user:room, then MESSAGE lines at load.rate per second, and sends LEAVE:user
+ * before it disconnects. A room is served by its home server on the ConsistentHashRing
+ * built from chat.servers, the same as in MessengerController. With -Dload.spread=true
+ * the members are dealt across all the servers instead, so every message crosses the
+ * server mesh. Private mode answers ENTER_USERNAME and sends PRIVATE messages to a
+ * partner client on load.privateServer.
+ *
+ * Each body carries this run's id and the time the message was due, so a receiving
+ * client in the same process can measure delivery latency. History replayed on join,
+ * from this run or an earlier one, is not counted. Sends follow a fixed schedule, not the last reply,
+ * so a stalled server shows up as latency instead of being hidden by a slower send
+ * rate. Nothing received during the first load.warmup seconds is counted.
+ *
+ * Options (system properties):
+ *   load.mode          group | private (group)
+ *   load.clients       number of simulated clients (1000)
+ *   load.roomSize      clients per room in group mode (50)
+ *   load.rate          messages per second per client (1.0)
+ *   load.messageBytes  message body size (100)
+ *   load.duration      measured seconds after warmup (60)
+ *   load.warmup        seconds of unmeasured load first (10)
+ *   load.ramp          seconds over which clients connect (5)
+ *   load.churn         reconnects per second across all clients (0)
+ *   load.spread        deal room members across servers (false)
+ *   load.privateServer host:port of PrivateChatServer (localhost:8888)
+ *   load.reportInterval seconds between progress lines (5)
+ *   load.maxP99Millis  exit with status 1 if p99 is above this (off)
+ *
+ * Example:
+ * {@code java -Dload.clients=5000 -Dload.rate=0.5 -Dload.churn=20 com.example.voyeger.LoadGenerator}
+ */
+public class LoadGenerator {
+
+    private static final String STAMP_PREFIX = "lg";
+
+    private final boolean privateMode;
+    private final int clientCount;
+    private final int roomSize;
+    private final long sendIntervalNanos;
+    private final int messageBytes;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final long rampNanos;
+    private final double churnPerSecond;
+    private final boolean spread;
+    private final String privateServer;
+    private final int reportIntervalSeconds;
+    private final double maxP99Millis;
+
+    private final String runId = Integer.toHexString(ThreadLocalRandom.current().nextInt() | 0x10000000);
+    private final List<Client> clients = new ArrayList<>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicReference<LatencyHistogram> intervalLatency = new AtomicReference<>(new LatencyHistogram());
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder unexpectedDisconnects = new LongAdder();
+    private final LongAdder churned = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private volatile boolean running = true;
+    private volatile long measureFromNanos;
+
+    LoadGenerator() {
+        privateMode = System.getProperty("load.mode", "group").trim().equalsIgnoreCase("private");
+        clientCount = Integer.getInteger("load.clients", 1000);
+        roomSize = Math.max(1, Integer.getInteger("load.roomSize", 50));
+        double rate = Double.parseDouble(System.getProperty("load.rate", "1.0"));
+        sendIntervalNanos = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : Long.MAX_VALUE;
+        messageBytes = Integer.getInteger("load.messageBytes", 100);
+        durationNanos = TimeUnit.SECONDS.toNanos(Integer.getInteger("load.duration", 60));
+        warmupNanos = TimeUnit.SECONDS.toNanos(Integer.getInteger("load.warmup", 10));
+        rampNanos = TimeUnit.SECONDS.toNanos(Integer.getInteger("load.ramp", 5));
+        churnPerSecond = Double.parseDouble(System.getProperty("load.churn", "0"));
+        spread = Boolean.getBoolean("load.spread");
+        privateServer = System.getProperty("load.privateServer", "localhost:8888");
+        reportIntervalSeconds = Math.max(1, Integer.getInteger("load.reportInterval", 5));
+        maxP99Millis = Double.parseDouble(System.getProperty("load.maxP99Millis", "0"));
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        LoadGenerator generator = new LoadGenerator();
+        boolean passed = generator.run();
+        System.exit(passed ? 0 : 1);
+    }
+
+    /** @return false when load.maxP99Millis is set and the measured p99 is above it */
+    boolean run() throws InterruptedException {
+        List<String> servers = ChatServerConfig.clusterServers();
+        ConsistentHashRing ring = new ConsistentHashRing(servers);
+        for (int i = 0; i < clientCount; i++) {
+            if (privateMode) {
+                // Pair clients up; an odd last client talks to the first
+                int partner = (i ^ 1) < clientCount ? i ^ 1 : 0;
+                clients.add(new Client("lg" + i, null, "lg" + partner, privateServer));
+            } else {
+                String room = "load-" + (i / roomSize);
+                String server = spread ? servers.get(i % servers.size()) : ring.nodeFor(room);
+                clients.add(new Client("lg" + i, room, null, server));
+            }
+        }
+        System.out.printf("load: mode=%s clients=%d %s rate=%.2f/s bytes=%d warmup=%ds duration=%ds churn=%.1f/s%n",
+                privateMode ? "private" : "group", clientCount,
+                privateMode ? "server=" + privateServer : "roomSize=" + roomSize + " servers=" + servers,
+                sendIntervalNanos == Long.MAX_VALUE ? 0 : TimeUnit.SECONDS.toNanos(1) / (double) sendIntervalNanos,
+                messageBytes, TimeUnit.NANOSECONDS.toSeconds(warmupNanos),
+                TimeUnit.NANOSECONDS.toSeconds(durationNanos), churnPerSecond);
+
+        long start = System.nanoTime();
+        measureFromNanos = start + rampNanos + warmupNanos;
+        long end = measureFromNanos + durationNanos;
+
+        List<Thread> threads = new ArrayList<>(clients.size());
+        long rampStep = clients.isEmpty() ? 0 : rampNanos / clients.size();
+        for (Client client : clients) {
+            threads.add(Thread.ofVirtual().name(client.user).start(client));
+            if (rampStep > 0) {
+                TimeUnit.NANOSECONDS.sleep(rampStep);
+            }
+        }
+        Thread churner = churnPerSecond > 0 ? Thread.ofVirtual().name("churn").start(this::churn) : null;
+
+        long lastSent = 0;
+        long lastReceived = 0;
+        long lastReport = System.nanoTime();
+        while (System.nanoTime() < end) {
+            TimeUnit.NANOSECONDS.sleep(Math.min(TimeUnit.SECONDS.toNanos(reportIntervalSeconds), end - System.nanoTime()));
+            long now = System.nanoTime();
+            double seconds = (now - lastReport) / 1e9;
+            LatencyHistogram interval = intervalLatency.getAndSet(new LatencyHistogram());
+            long sentNow = sent.sum();
+            long receivedNow = received.sum();
+            System.out.printf("t=%4ds %s connected=%d sent/s=%.0f delivered/s=%.0f p50=%.3fms p99=%.3fms max=%.3fms%n",
+                    TimeUnit.NANOSECONDS.toSeconds(now - start), now < measureFromNanos ? "warmup  " : "measured",
+                    connectedCount(), (sentNow - lastSent) / seconds, (receivedNow - lastReceived) / seconds,
+                    interval.getValueAtPercentile(50) / 1000.0, interval.getValueAtPercentile(99) / 1000.0,
+                    interval.getMax() / 1000.0);
+            lastSent = sentNow;
+            lastReceived = receivedNow;
+            lastReport = now;
+        }
+
+        running = false;
+        if (churner != null) {
+            churner.interrupt();
+        }
+        for (Client client : clients) {
+            client.leave();
+        }
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        return report(TimeUnit.NANOSECONDS.toSeconds(durationNanos));
+    }
+
+    private boolean report(long seconds) {
+        long count = latency.getTotalCount();
+        double p99 = latency.getValueAtPercentile(99) / 1000.0;
+        System.out.println();
+        System.out.printf("sent=%d delivered=%d connects=%d connectFailures=%d disconnects=%d churned=%d rejected=%d%n",
+                sent.sum(), received.sum(), connects.sum(), connectFailures.sum(), unexpectedDisconnects.sum(),
+                churned.sum(), rejected.sum());
+        System.out.printf("measured deliveries=%d throughput=%.0f msg/s%n", count, count / (double) Math.max(1, seconds));
+        System.out.printf("latency ms: p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f p99.99=%.3f max=%.3f%n",
+                latency.getValueAtPercentile(50) / 1000.0, latency.getValueAtPercentile(90) / 1000.0, p99,
+                latency.getValueAtPercentile(99.9) / 1000.0, latency.getValueAtPercentile(99.99) / 1000.0,
+                latency.getMax() / 1000.0);
+        System.out.println();
+        latency.printPercentiles(System.out, 1000.0);
+
+        if (maxP99Millis > 0 && (count == 0 || p99 > maxP99Millis)) {
+            System.out.printf(Locale.ROOT, "FAILED: p99 %.3fms is above load.maxP99Millis=%.3f%n", p99, maxP99Millis);
+            return false;
+        }
+        return true;
+    }
+
+    private int connectedCount() {
+        int connected = 0;
+        for (Client client : clients) {
+            if (client.isConnected()) {
+                connected++;
+            }
+        }
+        return connected;
+    }
+
+    /** Drops random connected clients at load.churn per second; each reconnects straight away. */
+    private void churn() {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / churnPerSecond);
+        long next = System.nanoTime();
+        try {
+            while (running) {
+                next += interval;
+                TimeUnit.NANOSECONDS.sleep(Math.max(0, next - System.nanoTime()));
+                Client client = clients.get(ThreadLocalRandom.current().nextInt(clients.size()));
+                if (client.isConnected()) {
+                    client.leave();
+                    churned.increment();
+                }
+            }
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void recordDelivery(String body, long joinedNanos) {
+        // Body is lg<runId>:<dueNanos> followed by padding
+        if (!body.startsWith(STAMP_PREFIX + runId + ":")) {
+            return;
+        }
+        int from = STAMP_PREFIX.length() + runId.length() + 1;
+        int to = body.indexOf(' ', from);
+        long due;
+        try {
+            due = Long.parseLong(to < 0 ? body.substring(from) : body.substring(from, to));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (due < joinedNanos) {
+            // History replayed on join, not a live delivery
+            return;
+        }
+        received.increment();
+        if (due >= measureFromNanos) {
+            long micros = (System.nanoTime() - due) / 1000;
+            latency.record(micros);
+            intervalLatency.get().record(micros);
+        }
+    }
+
+    private String body(long dueNanos) {
+        StringBuilder body = new StringBuilder(Math.max(messageBytes, 32));
+        body.append(STAMP_PREFIX).append(runId).append(':').append(dueNanos).append(' ');
+        while (body.length() < messageBytes) {
+            body.append('x');
+        }
+        return body.toString();
+    }
+
+    /** One simulated user. Its virtual thread sends; a second one reads. */
+    private final class Client implements Runnable {
+        final String user;
+        final String room;
+        final String partner;
+        final String server;
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private volatile Socket socket;
+        private volatile Writer out;
+        private volatile boolean leaving;
+
+        Client(String user, String room, String partner, String server) {
+            this.user = user;
+            this.room = room;
+            this.partner = partner;
+            this.server = server;
+        }
+
+        boolean isConnected() {
+            Socket s = socket;
+            return s != null && !s.isClosed() && out != null;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    session();
+                } catch (IOException e) {
+                    if (running && !leaving) {
+                        if (socket == null) {
+                            connectFailures.increment();
+                        } else {
+                            unexpectedDisconnects.increment();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    close();
+                }
+                if (running && !leaving) {
+                    // Back off after a failure so a dead server is not hammered
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(500 + ThreadLocalRandom.current().nextInt(500));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                leaving = false;
+            }
+        }
+
+        private void session() throws IOException, InterruptedException {
+            int colon = server.lastIndexOf(':');
+            socket = null;
+            Socket s = new Socket();
+            s.setTcpNoDelay(true);
+            s.connect(new InetSocketAddress(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1))), 5000);
+            socket = s;
+            connects.increment();
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            Writer writer = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+
+            if (partner != null) {
+                String prompt = in.readLine();
+                if (!"ENTER_USERNAME".equals(prompt)) {
+                    throw new IOException("unexpected greeting " + prompt);
+                }
+                writer.write(user + "\n");
+                writer.flush();
+                String reply = in.readLine();
+                while (reply != null && reply.startsWith("USERS:")) {
+                    // Another login's user list can arrive before our SUCCESS
+                    reply = in.readLine();
+                }
+                if (reply == null || !reply.startsWith("SUCCESS")) {
+                    rejected.increment();
+                    throw new IOException("login rejected: " + reply);
+                }
+            } else {
+                writer.write("JOIN:" + user + ":" + room + "\n");
+                writer.flush();
+            }
+            out = writer;
+
+            long joined = System.nanoTime();
+            Thread reader = Thread.ofVirtual().name(user + "-reader").start(() -> read(in, joined));
+            try {
+                // Random phase so clients do not all send on the same tick
+                long next = System.nanoTime() + ThreadLocalRandom.current().nextLong(
+                        Math.max(1, Math.min(sendIntervalNanos, TimeUnit.SECONDS.toNanos(10))));
+                while (running && !leaving && reader.isAlive()) {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(Math.min(wait, TimeUnit.MILLISECONDS.toNanos(200)));
+                        continue;
+                    }
+                    String line = partner != null
+                            ? "PRIVATE:" + partner + ":" + body(next)
+                            : "MESSAGE:" + user + ":00:00:" + body(next);
+                    if (!write(line)) {
+                        break;
+                    }
+                    sent.increment();
+                    next += sendIntervalNanos;
+                }
+            } finally {
+                close();
+                reader.join(1000);
+            }
+        }
+
+        private void read(BufferedReader in, long joinedNanos) {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (partner == null && line.startsWith("MESSAGE:")) {
+                        // MESSAGE:sender:HH:mm:content
+                        String[] parts = line.substring(8).split(":", 4);
+                        if (parts.length == 4) {
+                            recordDelivery(parts[3], joinedNanos);
+                        }
+                    } else if (partner != null && line.startsWith("MESSAGE:")) {
+                        // MESSAGE:sender:content
+                        String[] parts = line.substring(8).split(":", 2);
+                        if (parts.length == 2) {
+                            recordDelivery(parts[1], joinedNanos);
+                        }
+                    } else if (line.equals("PING")) {
+                        // Only sent to a client that went quiet, e.g. with a very low load.rate
+                        write("PONG");
+                    }
+                }
+            } catch (IOException ignored) {
+                // Closed by leave() or the server; the sender notices and reconnects
+            }
+        }
+
+        private boolean write(String line) {
+            writeLock.lock();
+            try {
+                Writer writer = out;
+                if (writer == null) {
+                    return false;
+                }
+                writer.write(line);
+                writer.write('\n');
+                writer.flush();
+                return true;
+            } catch (IOException e) {
+                return false;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /** Says goodbye the way the real clients do and closes the connection. */
+        void leave() {
+            leaving = true;
+            write(partner != null ? "DISCONNECT" : "LEAVE:" + user);
+            close();
+        }
+
+        private void close() {
+            writeLock.lock();
+            try {
+                out = null;
+                Socket s = socket;
+                if (s != null) {
+                    s.close();
+                }
+            } catch (IOException ignored) {
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.voyeger;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Remembers the most recent message ids a server has delivered so a copy that
+ * arrives twice (a mesh batch resent after a reconnect, or the same message reaching
+ * a server over two paths) is delivered once. Oldest ids are forgotten first.
+ */
+class MessageIdFilter {
+    private final long[] ring;
+    private final Set<Long> seen;
+    private final ReentrantLock lock = new ReentrantLock();
+    private int next;
+    private int size;
+
+    MessageIdFilter(int capacity) {
+        this.ring = new long[capacity];
+        this.seen = new HashSet<>(capacity * 2);
+    }
+
+    /** @return true the first time an id is seen, false for a duplicate */
+    boolean firstSeen(long id) {
+        lock.lock();
+        try {
+            if (!seen.add(id)) {
+                return false;
+            }
+            if (size == ring.length) {
+                seen.remove(ring[next]);
+            } else {
+                size++;
+            }
+            ring[next] = id;
+            next = (next + 1) % ring.length;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,598 @@
+package com.example.voyeger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only on-disk log of the room messages one ChatServer delivered, so room
+ * history survives a restart.
+ *
+ * The log is a directory of numbered segment files. Each segment is preallocated and
+ * memory mapped; it starts with a header (MAGIC, FORMAT), and its records are ChatFrame
+ * binary frames written back to back, each followed by a CRC32C of the frame, and a
+ * zero length prefix marks the end. The checksum is what finds the end after a crash:
+ * a record torn mid-write is followed by the preallocated zeros, which could otherwise
+ * decode as a frame. Segments from before the header have no checksums and are read
+ * as they are. When the active segment is full it is sealed, its sparse
+ * index is written next to it as a .index file, and a new segment is started. Once a
+ * minute, and at every roll, sealed segments whose newest message is older than the
+ * retention period are deleted; an active segment that old is sealed first, so a room
+ * gone quiet does not keep its messages past the retention period.
+ *
+ * The sparse index keeps, per room and segment, one entry (room sequence, timestamp,
+ * file position) for the room's first message and every INDEX_INTERVAL-th after it. A
+ * query for "room R after seq X" or "before time T" jumps to the nearest entry and
+ * reads forward from there, touching a few pages instead of the whole segment.
+ *
+ * The broadcast path only enqueues. One writer thread copies whatever has queued into
+ * the mapping in a batch and forces it to disk at most every fsync interval, so a crash
+ * loses at most that interval. If the writer falls a full queue behind, new messages
+ * are dropped from the log (never from the live broadcast) and counted.
+ */
+class MessageLog {
+    private static final AsyncLog LOG = AsyncLog.get("chat.log");
+    private static final int INDEX_INTERVAL = 32;
+    private static final int QUEUE_CAPACITY = 65_536;
+    private static final int MAX_BATCH = 1024;
+    private static final long RETENTION_CHECK_MILLIS = 60_000;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".index";
+    // "VLOG"; larger than any frame length, so it cannot be mistaken for the first record
+    private static final int MAGIC = 0x564C4F47;
+    private static final int FORMAT = 2;
+    private static final int HEADER_BYTES = 8;
+    private static final int CHECKSUM_BYTES = 4;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long retentionMillis;
+    private final long fsyncMillis;
+    private final BlockingQueue<ChatFrame> pending = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final LongAdder dropped = new LongAdder();
+    // Guards the segment list and every segment's index; record bytes are read without it
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<Segment> segments = new ArrayList<>();
+    private Thread writer;
+    private volatile boolean closed;
+
+    MessageLog(Path dir, int segmentBytes, long retentionMillis, long fsyncMillis) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.retentionMillis = retentionMillis;
+        this.fsyncMillis = fsyncMillis;
+        Files.createDirectories(dir);
+        recover();
+    }
+
+    private void recover() throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    numbers.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    LOG.warn("segment.ignored", "file", file);
+                }
+            }
+        }
+        Collections.sort(numbers);
+        for (int i = 0; i < numbers.size(); i++) {
+            boolean active = i == numbers.size() - 1;
+            segments.add(Segment.open(segmentPath(numbers.get(i)), active ? segmentBytes : -1, active));
+        }
+        if (segments.isEmpty()) {
+            segments.add(Segment.open(segmentPath(1), segmentBytes, true));
+        }
+        LOG.info("log.recovered", "dir", dir, "segments", segments.size(), "bytes", active().end);
+    }
+
+    private Path segmentPath(long number) {
+        return dir.resolve(String.format("%020d%s", number, SEGMENT_SUFFIX));
+    }
+
+    private Segment active() {
+        return segments.get(segments.size() - 1);
+    }
+
+    void start() {
+        writer = new Thread(this::writeLoop, "chat-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Queues a frame for the log. Never blocks. */
+    void append(ChatFrame frame) {
+        if (!pending.offer(frame)) {
+            dropped.increment();
+        }
+    }
+
+    long droppedCount() {
+        return dropped.sum();
+    }
+
+    private void writeLoop() {
+        List<ChatFrame> batch = new ArrayList<>(MAX_BATCH);
+        long lastSync = System.currentTimeMillis();
+        long lastRetention = lastSync;
+        boolean dirty = false;
+        long reportedDrops = 0;
+        while (!closed || !pending.isEmpty()) {
+            try {
+                ChatFrame first = pending.poll(Math.max(1, fsyncMillis), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    pending.drainTo(batch, MAX_BATCH - 1);
+                    write(batch);
+                    batch.clear();
+                    dirty = true;
+                }
+                long now = System.currentTimeMillis();
+                if (dirty && now - lastSync >= fsyncMillis) {
+                    active().buffer.force();
+                    lastSync = now;
+                    dirty = false;
+                }
+                if (now - lastRetention >= RETENTION_CHECK_MILLIS) {
+                    expire(now);
+                    lastRetention = now;
+                }
+                long drops = dropped.sum();
+                if (drops != reportedDrops) {
+                    LOG.warn("log.dropped", "count", drops - reportedDrops);
+                    reportedDrops = drops;
+                }
+            } catch (InterruptedException e) {
+                closed = true;
+            } catch (IOException | UncheckedIOException e) {
+                LOG.error("log.write.failed", "dir", dir, e);
+                batch.clear();
+            }
+        }
+        active().buffer.force();
+    }
+
+    private void write(List<ChatFrame> batch) throws IOException {
+        lock.lock();
+        try {
+            for (ChatFrame frame : batch) {
+                byte[] record = frame.toBinary();
+                // Keep room for the header, the checksum and the zero length that marks the end
+                if (HEADER_BYTES + record.length + CHECKSUM_BYTES + 4 > segmentBytes) {
+                    LOG.warn("log.record.too-large", "room", frame.getRoom(), "bytes", record.length);
+                    continue;
+                }
+                Segment segment = active();
+                if (segment.end + record.length + segment.checksumBytes + 4 > segment.capacity) {
+                    roll();
+                    segment = active();
+                }
+                segment.append(frame, record);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Writer thread: applies the retention period to segments a roll has not come to
+    private void expire(long now) throws IOException {
+        lock.lock();
+        try {
+            if (active().end > active().start && active().lastTime < now - retentionMillis) {
+                roll();
+            } else {
+                deleteExpired(now);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Caller holds the lock
+    private void roll() throws IOException {
+        Segment sealed = active();
+        sealed.seal();
+        segments.add(Segment.open(segmentPath(sealed.number + 1), segmentBytes, true));
+        LOG.info("log.rolled", "segment", sealed.number + 1);
+        deleteExpired(System.currentTimeMillis());
+    }
+
+    // Caller holds the lock
+    private void deleteExpired(long now) {
+        long cutoff = now - retentionMillis;
+        Iterator<Segment> it = segments.iterator();
+        while (it.hasNext()) {
+            Segment segment = it.next();
+            if (segment == active() || segment.lastTime >= cutoff) {
+                break;
+            }
+            it.remove();
+            segment.delete();
+            LOG.info("log.retention.deleted", "segment", segment.number);
+        }
+    }
+
+    /** Rooms with at least one message in the log. */
+    Set<String> rooms() {
+        lock.lock();
+        try {
+            Set<String> rooms = new HashSet<>();
+            for (Segment segment : segments) {
+                rooms.addAll(segment.rooms.keySet());
+            }
+            return rooms;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Up to limit messages of the room with a sequence above afterSeq, oldest first. */
+    List<ChatFrame> after(String room, long afterSeq, int limit) {
+        if (limit <= 0) {
+            return new ArrayList<>();
+        }
+        List<Segment> targets = new ArrayList<>();
+        List<Integer> starts = new ArrayList<>();
+        List<Integer> ends = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Segment segment : segments) {
+                RoomEntries entries = segment.rooms.get(room);
+                if (entries != null && entries.lastSeq > afterSeq) {
+                    targets.add(segment);
+                    starts.add(entries.positions[Math.max(0, entries.floorSeq(afterSeq + 1))]);
+                    ends.add(segment.end);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        List<ChatFrame> result = new ArrayList<>();
+        for (int i = 0; i < targets.size() && result.size() < limit; i++) {
+            targets.get(i).scan(starts.get(i), ends.get(i), frame -> {
+                if (frame.getRoom().equals(room) && frame.getSeq() > afterSeq && result.size() < limit) {
+                    result.add(frame);
+                }
+                return result.size() < limit;
+            });
+        }
+        return result;
+    }
+
+    /** The newest limit messages of the room sent before the given time, oldest first. */
+    List<ChatFrame> before(String room, long beforeTime, int limit) {
+        if (limit <= 0) {
+            return new ArrayList<>();
+        }
+        List<Segment> targets = new ArrayList<>();
+        List<int[]> ranges = new ArrayList<>();
+        lock.lock();
+        try {
+            // Newest segment first; stop once the index guarantees enough messages
+            int covered = 0;
+            for (int s = segments.size() - 1; s >= 0 && covered < limit; s--) {
+                Segment segment = segments.get(s);
+                RoomEntries entries = segment.rooms.get(room);
+                if (entries == null || entries.firstTime >= beforeTime) {
+                    continue;
+                }
+                int last = entries.floorTime(beforeTime);
+                int first = Math.max(0, last - (limit - covered) / INDEX_INTERVAL - 1);
+                int end = last + 1 < entries.count ? entries.positions[last + 1] : segment.end;
+                targets.add(segment);
+                ranges.add(new int[] {entries.positions[first], end});
+                // Earlier entries of this segment, and older segments, are only needed if first is 0
+                covered = first > 0 ? limit : covered + last * INDEX_INTERVAL;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        ArrayDeque<ChatFrame> newest = new ArrayDeque<>(limit);
+        for (int t = targets.size() - 1; t >= 0; t--) {
+            targets.get(t).scan(ranges.get(t)[0], ranges.get(t)[1], frame -> {
+                if (frame.getRoom().equals(room) && frame.getTimestamp() < beforeTime) {
+                    if (newest.size() == limit) {
+                        newest.pollFirst();
+                    }
+                    newest.addLast(frame);
+                }
+                return true;
+            });
+        }
+        return new ArrayList<>(newest);
+    }
+
+    void close() {
+        closed = true;
+        if (writer != null) {
+            try {
+                writer.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** Sparse per-room index of one segment. Entries are in append order. */
+    private static class RoomEntries {
+        long[] seqs = new long[8];
+        long[] times = new long[8];
+        int[] positions = new int[8];
+        int count;
+        long firstTime;
+        long lastSeq;
+        long lastTime;
+        int sinceEntry;
+
+        void add(long seq, long time, int position) {
+            if (count == seqs.length) {
+                seqs = Arrays.copyOf(seqs, count * 2);
+                times = Arrays.copyOf(times, count * 2);
+                positions = Arrays.copyOf(positions, count * 2);
+            }
+            seqs[count] = seq;
+            times[count] = time;
+            positions[count] = position;
+            count++;
+        }
+
+        void record(ChatFrame frame, int position) {
+            if (count == 0) {
+                firstTime = frame.getTimestamp();
+            }
+            if (count == 0 || ++sinceEntry == INDEX_INTERVAL) {
+                add(frame.getSeq(), frame.getTimestamp(), position);
+                sinceEntry = 0;
+            }
+            lastSeq = Math.max(lastSeq, frame.getSeq());
+            lastTime = Math.max(lastTime, frame.getTimestamp());
+        }
+
+        /** Last entry with a sequence at or below seq, or -1. */
+        int floorSeq(long seq) {
+            int lo = 0;
+            int hi = count - 1;
+            int found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (seqs[mid] <= seq) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        /** Last entry older than time, or 0 when even the first is not. */
+        int floorTime(long time) {
+            int found = 0;
+            for (int i = 0; i < count && times[i] < time; i++) {
+                found = i;
+            }
+            return found;
+        }
+    }
+
+    private interface FrameVisitor {
+        /** @return false to stop scanning */
+        boolean visit(ChatFrame frame);
+    }
+
+    private static class Segment {
+        final long number;
+        final Path file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        final int capacity;
+        // Where records begin, after the header; 0 and no checksums in the old format
+        final int start;
+        final int checksumBytes;
+        final Map<String, RoomEntries> rooms = new HashMap<>();
+        // Bytes of complete records; readers never look past it
+        volatile int end;
+        long lastTime;
+
+        private Segment(long number, Path file, FileChannel channel, MappedByteBuffer buffer, boolean checked) {
+            this.number = number;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.capacity = buffer.capacity();
+            this.start = checked ? HEADER_BYTES : 0;
+            this.checksumBytes = checked ? CHECKSUM_BYTES : 0;
+            this.end = start;
+        }
+
+        /**
+         * Maps a segment file. The active segment is mapped read-write at full size and
+         * scanned to find its end; a sealed one is mapped read-only and its index loaded
+         * from the .index file when there is one.
+         */
+        static Segment open(Path file, int size, boolean active) throws IOException {
+            String name = file.getFileName().toString();
+            long number = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            FileChannel channel;
+            MappedByteBuffer buffer;
+            if (active) {
+                channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                long length = Math.max(size, channel.size());
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            } else {
+                channel = FileChannel.open(file, StandardOpenOption.READ);
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            int first = buffer.capacity() >= HEADER_BYTES ? buffer.getInt(0) : 0;
+            if (first == MAGIC && buffer.getInt(4) != FORMAT) {
+                channel.close();
+                throw new IOException("unknown log format " + buffer.getInt(4) + " in " + file);
+            }
+            if (active && first == 0) {
+                // New, or never written to: start it in the current format
+                buffer.putInt(0, MAGIC).putInt(4, FORMAT);
+                first = MAGIC;
+            }
+            Segment segment = new Segment(number, file, channel, buffer, first == MAGIC);
+            if (active || !segment.loadIndex()) {
+                segment.rebuildIndex();
+            }
+            if (active) {
+                // A crash can leave a torn record past the end; clear it so it is not read back later
+                for (int i = segment.end; i < Math.min(segment.capacity, segment.end + ChatFrame.MAX_FRAME_LENGTH); i++) {
+                    if (buffer.get(i) != 0) {
+                        buffer.put(i, (byte) 0);
+                    }
+                }
+            }
+            return segment;
+        }
+
+        void append(ChatFrame frame, byte[] record) {
+            int position = end;
+            buffer.put(position, record);
+            if (checksumBytes > 0) {
+                buffer.putInt(position + record.length, checksum(buffer, position, record.length));
+            }
+            index(frame, position);
+            end = position + record.length + checksumBytes;
+        }
+
+        private static int checksum(ByteBuffer buffer, int position, int length) {
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.duplicate().position(position).limit(position + length));
+            return (int) crc.getValue();
+        }
+
+        private void index(ChatFrame frame, int position) {
+            rooms.computeIfAbsent(frame.getRoom(), r -> new RoomEntries()).record(frame, position);
+            lastTime = Math.max(lastTime, frame.getTimestamp());
+        }
+
+        private void rebuildIndex() {
+            ByteBuffer view = buffer.duplicate();
+            int position = start;
+            while (position + 4 <= capacity) {
+                int length = view.getInt(position);
+                if (length <= 0 || length > ChatFrame.MAX_FRAME_LENGTH
+                        || position + 4 + length + checksumBytes > capacity) {
+                    break;
+                }
+                if (checksumBytes > 0 && view.getInt(position + 4 + length) != checksum(view, position, 4 + length)) {
+                    // Torn by a crash mid-write: the end of the log
+                    break;
+                }
+                ChatFrame frame;
+                try {
+                    frame = ChatFrame.decode(view.slice(position + 4, length));
+                } catch (IOException | RuntimeException e) {
+                    break;
+                }
+                index(frame, position);
+                position += 4 + length + checksumBytes;
+            }
+            end = position;
+        }
+
+        void scan(int from, int to, FrameVisitor visitor) {
+            ByteBuffer view = buffer.duplicate();
+            int position = from;
+            while (position + 4 <= to) {
+                int length = view.getInt(position);
+                if (length <= 0 || position + 4 + length + checksumBytes > to) {
+                    return;
+                }
+                try {
+                    if (!visitor.visit(ChatFrame.decode(view.slice(position + 4, length)))) {
+                        return;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    LOG.warn("log.record.corrupt", "segment", number, "position", position);
+                    return;
+                }
+                position += 4 + length + checksumBytes;
+            }
+        }
+
+        void seal() throws IOException {
+            buffer.force();
+            Path index = indexPath();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(index)))) {
+                out.writeInt(end);
+                out.writeLong(lastTime);
+                out.writeInt(rooms.size());
+                for (Map.Entry<String, RoomEntries> room : rooms.entrySet()) {
+                    RoomEntries entries = room.getValue();
+                    out.writeUTF(room.getKey());
+                    out.writeLong(entries.firstTime);
+                    out.writeLong(entries.lastSeq);
+                    out.writeLong(entries.lastTime);
+                    out.writeInt(entries.count);
+                    for (int i = 0; i < entries.count; i++) {
+                        out.writeLong(entries.seqs[i]);
+                        out.writeLong(entries.times[i]);
+                        out.writeInt(entries.positions[i]);
+                    }
+                }
+            }
+        }
+
+        private boolean loadIndex() {
+            Path index = indexPath();
+            if (!Files.exists(index)) {
+                return false;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(index)))) {
+                end = in.readInt();
+                lastTime = in.readLong();
+                int roomCount = in.readInt();
+                for (int r = 0; r < roomCount; r++) {
+                    RoomEntries entries = new RoomEntries();
+                    String room = in.readUTF();
+                    entries.firstTime = in.readLong();
+                    entries.lastSeq = in.readLong();
+                    entries.lastTime = in.readLong();
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        entries.add(in.readLong(), in.readLong(), in.readInt());
+                    }
+                    rooms.put(room, entries);
+                }
+                return true;
+            } catch (IOException e) {
+                LOG.warn("index.unreadable", "file", index, "error", e.getMessage());
+                rooms.clear();
+                return false;
+            }
+        }
+
+        private Path indexPath() {
+            String name = file.getFileName().toString();
+            return file.resolveSibling(name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+        }
+
+        void delete() {
+            try {
+                channel.close();
+                Files.deleteIfExists(indexPath());
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // Windows refuses to delete a file that is still mapped; it then has to be removed by hand
+                LOG.warn("segment.delete.failed", "file", file, "error", e.getMessage());
+            }
+        }
+    }
+}
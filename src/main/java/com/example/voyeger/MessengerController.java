@@ -12,9 +12,11 @@ import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class MessengerController implements Initializable {
 
@@ -27,6 +29,10 @@ public class MessengerController implements Initializable {
     private Socket clientSocket;
     private PrintWriter out;
     private BufferedReader in;
+    // Set instead of in/out when the server accepted binary frames
+    private boolean binary;
+    private DataInputStream frameIn;
+    private OutputStream frameOut;
     private ExecutorService executor;
     private String currentRoom;
     private String username;
@@ -35,8 +41,27 @@ public class MessengerController implements Initializable {
     private Scene previousScene;
     private boolean intentionalDisconnect = false;
 
-    private static final int[] SERVER_PORTS = {8081, 8082, 8083, 8084, 8085};
+    // Servers are probed and ordered once per room; reconnects stay with that order
+    private final ServerSelector serverSelector =
+            new ServerSelector(new ConsistentHashRing(ChatServerConfig.clusterServers()));
+    private List<String> serverOrder = List.of();
     private int currentServerIndex = 0;
+    private volatile String currentServer;
+    // Last room message seen, so a reconnect only asks for what was missed
+    private volatile long lastMessageId;
+    private volatile long lastMessageSeq;
+    // Resume token from the server; sent back on reconnect so the session continues
+    private volatile String sessionToken;
+    // Ids already shown: a failover can replay messages this window has, from another server
+    private MessageIdFilter seenIds = new MessageIdFilter(4096);
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    // Reconnect delays double per attempt up to the cap, each a random point in the upper
+    // half so a server's clients do not all come back at once; only a SESSION, a server
+    // that really took the join, resets them
+    private static final long RECONNECT_BASE_MILLIS = 250;
+    private static final long RECONNECT_MAX_MILLIS = 30_000;
+    private volatile int reconnectAttempts;
+    private volatile boolean sessionOpened;
 
     @Override
     public void initialize(URL location, ResourceBundle resources) {
@@ -64,7 +89,15 @@ public class MessengerController implements Initializable {
     public void setRoomInfo(String roomName, String username) {
         this.currentRoom = roomName;
         this.username = username;
-        connectToServer();
+        lastMessageId = 0;
+        lastMessageSeq = 0;
+        sessionToken = null;
+        seenIds = new MessageIdFilter(4096);
+        serverOrder = List.of();
+        currentServerIndex = 0;
+        reconnectAttempts = 0;
+        // Probing and connecting block; the listener thread runs them, never the FX thread
+        executor.execute(() -> connectToServer(false));
     }
 
     public void setMainApp(Main mainApp) {
@@ -104,24 +137,56 @@ public class MessengerController implements Initializable {
         }
     }
 
-    private void connectToServer() {
+    private void connectToServer(boolean reconnecting) {
         // Reset intentional disconnect flag when connecting
         intentionalDisconnect = false;
 
-        // Try all servers until one connects
-        while (currentServerIndex < SERVER_PORTS.length) {
+        // Start with the server we were on, then its successors; probe again only when
+        // there is no order yet or every server in it has failed
+        boolean probed = false;
+        boolean wait = reconnecting;
+        while (currentServerIndex < serverOrder.size() || !probed) {
+            if (currentServerIndex >= serverOrder.size()) {
+                serverOrder = serverSelector.order(currentRoom);
+                currentServerIndex = 0;
+                probed = true;
+                continue;
+            }
+            // Only a window's first attempt at a room goes without a delay
+            if (wait && !awaitReconnectDelay()) {
+                return;
+            }
+            wait = true;
+            String server = serverOrder.get(currentServerIndex);
             try {
-                int port = SERVER_PORTS[currentServerIndex];
-                System.out.println("Attempting to connect to server on port: " + port);
-
-                clientSocket = new Socket("localhost", port);
-                out = new PrintWriter(clientSocket.getOutputStream(), true);
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                int colon = server.lastIndexOf(':');
+                String host = server.substring(0, colon);
+                int port = Integer.parseInt(server.substring(colon + 1));
+                System.out.println("Attempting to connect to server " + server + " for room " + currentRoom);
+
+                clientSocket = new Socket();
+                clientSocket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                currentServer = server;
+                sessionOpened = false;
+                InputStream rawIn = new BufferedInputStream(clientSocket.getInputStream());
+                OutputStream rawOut = new BufferedOutputStream(clientSocket.getOutputStream());
+                binary = negotiateBinary(rawIn, rawOut);
+                if (binary) {
+                    frameIn = new DataInputStream(rawIn);
+                    frameOut = rawOut;
+                } else {
+                    in = new BufferedReader(new InputStreamReader(rawIn, StandardCharsets.UTF_8));
+                    out = new PrintWriter(new OutputStreamWriter(rawOut, StandardCharsets.UTF_8), true);
+                }
 
-                // Send join message
-                String joinMessage = "JOIN:" + username + ":" + currentRoom;
-                out.println(joinMessage);
-                System.out.println("Connected to server on port: " + port + " and sent: " + joinMessage);
+                // Send join message; the server replays the room's recent history after our last message
+                String token = sessionToken;
+                String resume = token != null ? lastMessageSeq + ":" + token
+                        : lastMessageSeq > 0 ? Long.toString(lastMessageSeq) : null;
+                ChatFrame joinMessage = ChatFrame.of(ChatFrame.Type.JOIN, username, currentRoom, resume).withId(lastMessageId);
+                sendToServer(joinMessage);
+                System.out.println("Connected to server " + server + " (" + (binary ? "binary" : "text")
+                        + ") and sent: " + joinMessage.toText());
 
                 // Start message listener thread
                 executor.execute(this::listenForMessages);
@@ -130,21 +195,68 @@ public class MessengerController implements Initializable {
                 // No "Connected to server on port X" message in chat
                 return;
 
-            } catch (IOException e) {
-                System.out.println("Failed to connect to port " + SERVER_PORTS[currentServerIndex] + ": " + e.getMessage());
-                currentServerIndex++;
-
-                if (currentServerIndex < SERVER_PORTS.length) {
-                    // REMOVED: Trying next server message to user
-                }
+            } catch (IOException | IllegalArgumentException | IndexOutOfBoundsException e) {
+                System.out.println("Failed to connect to " + server + ": " + e.getMessage());
+                // The order may be stale (the server just died, and everyone on it is moving),
+                // so probe afresh before trying the others
+                currentServerIndex = probed ? currentServerIndex + 1 : serverOrder.size();
             }
         }
 
         // If all servers failed
-        showError("Cannot connect to any chat servers! Please make sure servers are running.");
+        javafx.application.Platform.runLater(() ->
+                showError("Cannot connect to any chat servers! Please make sure servers are running."));
+    }
+
+    /**
+     * Waits out the next reconnect delay; false when the window closed meanwhile.
+     */
+    private boolean awaitReconnectDelay() {
+        int attempt = reconnectAttempts;
+        reconnectAttempts = attempt + 1;
+        long cap = Math.min(RECONNECT_MAX_MILLIS, RECONNECT_BASE_MILLIS << Math.min(attempt, 16));
+        long delay = cap / 2 + ThreadLocalRandom.current().nextLong(cap / 2 + 1);
+        System.out.println("Reconnecting in " + delay + " ms");
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return !intentionalDisconnect;
+    }
+
+    /**
+     * Asks the server for binary frames. A server that does not know the request
+     * ignores it, so after a short wait the connection simply stays on text.
+     */
+    private boolean negotiateBinary(InputStream rawIn, OutputStream rawOut) throws IOException {
+        rawOut.write((ChatFrame.NEGOTIATE + "\n").getBytes(StandardCharsets.UTF_8));
+        rawOut.flush();
+        clientSocket.setSoTimeout(2000);
+        try {
+            return ChatFrame.NEGOTIATE_OK.equals(ChatFrame.readLine(rawIn));
+        } catch (SocketTimeoutException e) {
+            return false;
+        } finally {
+            clientSocket.setSoTimeout(0);
+        }
+    }
+
+    private synchronized void sendToServer(ChatFrame frame) throws IOException {
+        if (binary) {
+            frameOut.write(frame.toBinary());
+            frameOut.flush();
+        } else {
+            out.println(frame.toText());
+        }
     }
 
     private void listenForMessages() {
+        if (binary) {
+            listenForFrames();
+            return;
+        }
         try {
             String message;
             while ((message = in.readLine()) != null) {
@@ -153,22 +265,101 @@ public class MessengerController implements Initializable {
                 }
 
                 System.out.println("Received from server: " + message);
+                if (message.startsWith("SESSION:")) {
+                    sessionOpened();
+                }
                 String finalMessage = message;
                 javafx.application.Platform.runLater(() -> handleIncomingMessage(finalMessage));
             }
         } catch (IOException e) {
-            if (!intentionalDisconnect) {
-                javafx.application.Platform.runLater(() -> {
-                    showError("Connection lost: " + e.getMessage());
-                    // REMOVED: Disconnected message to user
-                    reconnectToServer();
-                });
-            } else {
-                System.out.println("Intentional disconnect - no error message needed");
+            System.out.println("Connection lost: " + e.getMessage());
+        } finally {
+            System.out.println("Message listener thread stopped");
+        }
+        failOver();
+    }
+
+    private void listenForFrames() {
+        try {
+            while (!intentionalDisconnect) {
+                ChatFrame frame = ChatFrame.read(frameIn);
+                if (frame.getType() == ChatFrame.Type.SESSION) {
+                    sessionOpened();
+                }
+                javafx.application.Platform.runLater(() -> handleIncomingFrame(frame));
             }
+        } catch (IOException e) {
+            System.out.println("Connection lost: " + e.getMessage());
         } finally {
             System.out.println("Message listener thread stopped");
         }
+        failOver();
+    }
+
+    // On the listener thread, before the frame reaches the FX thread, so a close right
+    // after it still counts as a session that was open
+    private void sessionOpened() {
+        sessionOpened = true;
+        reconnectAttempts = 0;
+    }
+
+    /**
+     * Reconnects on the listener's own thread, after a backoff delay and without a dialog
+     * in the way: the server the window lands on replays only what it missed, and the
+     * session token keeps the room from seeing this user leave and join again.
+     */
+    private void failOver() {
+        if (intentionalDisconnect) {
+            System.out.println("Intentional disconnect - no error message needed");
+            return;
+        }
+        reconnectToServer();
+    }
+
+    // Binary counterpart of handleIncomingMessage: fields arrive typed, nothing to split
+    private void handleIncomingFrame(ChatFrame frame) {
+        String sender = frame.getSender();
+        if (frame.getId() != 0 && (frame.getType() == ChatFrame.Type.MESSAGE || frame.getType() == ChatFrame.Type.FILE)) {
+            if (!seenIds.firstSeen(frame.getId())) {
+                // Already shown before a failover
+                return;
+            }
+            lastMessageId = frame.getId();
+            lastMessageSeq = frame.getSeq();
+        }
+        switch (frame.getType()) {
+            case MESSAGE:
+                if (!sender.equals(username)) {
+                    addMessageToChat(sender, frame.getTimeText(), frame.getBodyText());
+                }
+                break;
+            case FILE:
+                if (!sender.equals(username)) {
+                    addFileMessage(sender, frame.getTimeText(), frame.getBodyText());
+                }
+                break;
+            case USER_JOIN:
+                if (!sender.equals(username)) {
+                    addSystemMessage(sender + " joined the room");
+                }
+                break;
+            case USER_LEAVE:
+                if (!sender.equals(username)) {
+                    addSystemMessage(sender + " left the room");
+                }
+                break;
+            case SESSION:
+                sessionToken = frame.getBodyText();
+                break;
+            case ERROR:
+                addSystemMessage(frame.getBodyText());
+                break;
+            case PING:
+                replyPong();
+                break;
+            default:
+                break;
+        }
     }
 
     private void reconnectToServer() {
@@ -178,9 +369,12 @@ public class MessengerController implements Initializable {
             e.printStackTrace();
         }
 
-        // Reset and try to connect again
-        currentServerIndex = 0;
-        connectToServer();
+        // A server that dropped an open session is tried again first, as it may just have
+        // restarted; one that closed before sending SESSION is refusing us, so go on to the next
+        if (!sessionOpened) {
+            currentServerIndex++;
+        }
+        connectToServer(true);
     }
 
     private void handleIncomingMessage(String message) {
@@ -198,14 +392,15 @@ public class MessengerController implements Initializable {
                 }
             }
         } else if (message.startsWith("FILE:")) {
-            String[] parts = message.substring(5).split(":", 3);
-            if (parts.length == 3) {
+            // FILE:sender:HH:mm:file, where the time has a colon of its own
+            String[] parts = message.substring(5).split(":", 4);
+            if (parts.length == 4) {
                 String sender = parts[0];
-                String timestamp = parts[1];
-                String filename = parts[2];
+                String timestamp = parts[1] + ":" + parts[2];
+                String file = parts[3];
 
                 if (!sender.equals(username)) {
-                    addFileMessage(sender, timestamp, filename);
+                    addFileMessage(sender, timestamp, file);
                 }
             }
         } else if (message.startsWith("USER_JOIN:")) {
@@ -222,20 +417,38 @@ public class MessengerController implements Initializable {
             if (!user.equals(username)) {
                 addSystemMessage(user + " left the room");
             }
+        } else if (message.startsWith("SESSION:")) {
+            sessionToken = message.substring(8);
+        } else if (message.startsWith("ERROR:")) {
+            addSystemMessage(message.substring(6));
+        } else if (message.equals("PING")) {
+            replyPong();
+        }
+    }
+
+    // Answers the server's heartbeat so an idle but open window keeps its connection
+    private void replyPong() {
+        try {
+            sendToServer(ChatFrame.of(ChatFrame.Type.PONG, null, null, null));
+        } catch (IOException e) {
+            System.err.println("Failed to answer PING: " + e.getMessage());
         }
     }
 
     @FXML
     private void sendMessage() {
         String messageText = messageInput.getText().trim();
-        if (!messageText.isEmpty() && out != null) {
-            String timestamp = getCurrentTime();
-            String fullMessage = "MESSAGE:" + username + ":" + timestamp + ":" + messageText;
-
-            out.println(fullMessage);
-            System.out.println("Sent to server: " + fullMessage);
+        if (!messageText.isEmpty() && isConnected()) {
+            ChatFrame frame = ChatFrame.of(ChatFrame.Type.MESSAGE, username, currentRoom, messageText);
+            try {
+                sendToServer(frame);
+            } catch (IOException e) {
+                showError("Failed to send message: " + e.getMessage());
+                return;
+            }
+            System.out.println("Sent to server: " + frame.toText());
 
-            addMessageToChat(username, timestamp, messageText);
+            addMessageToChat(username, frame.getTimeText(), messageText);
             messageInput.clear();
         }
     }
@@ -246,16 +459,60 @@ public class MessengerController implements Initializable {
         fileChooser.setTitle("Select File to Share");
         File file = fileChooser.showOpenDialog(messageInput.getScene().getWindow());
 
-        if (file != null && out != null) {
-            String timestamp = getCurrentTime();
-            String fileMessage = "FILE:" + username + ":" + timestamp + ":" + file.getName();
+        if (file != null && isConnected()) {
+            // The bytes go to the server's file port first; the room only gets a reference once they are stored
+            FileTransfer.Ref ref = new FileTransfer.Ref(FileTransfer.newId(), file.length(),
+                    FileTransfer.serverFor(currentServer), file.getName());
+            addSystemMessage("Uploading '" + file.getName() + "'...");
+            Thread.ofVirtual().name("upload-" + ref.id).start(() -> {
+                try {
+                    FileTransfer.upload(ref.server, ref.id, file.toPath());
+                    ChatFrame fileMessage = ChatFrame.of(ChatFrame.Type.FILE, username, currentRoom, ref.encode());
+                    sendToServer(fileMessage);
+                    System.out.println("Sent file info: " + fileMessage.toText());
+                    javafx.application.Platform.runLater(() -> {
+                        addFileMessage(username, fileMessage.getTimeText(), ref.encode());
+                        addSystemMessage("File '" + file.getName() + "' shared successfully");
+                    });
+                } catch (IOException e) {
+                    javafx.application.Platform.runLater(() -> showError("Failed to share file: " + e.getMessage()));
+                }
+            });
+        }
+    }
 
-            out.println(fileMessage);
-            System.out.println("Sent file info: " + fileMessage);
+    // Saves a shared file where the user chooses, in the background; a failed download resumes when retried
+    private void saveFile(FileTransfer.Ref ref) {
+        if (!isClusterFileServer(ref.server)) {
+            showError("'" + ref.name + "' is not stored on one of the chat servers");
+            return;
+        }
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Save File");
+        fileChooser.setInitialFileName(ref.name);
+        File target = fileChooser.showSaveDialog(chatContainer.getScene().getWindow());
+        if (target == null) {
+            return;
+        }
+        addSystemMessage("Downloading '" + ref.name + "'...");
+        Thread.ofVirtual().name("download-" + ref.id).start(() -> {
+            try {
+                FileTransfer.download(ref, target.toPath());
+                addSystemMessage("Saved '" + ref.name + "' to " + target);
+            } catch (IOException e) {
+                javafx.application.Platform.runLater(() -> showError("Failed to download file: " + e.getMessage()));
+            }
+        });
+    }
 
-            addFileMessage(username, timestamp, file.getName());
-            addSystemMessage("File '" + file.getName() + "' shared successfully");
+    // A FILE message names the server to download from, so only the cluster's own are trusted
+    private static boolean isClusterFileServer(String server) {
+        for (String chatServer : ChatServerConfig.clusterServers()) {
+            if (FileTransfer.serverFor(chatServer).equals(server)) {
+                return true;
+            }
         }
+        return false;
     }
 
     private void addMessageToChat(String sender, String time, String content) {
@@ -296,7 +553,9 @@ public class MessengerController implements Initializable {
         });
     }
 
-    private void addFileMessage(String sender, String time, String filename) {
+    private void addFileMessage(String sender, String time, String file) {
+        FileTransfer.Ref ref = FileTransfer.Ref.parse(file);
+        String filename = ref != null ? ref.name : file;
         VBox messageBubble = new VBox(5);
         messageBubble.getStyleClass().addAll("message-bubble");
 
@@ -330,6 +589,11 @@ public class MessengerController implements Initializable {
         fileLabel.getStyleClass().add("file-name");
 
         fileAttachment.getChildren().addAll(fileIcon, fileLabel);
+        if (ref != null && !sender.equals(username)) {
+            Button saveButton = new Button("Save");
+            saveButton.setOnAction(event -> saveFile(ref));
+            fileAttachment.getChildren().add(saveButton);
+        }
         messageBubble.getChildren().addAll(header, messageLabel, fileAttachment);
         chatContainer.getChildren().add(messageBubble);
 
@@ -354,11 +618,8 @@ public class MessengerController implements Initializable {
         });
     }
 
-    private String getCurrentTime() {
-        Calendar cal = Calendar.getInstance();
-        int hour = cal.get(Calendar.HOUR_OF_DAY);
-        int minute = cal.get(Calendar.MINUTE);
-        return String.format("%02d:%02d", hour, minute);
+    private boolean isConnected() {
+        return binary ? frameOut != null : out != null;
     }
 
     private void showError(String message) {
@@ -373,9 +634,8 @@ public class MessengerController implements Initializable {
 
     public void shutdown() {
         try {
-            if (out != null) {
-                out.println("LEAVE:" + username);
-                out.flush();
+            if (isConnected()) {
+                sendToServer(ChatFrame.of(ChatFrame.Type.LEAVE, username, currentRoom, null));
             }
             if (executor != null) {
                 executor.shutdownNow();
@@ -0,0 +1,89 @@
+package com.example.voyeger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small HTTP endpoint next to a chat server, built on the JDK's com.sun.net.httpserver:
+ * <pre>
+ *   GET /metrics       Prometheus text format
+ *   GET /metrics.json  the same values as JSON, with per-second rates
+ *   GET /health        200 while the server accepts connections, 503 otherwise, with
+ *                      its open and maximum connections for ServerSelector
+ * </pre>
+ * Requests are served one at a time on a single daemon thread, which also samples the
+ * counter rates once a second, so a scrape never competes with the chat threads for
+ * more than one core.
+ */
+final class MetricsHttpServer {
+    private static final AsyncLog LOG = AsyncLog.get("metrics");
+
+    private final HttpServer http;
+    private final ScheduledExecutorService executor;
+
+    private MetricsHttpServer(HttpServer http, ScheduledExecutorService executor) {
+        this.http = http;
+        this.executor = executor;
+    }
+
+    static MetricsHttpServer start(String host, int port, ServerMetrics metrics) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(host, port), 16);
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, metrics.getServer() + "-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        http.createContext("/metrics", exchange -> {
+            if ("/metrics.json".equals(exchange.getRequestURI().getPath())) {
+                respond(exchange, 200, "application/json", metrics.toJson());
+            } else {
+                respond(exchange, 200, "text/plain; version=0.0.4; charset=utf-8", metrics.toPrometheus());
+            }
+        });
+        http.createContext("/health", exchange -> {
+            boolean healthy = metrics.isHealthy();
+            respond(exchange, healthy ? 200 : 503, "application/json",
+                    "{\"server\":\"" + metrics.getServer() + "\",\"status\":\"" + (healthy ? "UP" : "DOWN")
+                            + "\",\"connections\":" + metrics.connections()
+                            + ",\"maxConnections\":" + metrics.maxConnections() + "}");
+        });
+        http.setExecutor(executor);
+        executor.scheduleAtFixedRate(metrics::sample, 1, 1, TimeUnit.SECONDS);
+        http.start();
+        LOG.info("metrics.started", "server", metrics.getServer(), "address", host + ":" + port);
+        return new MetricsHttpServer(http, executor);
+    }
+
+    void stop() {
+        http.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        try (exchange) {
+            String method = exchange.getRequestMethod();
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            if (method.equals("HEAD")) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+}
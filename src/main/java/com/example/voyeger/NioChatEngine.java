@@ -0,0 +1,519 @@
+package com.example.voyeger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking engine for ChatServer. A fixed set of reactor threads, each owning a
+ * Selector, handles accept, read and write for every connection, so thousands of idle
+ * clients cost a socket and a few buffers instead of a thread each.
+ *
+ * The wire protocol is the same as ClientHandler's: newline-terminated
+ * JOIN:/MESSAGE:/FILE:/LEAVE: text, or ChatFrame binary frames after a client
+ * negotiates them, so clients cannot tell which engine they are talking to.
+ *
+ * With a flush linger, sending to a connection does not wake its reactor for every
+ * frame: the connection joins the reactor's list for the current tick, and when the
+ * tick ends the reactor writes each listed connection's queue in as few writes as the
+ * socket takes. A connection with flushBytes waiting is written right away instead.
+ */
+class NioChatEngine {
+    private static final AsyncLog LOG = AsyncLog.get("chat.nio");
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_WRITE_BATCH = 256;
+
+    private final ChatServer server;
+    private final int port;
+    private final Reactor[] reactors;
+    private final AtomicInteger nextReactor = new AtomicInteger();
+    private final long lingerNanos;
+    private final int flushBytes;
+
+    NioChatEngine(ChatServer server, int port, int reactorCount) {
+        this.server = server;
+        this.port = port;
+        this.reactors = new Reactor[reactorCount];
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(server.getConfig().getFlushMillis());
+        this.flushBytes = server.getConfig().getFlushBytes();
+    }
+
+    /**
+     * Binds the listening socket and runs the reactors. Reactor 0 also accepts and runs
+     * on the calling thread, so this blocks like the blocking accept loop does.
+     */
+    void run() throws IOException {
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(server.getServerName() + "-reactor-" + i);
+        }
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(reactors[0].selector, SelectionKey.OP_ACCEPT);
+
+        for (int i = 1; i < reactors.length; i++) {
+            Thread thread = new Thread(reactors[i], reactors[i].name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        reactors[0].run();
+    }
+
+    private Reactor nextReactor() {
+        return reactors[Math.floorMod(nextReactor.getAndIncrement(), reactors.length)];
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            if (!server.admit(((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress())) {
+                channel.close();
+                continue;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Reactor reactor = nextReactor();
+            NioConnection connection = new NioConnection(channel, reactor);
+            server.addClient(connection);
+            reactor.execute(connection::register);
+        }
+    }
+
+    private class Reactor implements Runnable {
+        private final String name;
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        // Connections to flush when the current tick ends
+        private final Queue<NioConnection> lingering = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean tickArmed = new AtomicBoolean();
+        private boolean ticking;
+        private long tickDeadline;
+        private volatile Thread thread;
+
+        Reactor(String name) throws IOException {
+            this.name = name;
+            this.selector = Selector.open();
+        }
+
+        /** Runs a task on this reactor's thread and wakes the selector if called from elsewhere. */
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Flushes a connection when the current tick ends, starting a tick if none is
+         * running. Only the first connection of a tick wakes the selector.
+         */
+        void flushOnTick(NioConnection connection) {
+            lingering.add(connection);
+            if (tickArmed.compareAndSet(false, true) && Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (true) {
+                try {
+                    // Tasks queued from this thread do not wake the selector, so drain before selecting
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        runTask(task);
+                    }
+                    if (!ticking && tickArmed.get()) {
+                        ticking = true;
+                        tickDeadline = System.nanoTime() + lingerNanos;
+                    }
+                    if (!ticking) {
+                        selector.select();
+                    } else {
+                        long wait = tickDeadline - System.nanoTime();
+                        if (wait > 0) {
+                            selector.select(TimeUnit.NANOSECONDS.toMillis(wait + 999_999));
+                        } else {
+                            selector.selectNow();
+                        }
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handleKey(key);
+                    }
+                    if (ticking && System.nanoTime() - tickDeadline >= 0) {
+                        endTick();
+                    }
+                } catch (IOException e) {
+                    LOG.warn("selector.error", "reactor", name, "error", e.getMessage());
+                } catch (RuntimeException e) {
+                    // Whatever slipped past the per-key and per-task handlers must not end the reactor
+                    LOG.error("reactor.error", "reactor", name, e);
+                }
+            }
+        }
+
+        // A failing task affects the connection it was for, not the rest of the reactor
+        private void runTask(Runnable task) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOG.error("task.failed", "reactor", name, e);
+            }
+        }
+
+        // Disarm before taking the list, so a connection added meanwhile starts the next tick
+        private void endTick() {
+            ticking = false;
+            tickArmed.set(false);
+            NioConnection connection;
+            while ((connection = lingering.poll()) != null) {
+                runTask(connection.flushTask);
+            }
+        }
+
+        private void handleKey(SelectionKey key) {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                try {
+                    accept((ServerSocketChannel) key.channel());
+                } catch (IOException e) {
+                    LOG.warn("accept.failed", "reactor", name, "error", e.getMessage());
+                } catch (RuntimeException e) {
+                    LOG.error("accept.failed", "reactor", name, e);
+                }
+                return;
+            }
+
+            NioConnection connection = (NioConnection) key.attachment();
+            try {
+                if (key.isReadable()) {
+                    connection.onReadable(readBuffer);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.flush();
+                }
+            } catch (IOException e) {
+                LOG.warn("client.error", "server", server.getServerName(), "error", e.getMessage());
+                connection.close();
+            } catch (RuntimeException e) {
+                // A bug handling one client's frame closes that client, not the reactor
+                LOG.error("client.failed", "server", server.getServerName(), "remote", connection.remoteAddress, e);
+                connection.close();
+            }
+        }
+    }
+
+    private class NioConnection implements ChatConnection {
+        private final SocketChannel channel;
+        private final Reactor reactor;
+        private final OutboundQueue outbound;
+        private final List<ChatFrame> writeBatch = new ArrayList<>(MAX_WRITE_BATCH);
+        private ByteBuffer writeBuffer;
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final AtomicBoolean onTick = new AtomicBoolean();
+        // Bytes queued since the last flush, to cut a linger short
+        private final AtomicInteger pendingBytes = new AtomicInteger();
+        private final Runnable flushTask = () -> {
+            try {
+                flush();
+            } catch (IOException e) {
+                close();
+            } catch (RuntimeException e) {
+                close();
+                throw e;
+            }
+        };
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final String remoteAddress;
+        private volatile SelectionKey key;
+        private byte[] lineBuffer = new byte[256];
+        private int lineLength;
+        private boolean firstLine = true;
+        // Set on the reactor, read by whichever thread encodes a frame for this connection
+        private volatile boolean binary;
+        private ByteBuffer frameBuffer;
+        private volatile String username;
+        private volatile String currentRoom;
+        private volatile String sessionToken;
+        private volatile long lastActivity = System.nanoTime();
+
+        NioConnection(SocketChannel channel, Reactor reactor) throws IOException {
+            this.channel = channel;
+            this.reactor = reactor;
+            this.outbound = server.newOutboundQueue();
+            InetSocketAddress address = (InetSocketAddress) channel.getRemoteAddress();
+            this.remoteAddress = address.getAddress().getHostAddress();
+        }
+
+        // Reactor thread only
+        void register() {
+            try {
+                key = channel.register(reactor.selector, SelectionKey.OP_READ, this);
+                if (outbound.depth() > 0) {
+                    flush();
+                }
+            } catch (IOException e) {
+                close();
+            } catch (RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        // Reactor thread only: splits the stream into lines or frames and dispatches each one
+        void onReadable(ByteBuffer readBuffer) throws IOException {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                close();
+                return;
+            }
+            server.countBytesIn(read);
+            lastActivity = System.nanoTime();
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                if (binary) {
+                    readFrames(readBuffer);
+                    return;
+                }
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    int end = lineLength > 0 && lineBuffer[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                    String line = new String(lineBuffer, 0, end, StandardCharsets.UTF_8);
+                    lineLength = 0;
+                    if (firstLine) {
+                        firstLine = false;
+                        if (ChatFrame.NEGOTIATE.equals(line)) {
+                            switchToBinary();
+                            continue;
+                        }
+                    }
+                    if (!server.handleClientMessage(this, line)) {
+                        close();
+                        return;
+                    }
+                } else {
+                    if (lineLength == lineBuffer.length) {
+                        if (lineLength >= ChatFrame.MAX_LINE_LENGTH) {
+                            throw new IOException("line exceeds " + ChatFrame.MAX_LINE_LENGTH + " bytes");
+                        }
+                        lineBuffer = Arrays.copyOf(lineBuffer, Math.min(lineLength * 2, ChatFrame.MAX_LINE_LENGTH));
+                    }
+                    lineBuffer[lineLength++] = b;
+                }
+            }
+        }
+
+        // The client has not joined a room yet, so nothing is queued ahead of the reply
+        private void switchToBinary() throws IOException {
+            binary = true;
+            lineBuffer = null;
+            frameBuffer = ByteBuffer.allocate(1024);
+            writeBuffer = ByteBuffer.wrap((ChatFrame.NEGOTIATE_OK + "\n").getBytes(StandardCharsets.UTF_8));
+            flush();
+        }
+
+        // Accumulates bytes until whole length-prefixed frames are available
+        private void readFrames(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                int n = Math.min(src.remaining(), frameBuffer.remaining());
+                ByteBuffer chunk = src.slice();
+                chunk.limit(n);
+                frameBuffer.put(chunk);
+                src.position(src.position() + n);
+
+                frameBuffer.flip();
+                while (frameBuffer.remaining() >= 4) {
+                    int length = frameBuffer.getInt(frameBuffer.position());
+                    if (length < 0 || length > ChatFrame.MAX_FRAME_LENGTH) {
+                        throw new IOException("bad frame length " + length);
+                    }
+                    if (frameBuffer.remaining() < 4 + length) {
+                        break;
+                    }
+                    frameBuffer.getInt();
+                    ByteBuffer body = frameBuffer.slice();
+                    body.limit(length);
+                    frameBuffer.position(frameBuffer.position() + length);
+                    ChatFrame frame;
+                    try {
+                        frame = ChatFrame.decode(body);
+                    } catch (RuntimeException e) {
+                        throw new IOException("malformed frame", e);
+                    }
+                    if (!server.handleClientFrame(this, frame)) {
+                        close();
+                        return;
+                    }
+                }
+                frameBuffer.compact();
+
+                // Grow to fit a frame larger than the buffer
+                if (!frameBuffer.hasRemaining()) {
+                    ByteBuffer larger = ByteBuffer.allocate(Math.min(frameBuffer.capacity() * 2, ChatFrame.MAX_FRAME_LENGTH + 4));
+                    frameBuffer.flip();
+                    larger.put(frameBuffer);
+                    frameBuffer = larger;
+                }
+            }
+        }
+
+        // Reactor thread only: writes queued frames in batches until the socket stops
+        // taking data, then waits for OP_WRITE. Frames stay in the bounded queue meanwhile.
+        void flush() throws IOException {
+            flushScheduled.set(false);
+            onTick.set(false);
+            pendingBytes.set(0);
+            if (key == null || !key.isValid()) {
+                return;
+            }
+            while (true) {
+                if (writeBuffer == null || !writeBuffer.hasRemaining()) {
+                    writeBatch.clear();
+                    if (outbound.drainTo(writeBatch, MAX_WRITE_BATCH) == 0) {
+                        writeBuffer = null;
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    writeBuffer = encode(writeBatch);
+                }
+                server.countBytesOut(channel.write(writeBuffer));
+                outbound.recordWrite();
+                if (writeBuffer.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+        }
+
+        private ByteBuffer encode(List<ChatFrame> frames) {
+            if (frames.size() == 1) {
+                return ByteBuffer.wrap(frames.get(0).encode(binary));
+            }
+            int size = 0;
+            for (ChatFrame frame : frames) {
+                size += frame.encode(binary).length;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            for (ChatFrame frame : frames) {
+                buffer.put(frame.encode(binary));
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        // Any thread: queue the frame and let the owning reactor write it
+        @Override
+        public void sendMessage(ChatFrame message) {
+            if (closed.get()) {
+                return;
+            }
+            if (!outbound.offer(message)) {
+                LOG.warn("client.slow", "server", server.getServerName(), "user", username);
+                close();
+                return;
+            }
+            scheduleFlush(message.encode(binary).length);
+        }
+
+        @Override
+        public void sendMessages(List<ChatFrame> messages) {
+            if (closed.get()) {
+                return;
+            }
+            if (!outbound.offerAll(messages)) {
+                LOG.warn("client.slow", "server", server.getServerName(), "user", username);
+                close();
+                return;
+            }
+            int bytes = 0;
+            for (ChatFrame message : messages) {
+                bytes += message.encode(binary).length;
+            }
+            scheduleFlush(bytes);
+        }
+
+        // Any thread: leaves the write to the end of the reactor's tick unless enough is queued to send now
+        private void scheduleFlush(int bytes) {
+            if (lingerNanos > 0 && pendingBytes.addAndGet(bytes) < flushBytes) {
+                if (onTick.compareAndSet(false, true)) {
+                    reactor.flushOnTick(this);
+                }
+            } else if (flushScheduled.compareAndSet(false, true)) {
+                reactor.execute(flushTask);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.warn("client.close", "user", username, e);
+            }
+            outbound.close();
+            server.removeClient(this);
+        }
+
+        @Override
+        public boolean isClosed() { return closed.get(); }
+
+        @Override
+        public long lastActivityNanos() { return lastActivity; }
+
+        @Override
+        public void sendPing() {
+            sendMessage(ChatFrame.of(ChatFrame.Type.PING, null, null, null));
+        }
+
+        @Override
+        public String getUsername() { return username; }
+
+        @Override
+        public void setUsername(String username) { this.username = username; }
+
+        @Override
+        public String getCurrentRoom() { return currentRoom; }
+
+        @Override
+        public void setCurrentRoom(String currentRoom) { this.currentRoom = currentRoom; }
+
+        @Override
+        public String getSessionToken() { return sessionToken; }
+
+        @Override
+        public void setSessionToken(String sessionToken) { this.sessionToken = sessionToken; }
+
+        @Override
+        public String getRemoteAddress() { return remoteAddress; }
+
+        @Override
+        public OutboundQueue getOutboundQueue() { return outbound; }
+    }
+}
@@ -0,0 +1,878 @@
+package com.example.voyeger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Private messages for users who are not online, kept on disk until they next log in.
+ *
+ * Messages are PRIVATE_MESSAGE frames appended to numbered segment files, as
+ * MessageLog writes them. Beside the segments, offline.index is an append-only journal
+ * of what happened to them: a STORED record (id, recipient, sender, segment, position,
+ * length, time) for each message, a DELIVERED record (recipient, id) when a
+ * recipient's messages up to that id were queued to their connection, and a WITHDRAWN
+ * record (recipient, id) for a message whose store failed to reach the disk and whose
+ * sender was told so. Memory holds each recipient's queue of entries, rebuilt from the
+ * journal on start, so a login finds its messages without scanning, and reads them
+ * back with one positioned read each.
+ *
+ * Every recipient's queue has a lock of its own. Appending to the active segment and
+ * queueing the journal record happen under one journal lock, which is never held while
+ * waiting for the disk. Forcing is a group commit instead: a store returns once some
+ * thread has forced the active segment and then written and forced every journal record
+ * queued until then, so one pair of forces covers all the stores that queued records
+ * while the previous pair ran. The sender is told a message was stored only after that;
+ * if the disk fails first, the message is withdrawn again, so a retry does not leave
+ * it waiting twice. Since a journal record reaches the file only once the frame it points at was
+ * forced, a crash can lose only a torn last record, which the journal replay stops at.
+ *
+ * Messages older than the retention period are dropped, and a segment is deleted once
+ * none of its messages is waiting. The journal is rewritten with only the waiting
+ * messages on start and whenever it has grown well past them. A recipient may have at
+ * most maxPerUser messages waiting and all recipients together maxBytes. One sender
+ * may have at most maxPerSender messages waiting, for at most maxRecipientsPerSender
+ * recipients: names are not checked against any user list, and this keeps one sender
+ * from filling the store with queues for names nobody will log in as.
+ */
+final class OfflineMessages {
+    private static final AsyncLog LOG = AsyncLog.get("chat.offline");
+    private static final int SEGMENT_BYTES = 8 * 1024 * 1024;
+    private static final long SWEEP_INTERVAL_MILLIS = 60_000;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String INDEX_FILE = "offline.index";
+    private static final byte STORED = 'S';
+    private static final byte DELIVERED = 'D';
+    private static final byte WITHDRAWN = 'W';
+
+    private final Path dir;
+    private final long retentionMillis;
+    private final int maxPerUser;
+    private final int maxPerSender;
+    private final int maxRecipientsPerSender;
+    private final long maxBytes;
+    private final Map<String, Recipient> recipients = new ConcurrentHashMap<>();
+    private final Map<String, SenderQuota> senders = new ConcurrentHashMap<>();
+    private final AtomicLong waitingBytes = new AtomicLong();
+    private final AtomicInteger waitingCount = new AtomicInteger();
+    private final AtomicLong lastSweep = new AtomicLong();
+
+    private final ReentrantLock journalLock = new ReentrantLock();
+    // Guarded by journalLock
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final TreeMap<Long, Entry> waiting = new TreeMap<>();
+    private final ArrayDeque<byte[]> unwritten = new ArrayDeque<>();
+    private long nextId = 1;
+    private long queuedRecords;
+
+    // Taken before journalLock, never while holding it or a recipient's lock
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final Condition syncDone = syncLock.newCondition();
+    // Guarded by syncLock; while syncing is set, index and indexRecords belong to the
+    // thread that set it
+    private boolean syncing;
+    private FileChannel index;
+    private long indexRecords;
+    private volatile long syncedRecords;
+
+    // Counted here and read by the metrics endpoint
+    final LongAdder stored = new LongAdder();
+    final LongAdder delivered = new LongAdder();
+    final LongAdder expired = new LongAdder();
+    final LongAdder rejected = new LongAdder();
+
+    OfflineMessages(Path dir, long retentionMillis, int maxPerUser, int maxPerSender, int maxRecipientsPerSender,
+                    long maxBytes) throws IOException {
+        this.dir = dir;
+        this.retentionMillis = retentionMillis;
+        this.maxPerUser = maxPerUser;
+        this.maxPerSender = maxPerSender;
+        this.maxRecipientsPerSender = maxRecipientsPerSender;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir);
+        syncLock.lock();
+        journalLock.lock();
+        try {
+            recover();
+        } finally {
+            journalLock.unlock();
+            syncLock.unlock();
+        }
+    }
+
+    // Both locks held
+    private void recover() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    long number = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(number, new Segment(number, file));
+                } catch (NumberFormatException e) {
+                    LOG.warn("segment.ignored", "file", file);
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.put(1L, new Segment(1, segmentPath(1)));
+        }
+
+        Path indexFile = dir.resolve(INDEX_FILE);
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        Map<String, ArrayDeque<Entry>> queues = new HashMap<>();
+        if (Files.exists(indexFile)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+                while (true) {
+                    byte kind = in.readByte();
+                    if (kind == STORED) {
+                        long id = in.readLong();
+                        String recipient = in.readUTF();
+                        String sender = in.readUTF();
+                        Segment segment = segments.get(in.readLong());
+                        long position = in.readLong();
+                        int length = in.readInt();
+                        long time = in.readLong();
+                        nextId = Math.max(nextId, id + 1);
+                        if (segment != null && position + length <= segment.size && time >= cutoff) {
+                            queues.computeIfAbsent(recipient, r -> new ArrayDeque<>())
+                                    .add(new Entry(id, recipient, sender, segment, position, length, time));
+                        }
+                    } else if (kind == WITHDRAWN) {
+                        String recipient = in.readUTF();
+                        long id = in.readLong();
+                        ArrayDeque<Entry> queue = queues.get(recipient);
+                        if (queue != null) {
+                            queue.removeIf(entry -> entry.id == id);
+                        }
+                    } else if (kind == DELIVERED) {
+                        String recipient = in.readUTF();
+                        long through = in.readLong();
+                        ArrayDeque<Entry> queue = queues.get(recipient);
+                        while (queue != null && !queue.isEmpty() && queue.peekFirst().id <= through) {
+                            queue.pollFirst();
+                        }
+                    } else {
+                        throw new EOFException("unknown record " + kind);
+                    }
+                }
+            } catch (EOFException e) {
+                // End of the journal, or a record torn by a crash; everything before it stands
+            }
+        }
+        for (Map.Entry<String, ArrayDeque<Entry>> queue : queues.entrySet()) {
+            if (queue.getValue().isEmpty()) {
+                continue;
+            }
+            Recipient recipient = new Recipient();
+            recipient.queue.addAll(queue.getValue());
+            recipients.put(queue.getKey(), recipient);
+            for (Entry entry : queue.getValue()) {
+                entry.segment.live++;
+                waiting.put(entry.id, entry);
+                waitingBytes.addAndGet(entry.length);
+                waitingCount.incrementAndGet();
+                // Counted even past a quota lowered since they were stored
+                senders.computeIfAbsent(entry.sender, s -> new SenderQuota()).add(entry.recipient);
+            }
+        }
+        for (Iterator<Segment> it = segments.values().iterator(); it.hasNext(); ) {
+            Segment segment = it.next();
+            if (segment.live == 0 && segment != segments.lastEntry().getValue()) {
+                it.remove();
+                segment.delete();
+            }
+        }
+        compact();
+        lastSweep.set(System.currentTimeMillis());
+        LOG.info("offline.recovered", "dir", dir, "recipients", recipients.size(), "messages", waitingCount.get(),
+                "segments", segments.size());
+    }
+
+    private Path segmentPath(long number) {
+        return dir.resolve(String.format("%020d%s", number, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Stores a PRIVATE_MESSAGE frame from its sender for its recipient, the frame's room.
+     *
+     * @return false when the recipient's, the sender's or the store's quota is used up, or
+     *         the disk failed
+     */
+    boolean store(ChatFrame message) {
+        sweepIfDue();
+        String recipientName = message.getRoom();
+        String sender = message.getSender();
+        byte[] record = message.toBinary();
+        if (!reserve(sender, recipientName, record.length)) {
+            rejected.increment();
+            return false;
+        }
+        long seq;
+        Entry entry;
+        while (true) {
+            Recipient recipient = recipients.computeIfAbsent(recipientName, r -> new Recipient());
+            recipient.lock.lock();
+            try {
+                if (recipients.get(recipientName) != recipient) {
+                    // Emptied and dropped between the lookup and the lock
+                    continue;
+                }
+                if (recipient.queue.size() >= maxPerUser) {
+                    unreserve(sender, recipientName, record.length);
+                    rejected.increment();
+                    return false;
+                }
+                journalLock.lock();
+                try {
+                    Segment segment = segments.lastEntry().getValue();
+                    if (segment.size > 0 && segment.size + record.length > SEGMENT_BYTES) {
+                        segment = roll();
+                    }
+                    entry = new Entry(nextId, recipientName, sender, segment, segment.size, record.length,
+                            message.getTimestamp());
+                    segment.append(record);
+                    nextId++;
+                    segment.live++;
+                    waiting.put(entry.id, entry);
+                    seq = queueRecord(stored(entry));
+                } finally {
+                    journalLock.unlock();
+                }
+                // Ids are handed out under the recipient's lock, so its queue stays in id order
+                recipient.queue.add(entry);
+                waitingCount.incrementAndGet();
+                break;
+            } catch (IOException e) {
+                LOG.error("offline.store.failed", "recipient", recipientName, e);
+                unreserve(sender, recipientName, record.length);
+                rejected.increment();
+                return false;
+            } finally {
+                if (recipient.queue.isEmpty()) {
+                    recipients.remove(recipientName, recipient);
+                }
+                recipient.lock.unlock();
+            }
+        }
+        try {
+            sync(seq);
+        } catch (IOException e) {
+            LOG.error("offline.sync.failed", "recipient", recipientName, e);
+            if (withdraw(recipientName, entry)) {
+                rejected.increment();
+                return false;
+            }
+            // Already on its way to the recipient, so as good as stored
+        }
+        stored.increment();
+        return true;
+    }
+
+    /**
+     * After a failed sync, takes back a message its sender is about to be told was not
+     * stored, so that a retry does not leave it waiting twice. Its STORED record may still
+     * reach the journal with a later group commit; the WITHDRAWN record queued behind it
+     * cancels it on replay. False when the message is already being delivered.
+     */
+    private boolean withdraw(String recipientName, Entry entry) {
+        Recipient recipient = recipients.get(recipientName);
+        if (recipient == null) {
+            return false;
+        }
+        long seq;
+        recipient.lock.lock();
+        try {
+            if (recipients.get(recipientName) != recipient) {
+                return false;
+            }
+            int position = 0;
+            for (Entry queued : recipient.queue) {
+                if (queued == entry) {
+                    break;
+                }
+                position++;
+            }
+            if (position == recipient.queue.size() || position < recipient.handedOut) {
+                return false;
+            }
+            recipient.queue.remove(entry);
+            journalLock.lock();
+            try {
+                waiting.remove(entry.id);
+                if (--entry.segment.live == 0 && entry.segment != segments.lastEntry().getValue()) {
+                    segments.remove(entry.segment.number);
+                    entry.segment.delete();
+                }
+                seq = queueRecord(withdrawn(recipientName, entry.id));
+            } finally {
+                journalLock.unlock();
+            }
+            if (recipient.queue.isEmpty()) {
+                recipients.remove(recipientName, recipient);
+            }
+        } finally {
+            recipient.lock.unlock();
+        }
+        release(List.of(entry));
+        try {
+            sync(seq);
+        } catch (IOException e) {
+            // Queued all the same: it goes out with the next group commit that succeeds
+            LOG.warn("offline.withdraw.pending", "recipient", recipientName, "error", e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Hands out up to max of the recipient's messages, oldest first, without removing
+     * them: they keep waiting, and are not handed out again, until the caller reports
+     * them delivered or gives them back. Null when nothing is waiting or an earlier
+     * hand-out to the recipient is still outstanding.
+     */
+    Delivery handOut(String recipientName, int max) {
+        Recipient recipient = recipients.get(recipientName);
+        if (recipient == null) {
+            return null;
+        }
+        List<Entry> entries = new ArrayList<>();
+        List<ChatFrame> messages = new ArrayList<>();
+        int tooOld = 0;
+        recipient.lock.lock();
+        try {
+            if (recipients.get(recipientName) != recipient || recipient.handedOut > 0 || recipient.queue.isEmpty()) {
+                return null;
+            }
+            long cutoff = System.currentTimeMillis() - retentionMillis;
+            for (Iterator<Entry> it = recipient.queue.iterator(); it.hasNext() && entries.size() < max; ) {
+                Entry entry = it.next();
+                entries.add(entry);
+                if (entry.time < cutoff) {
+                    tooOld++;
+                    continue;
+                }
+                try {
+                    // Still waiting, so its segment cannot be deleted under the read
+                    messages.add(entry.segment.read(entry));
+                } catch (IOException e) {
+                    LOG.warn("offline.record.unreadable", "recipient", recipientName, e);
+                }
+            }
+            recipient.handedOut = entries.size();
+        } finally {
+            recipient.lock.unlock();
+        }
+        return new Delivery(recipientName, recipient, entries, messages, tooOld);
+    }
+
+    /** The handed-out messages were passed on to the recipient, so they stop waiting. */
+    void delivered(Delivery delivery) {
+        Recipient recipient = delivery.recipient;
+        long seq;
+        recipient.lock.lock();
+        try {
+            // Stores only add at the tail and the sweep leaves a recipient with a hand-out
+            // alone, so the handed-out entries are still the oldest
+            for (int i = 0; i < delivery.entries.size(); i++) {
+                recipient.queue.pollFirst();
+            }
+            recipient.handedOut = 0;
+            seq = forget(delivery.recipientName, delivery.entries);
+            if (recipient.queue.isEmpty()) {
+                recipients.remove(delivery.recipientName, recipient);
+            }
+        } finally {
+            recipient.lock.unlock();
+        }
+        release(delivery.entries);
+        try {
+            sync(seq);
+        } catch (IOException e) {
+            // They would come again on the next start; better than losing them now
+            LOG.error("offline.index.failed", "recipient", delivery.recipientName, e);
+        }
+        delivered.add(delivery.messages.size());
+        expired.add(delivery.expired);
+        maybeCompact();
+    }
+
+    /** The handed-out messages could not be passed on; they wait for the next hand-out. */
+    void giveBack(Delivery delivery) {
+        delivery.recipient.lock.lock();
+        try {
+            delivery.recipient.handedOut = 0;
+        } finally {
+            delivery.recipient.lock.unlock();
+        }
+    }
+
+    /** Messages waiting over all recipients. */
+    int waitingCount() {
+        return waitingCount.get();
+    }
+
+    // Counts a message against the store's and the sender's quotas, or refuses it
+    private boolean reserve(String sender, String recipient, int length) {
+        if (waitingBytes.addAndGet(length) > maxBytes) {
+            waitingBytes.addAndGet(-length);
+            return false;
+        }
+        boolean[] taken = new boolean[1];
+        senders.compute(sender, (name, quota) -> {
+            quota = quota != null ? quota : new SenderQuota();
+            taken[0] = quota.take(recipient, maxPerSender, maxRecipientsPerSender);
+            return quota.isEmpty() ? null : quota;
+        });
+        if (!taken[0]) {
+            waitingBytes.addAndGet(-length);
+        }
+        return taken[0];
+    }
+
+    private void unreserve(String sender, String recipient, int length) {
+        waitingBytes.addAndGet(-length);
+        senders.computeIfPresent(sender, (name, quota) -> {
+            quota.remove(recipient);
+            return quota.isEmpty() ? null : quota;
+        });
+    }
+
+    // Hands back the quota taken by entries no longer waiting
+    private void release(Collection<Entry> entries) {
+        for (Entry entry : entries) {
+            unreserve(entry.sender, entry.recipient, entry.length);
+        }
+        waitingCount.addAndGet(-entries.size());
+    }
+
+    // Drops messages past the retention period, at most once a minute
+    private void sweepIfDue() {
+        long now = System.currentTimeMillis();
+        long last = lastSweep.get();
+        if (now - last < SWEEP_INTERVAL_MILLIS || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        long cutoff = now - retentionMillis;
+        long seq = 0;
+        for (Map.Entry<String, Recipient> candidate : recipients.entrySet()) {
+            String recipientName = candidate.getKey();
+            Recipient recipient = candidate.getValue();
+            List<Entry> old = new ArrayList<>();
+            recipient.lock.lock();
+            try {
+                if (recipients.get(recipientName) != recipient || recipient.handedOut > 0) {
+                    // A recipient with a hand-out outstanding is swept next time
+                    continue;
+                }
+                while (!recipient.queue.isEmpty() && recipient.queue.peekFirst().time < cutoff) {
+                    old.add(recipient.queue.pollFirst());
+                }
+                if (old.isEmpty()) {
+                    continue;
+                }
+                seq = forget(recipientName, old);
+                if (recipient.queue.isEmpty()) {
+                    recipients.remove(recipientName, recipient);
+                }
+            } finally {
+                recipient.lock.unlock();
+            }
+            release(old);
+            expired.add(old.size());
+            LOG.info("offline.expired", "recipient", recipientName, "messages", old.size());
+        }
+        try {
+            sync(seq);
+        } catch (IOException e) {
+            LOG.error("offline.index.failed", "dir", dir, e);
+        }
+        maybeCompact();
+    }
+
+    // Recipient's lock held: journals that its messages through the last of entries are
+    // gone, and deletes segments left with none waiting. Returns the record's number.
+    private long forget(String recipient, List<Entry> entries) {
+        journalLock.lock();
+        try {
+            Segment active = segments.lastEntry().getValue();
+            for (Entry entry : entries) {
+                waiting.remove(entry.id);
+                if (--entry.segment.live == 0 && entry.segment != active) {
+                    segments.remove(entry.segment.number);
+                    entry.segment.delete();
+                }
+            }
+            return queueRecord(delivered(recipient, entries.get(entries.size() - 1).id));
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    // Journal lock held: forces the active segment, which from then on only takes reads
+    private Segment roll() throws IOException {
+        Segment sealed = segments.lastEntry().getValue();
+        sealed.channel.force(true);
+        Segment next = new Segment(sealed.number + 1, segmentPath(sealed.number + 1));
+        segments.put(next.number, next);
+        if (sealed.live == 0) {
+            segments.remove(sealed.number);
+            sealed.delete();
+        }
+        return next;
+    }
+
+    // Journal lock held: queues a record for the next group commit and returns its number
+    private long queueRecord(byte[] record) {
+        unwritten.add(record);
+        return ++queuedRecords;
+    }
+
+    /**
+     * Returns once journal record number seq, and with it every one before it, is on disk.
+     * One thread at a time writes out everything queued so far, without holding a lock;
+     * the threads that queue records meanwhile wait for it to finish, and one of those
+     * not covered by then goes next, taking all of theirs along.
+     */
+    private void sync(long seq) throws IOException {
+        if (syncedRecords >= seq) {
+            return;
+        }
+        syncLock.lock();
+        try {
+            while (syncedRecords < seq) {
+                if (syncing) {
+                    syncDone.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                long through = -1;
+                syncLock.unlock();
+                try {
+                    through = writeQueued();
+                } finally {
+                    syncLock.lock();
+                    syncing = false;
+                    if (through >= 0) {
+                        syncedRecords = through;
+                    }
+                    syncDone.signalAll();
+                }
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    // Only ever run by the one thread that set syncing: forces the active segment, then
+    // appends and forces the queued journal records. Returns the number of the last.
+    private long writeQueued() throws IOException {
+        Segment active;
+        byte[][] batch;
+        long through;
+        journalLock.lock();
+        try {
+            active = segments.lastEntry().getValue();
+            batch = unwritten.toArray(new byte[0][]);
+            through = queuedRecords;
+        } finally {
+            journalLock.unlock();
+        }
+        // Frames first: a journal record must never point past what reached the disk
+        try {
+            active.channel.force(false);
+        } catch (ClosedChannelException e) {
+            // Rolled and deleted since, which happens only with none of its messages waiting
+        }
+        int length = 0;
+        for (byte[] record : batch) {
+            length += record.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (byte[] record : batch) {
+            buffer.put(record);
+        }
+        buffer.flip();
+        long before = index.size();
+        try {
+            while (buffer.hasRemaining()) {
+                index.write(buffer);
+            }
+            index.force(false);
+        } catch (IOException e) {
+            // The records stay queued for the next attempt; none of them may be left half written
+            try {
+                index.truncate(before);
+            } catch (IOException ignored) {
+                // The replay stops at the torn record anyway
+            }
+            throw e;
+        }
+        journalLock.lock();
+        try {
+            for (int i = 0; i < batch.length; i++) {
+                unwritten.poll();
+            }
+        } finally {
+            journalLock.unlock();
+        }
+        indexRecords += batch.length;
+        return through;
+    }
+
+    // Takes the sync lock once no group commit is running, and keeps others from starting
+    private void lockIndex() {
+        syncLock.lock();
+        while (syncing) {
+            syncDone.awaitUninterruptibly();
+        }
+    }
+
+    private static byte[] stored(Entry entry) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(80);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(STORED);
+            out.writeLong(entry.id);
+            out.writeUTF(entry.recipient);
+            out.writeUTF(entry.sender);
+            out.writeLong(entry.segment.number);
+            out.writeLong(entry.position);
+            out.writeInt(entry.length);
+            out.writeLong(entry.time);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] withdrawn(String recipient, long id) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(WITHDRAWN);
+            out.writeUTF(recipient);
+            out.writeLong(id);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] delivered(String recipient, long through) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(DELIVERED);
+            out.writeUTF(recipient);
+            out.writeLong(through);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void maybeCompact() {
+        lockIndex();
+        journalLock.lock();
+        try {
+            long records = indexRecords + unwritten.size();
+            if (records > 10_000 && records > 4L * waiting.size()) {
+                compact();
+            }
+        } catch (IOException e) {
+            LOG.warn("offline.compact.failed", "dir", dir, "error", e.getMessage());
+        } finally {
+            journalLock.unlock();
+            syncLock.unlock();
+        }
+    }
+
+    // Both locks held: rewrites the journal with just the waiting messages, which already
+    // accounts for every record still queued, then swaps it in
+    private void compact() throws IOException {
+        Path indexFile = dir.resolve(INDEX_FILE);
+        Path rewritten = dir.resolve(INDEX_FILE + ".tmp");
+        segments.lastEntry().getValue().channel.force(false);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(rewritten))) {
+            for (Entry entry : waiting.values()) {
+                out.write(stored(entry));
+            }
+        }
+        try (FileChannel channel = FileChannel.open(rewritten, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        if (index != null) {
+            index.close();
+        }
+        Files.move(rewritten, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        index = FileChannel.open(indexFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        indexRecords = waiting.size();
+        unwritten.clear();
+        syncedRecords = queuedRecords;
+    }
+
+    void close() {
+        lockIndex();
+        journalLock.lock();
+        try {
+            compact();
+            index.close();
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("offline.close.failed", "dir", dir, "error", e.getMessage());
+        } finally {
+            journalLock.unlock();
+            syncLock.unlock();
+        }
+    }
+
+    /** One recipient's waiting messages, in id order, guarded by its lock. */
+    private static final class Recipient {
+        final ReentrantLock lock = new ReentrantLock();
+        final ArrayDeque<Entry> queue = new ArrayDeque<>();
+        // How many at the head of the queue are handed out and not yet delivered or given back
+        int handedOut;
+    }
+
+    /** Messages handed out to be passed on to their recipient; see handOut. */
+    static final class Delivery {
+        private final String recipientName;
+        private final Recipient recipient;
+        private final List<Entry> entries;
+        private final List<ChatFrame> messages;
+        // Past the retention period: not passed on, but done with when the rest are
+        private final int expired;
+
+        private Delivery(String recipientName, Recipient recipient, List<Entry> entries, List<ChatFrame> messages,
+                         int expired) {
+            this.recipientName = recipientName;
+            this.recipient = recipient;
+            this.entries = entries;
+            this.messages = messages;
+            this.expired = expired;
+        }
+
+        /** The messages to pass on, oldest first; may be fewer than were handed out. */
+        List<ChatFrame> messages() {
+            return messages;
+        }
+    }
+
+    /** What one sender has waiting; only touched inside the senders map's compute calls. */
+    private static final class SenderQuota {
+        final Map<String, Integer> perRecipient = new HashMap<>();
+        int messages;
+
+        boolean take(String recipient, int maxMessages, int maxRecipients) {
+            if (messages >= maxMessages
+                    || (!perRecipient.containsKey(recipient) && perRecipient.size() >= maxRecipients)) {
+                return false;
+            }
+            add(recipient);
+            return true;
+        }
+
+        void add(String recipient) {
+            perRecipient.merge(recipient, 1, Integer::sum);
+            messages++;
+        }
+
+        void remove(String recipient) {
+            perRecipient.computeIfPresent(recipient, (r, count) -> count > 1 ? count - 1 : null);
+            messages--;
+        }
+
+        boolean isEmpty() {
+            return messages <= 0;
+        }
+    }
+
+    private static final class Entry {
+        final long id;
+        final String recipient;
+        final String sender;
+        final Segment segment;
+        final long position;
+        final int length;
+        final long time;
+
+        Entry(long id, String recipient, String sender, Segment segment, long position, int length, long time) {
+            this.id = id;
+            this.recipient = recipient;
+            this.sender = sender;
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+            this.time = time;
+        }
+    }
+
+    private static final class Segment {
+        final long number;
+        final Path file;
+        final FileChannel channel;
+        // Guarded by the journal lock. Records that a crash left without an index entry
+        // stay behind as unreferenced bytes
+        long size;
+        int live;
+
+        Segment(long number, Path file) throws IOException {
+            this.number = number;
+            this.file = file;
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+
+        // Forced by the next group commit, or when the segment is sealed
+        void append(byte[] record) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            long position = size;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            size = position;
+        }
+
+        ChatFrame read(Entry entry) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+            long position = entry.position;
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, position);
+                if (n < 0) {
+                    throw new EOFException("segment ends before the record");
+                }
+                position += n;
+            }
+            buffer.flip();
+            int length = buffer.getInt();
+            if (length != entry.length - 4) {
+                throw new IOException("bad record length " + length);
+            }
+            try {
+                return ChatFrame.decode(buffer);
+            } catch (RuntimeException e) {
+                throw new IOException("malformed record", e);
+            }
+        }
+
+        void delete() {
+            try {
+                channel.close();
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                LOG.warn("segment.delete.failed", "file", file, "error", e.getMessage());
+            }
+        }
+    }
+}
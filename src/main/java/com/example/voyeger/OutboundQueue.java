@@ -0,0 +1,249 @@
+package com.example.voyeger;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded per-connection queue of outgoing frames. Broadcasting threads only ever
+ * enqueue here; the connection's own writer (a writer thread for ClientHandler, the
+ * reactor for NIO connections) drains it, so one stalled socket cannot hold up a
+ * broadcast to everyone else in the room.
+ */
+class OutboundQueue {
+
+    public enum OverflowPolicy {
+        DROP_OLDEST,    // evict the oldest queued frame to make room
+        DISCONNECT,     // the client cannot keep up, close it
+        COALESCE        // replace superseded presence events, otherwise drop oldest
+    }
+
+    /** Server-wide totals shared by every queue on one ChatServer. */
+    static class Stats {
+        final LongAdder enqueued = new LongAdder();
+        final LongAdder dropped = new LongAdder();
+        final LongAdder coalesced = new LongAdder();
+        final LongAdder disconnected = new LongAdder();
+        // Socket writes the queues' frames went out in; enqueued / writes is the batching factor
+        final LongAdder writes = new LongAdder();
+    }
+
+    private final ArrayDeque<ChatFrame> queue;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final Stats stats;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private int highWater;
+    private boolean closed;
+
+    OutboundQueue(int capacity, OverflowPolicy policy, Stats stats) {
+        this.queue = new ArrayDeque<>(Math.min(capacity, 64));
+        this.capacity = capacity;
+        this.policy = policy;
+        this.stats = stats;
+    }
+
+    /**
+     * Queues a frame without blocking.
+     *
+     * @return false when the DISCONNECT policy rejected it and the caller should close the connection
+     */
+    boolean offer(ChatFrame message) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            if (!enqueue(message)) {
+                return false;
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues several frames under one lock acquisition and one wakeup, so the writer
+     * sees them together and sends them in a single batch.
+     *
+     * @return false when the DISCONNECT policy rejected them and the caller should close the connection
+     */
+    boolean offerAll(List<ChatFrame> messages) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            for (ChatFrame message : messages) {
+                if (!enqueue(message)) {
+                    return false;
+                }
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues all of the frames or none of them: refuses them on a closed queue or one
+     * without room for them all, rather than evicting or disconnecting. For frames the
+     * caller keeps until they are queued, and can offer again later.
+     *
+     * @return false when nothing was queued
+     */
+    boolean offerAllOrNone(List<ChatFrame> messages) {
+        lock.lock();
+        try {
+            if (closed || queue.size() + messages.size() > capacity) {
+                return false;
+            }
+            for (ChatFrame message : messages) {
+                enqueue(message);
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Caller holds the lock and signals notEmpty afterwards
+    @SuppressWarnings("fallthrough")
+    private boolean enqueue(ChatFrame message) {
+        if (queue.size() >= capacity) {
+            switch (policy) {
+                case DISCONNECT:
+                    stats.disconnected.increment();
+                    closed = true;
+                    queue.clear();
+                    notEmpty.signalAll();
+                    return false;
+                case COALESCE:
+                    if (coalesce(message)) {
+                        stats.coalesced.increment();
+                        break;
+                    }
+                    // Nothing to merge, fall through to dropping the oldest frame
+                case DROP_OLDEST:
+                    queue.pollFirst();
+                    stats.dropped.increment();
+                    break;
+            }
+        }
+        queue.addLast(message);
+        stats.enqueued.increment();
+        if (queue.size() > highWater) {
+            highWater = queue.size();
+        }
+        return true;
+    }
+
+    /**
+     * Presence events are state, not history: a queued USER_JOIN/USER_LEAVE for the
+     * same user as the new one is stale, and any presence event is cheaper to lose
+     * than a chat line. Only called on overflow, so the linear scan is off the fast path.
+     */
+    private boolean coalesce(ChatFrame message) {
+        String key = presenceKey(message);
+        Iterator<ChatFrame> it = queue.iterator();
+        while (key != null && it.hasNext()) {
+            if (key.equals(presenceKey(it.next()))) {
+                it.remove();
+                return true;
+            }
+        }
+        it = queue.iterator();
+        while (it.hasNext()) {
+            if (presenceKey(it.next()) != null) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String presenceKey(ChatFrame message) {
+        ChatFrame.Type type = message.getType();
+        if (type == ChatFrame.Type.USER_JOIN || type == ChatFrame.Type.USER_LEAVE) {
+            return message.getSender();
+        }
+        return null;
+    }
+
+    /** Moves up to max queued frames into batch without waiting. */
+    int drainTo(List<ChatFrame> batch, int max) {
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < max && !queue.isEmpty()) {
+                batch.add(queue.pollFirst());
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until at least one frame is queued, then drains up to max of them.
+     *
+     * @return false once the queue is closed and empty
+     */
+    boolean awaitAndDrain(List<ChatFrame> batch, int max) throws InterruptedException {
+        lock.lock();
+        try {
+            while (queue.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            if (queue.isEmpty()) {
+                return false;
+            }
+            drainTo(batch, max);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Counts one socket write carrying frames from this queue. */
+    void recordWrite() {
+        stats.writes.increment();
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int depth() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int highWater() {
+        lock.lock();
+        try {
+            return highWater;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.voyeger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Handshake proofs that both ends of a mesh link hold the cluster secret (chat.clusterSecret).
+ *
+ * The accepting server opens with a random challenge. The dialing server answers with its
+ * HELLO: its name, its peer address, a challenge of its own and an HMAC-SHA256 over all of
+ * them and the accepted challenge. The accepting server checks it and answers with an HMAC
+ * over both challenges and its own name. Each side sees a challenge it just made up signed,
+ * so a recorded handshake cannot be replayed to either, and the role is part of the input,
+ * so one side's proof cannot be reflected back as the other's.
+ */
+final class PeerAuth {
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final SecretKeySpec key;
+    private final SecureRandom random = new SecureRandom();
+
+    PeerAuth(byte[] secret) {
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+    }
+
+    long challenge() {
+        return random.nextLong();
+    }
+
+    /** The dialing server's proof, sent in its HELLO. */
+    byte[] dialerProof(String name, String address, long acceptorChallenge, long dialerChallenge) {
+        return mac("dial", name, address, acceptorChallenge, dialerChallenge);
+    }
+
+    /** The accepting server's proof, sent once the dialer's HELLO checked out. */
+    byte[] acceptorProof(String name, long acceptorChallenge, long dialerChallenge) {
+        return mac("accept", name, "", acceptorChallenge, dialerChallenge);
+    }
+
+    static boolean matches(byte[] expected, byte[] actual) {
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    private byte[] mac(String role, String name, String address, long acceptorChallenge, long dialerChallenge) {
+        byte[] roleBytes = role.getBytes(StandardCharsets.UTF_8);
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] addressBytes = address.getBytes(StandardCharsets.UTF_8);
+        // Lengths first, so no name and address pair reads the same as another
+        ByteBuffer input = ByteBuffer.allocate(12 + roleBytes.length + nameBytes.length + addressBytes.length + 16);
+        input.putInt(roleBytes.length).put(roleBytes).putInt(nameBytes.length).put(nameBytes)
+                .putInt(addressBytes.length).put(addressBytes).putLong(acceptorChallenge).putLong(dialerChallenge);
+        try {
+            // A handshake is rare, so a Mac each time rather than one per thread
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac.doFinal(input.array());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package com.example.voyeger;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Who is online where, across every server of the cluster, as seen by one ChatServer.
+ *
+ * Each server is the authority for its own connections. It numbers every change to
+ * them (a user entering or leaving a room) with a version and sends the change to its
+ * peers as a PRESENCE delta: the origin server as sender, the version as id, the room,
+ * and "+user" or "-user". A peer applies an origin's deltas in version order, ignores
+ * ones it already has, and on a gap asks the origin for a PRESENCE_SYNC snapshot of
+ * everything it holds, which replaces what the peer knew of it. A new mesh link always
+ * starts with a snapshot, and an origin whose link drops is forgotten until then.
+ *
+ * The cluster-wide view, room to users and user to rooms, is kept in concurrent maps
+ * beside the per-origin state, so "who is in room R" and "is U online" are a map
+ * lookup and never take the lock. Clients subscribed to a room (or to everyone, as
+ * room "") get the room's list once, as a PRESENCE_SYNC with comma-separated names,
+ * then a PRESENCE "+user"/"-user" whenever someone comes or goes. Updates and
+ * subscriptions are serialized by the lock, so a subscriber misses nothing between its
+ * list and the first change.
+ */
+final class PresenceIndex {
+    static final String EVERYONE = "";
+
+    private final String self;
+    private final Consumer<ChatFrame> replicate;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Under the lock: per origin server, "user\nroom" -> its connections there
+    private final Map<String, Map<String, Integer>> origins = new HashMap<>();
+    private final Map<String, Long> versions = new HashMap<>();
+    private final Map<String, Set<ChatConnection>> subscribers = new HashMap<>();
+    private final Map<ChatConnection, Set<String>> subscriptions = new HashMap<>();
+    private long localVersion = 1;
+    // Cluster-wide view, read without the lock: room -> user -> connections, user -> connections
+    private final Map<String, Map<String, Integer>> rooms = new ConcurrentHashMap<>();
+    private final Map<String, Integer> users = new ConcurrentHashMap<>();
+    // Local deltas in version order, waiting to be handed to replicate outside the lock
+    private final Queue<ChatFrame> outgoing = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean replicating = new AtomicBoolean();
+
+    /**
+     * @param replicate gets every local delta, in version order and one at a time, but
+     *                  not under this index's lock, so it may apply them to another
+     *                  server's index in the same JVM; must not block
+     */
+    PresenceIndex(String self, Consumer<ChatFrame> replicate) {
+        this.self = self;
+        this.replicate = replicate;
+    }
+
+    void localJoin(String user, String room) {
+        localChange(user, room, 1);
+    }
+
+    void localLeave(String user, String room) {
+        localChange(user, room, -1);
+    }
+
+    private void localChange(String user, String room, int delta) {
+        lock.lock();
+        try {
+            if (change(self, user, room, delta)) {
+                long version = ++localVersion;
+                outgoing.add(ChatFrame.of(ChatFrame.Type.PRESENCE, self, room, (delta > 0 ? "+" : "-") + user)
+                        .withId(version));
+            }
+        } finally {
+            lock.unlock();
+        }
+        // Whoever gets the flag sends everything queued, so deltas leave in the order they were numbered
+        while (!outgoing.isEmpty() && replicating.compareAndSet(false, true)) {
+            try {
+                ChatFrame queued;
+                while ((queued = outgoing.poll()) != null) {
+                    replicate.accept(queued);
+                }
+            } finally {
+                replicating.set(false);
+            }
+        }
+    }
+
+    /**
+     * Applies a peer's delta.
+     *
+     * @return false when deltas from its origin were missed and a snapshot is needed
+     */
+    boolean applyDelta(ChatFrame delta) {
+        String origin = delta.getSender();
+        String body = delta.getBodyText();
+        if (body.length() < 2 || origin.equals(self)) {
+            return true;
+        }
+        lock.lock();
+        try {
+            // Versions start at 1 with nothing online, so a first delta needs no snapshot before it
+            long last = versions.getOrDefault(origin, 1L);
+            if (delta.getId() <= last) {
+                return true;
+            }
+            if (delta.getId() != last + 1) {
+                return false;
+            }
+            versions.put(origin, delta.getId());
+            change(origin, body.substring(1), delta.getRoom(), body.charAt(0) == '+' ? 1 : -1);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** This server's connections as a PRESENCE_SYNC for a peer: one "user\troom\tcount" per line. */
+    ChatFrame snapshot() {
+        lock.lock();
+        try {
+            StringBuilder body = new StringBuilder();
+            for (Map.Entry<String, Integer> entry : origins.getOrDefault(self, Map.of()).entrySet()) {
+                body.append(entry.getKey().replace('\n', '\t')).append('\t').append(entry.getValue()).append('\n');
+            }
+            return ChatFrame.of(ChatFrame.Type.PRESENCE_SYNC, self, null, body.toString()).withId(localVersion);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Replaces what is known of a peer with its snapshot; only actual differences reach subscribers. */
+    void applySnapshot(ChatFrame snapshot) {
+        String origin = snapshot.getSender();
+        if (origin.equals(self)) {
+            return;
+        }
+        Map<String, Integer> received = new HashMap<>();
+        for (String line : snapshot.getBodyText().split("\n")) {
+            String[] parts = line.split("\t");
+            if (parts.length == 3) {
+                try {
+                    received.merge(parts[0] + "\n" + parts[1], Integer.parseInt(parts[2]), Integer::sum);
+                } catch (NumberFormatException e) {
+                    // Skip the entry; the next snapshot will carry it again
+                }
+            }
+        }
+        lock.lock();
+        try {
+            replace(origin, received);
+            versions.put(origin, snapshot.getId());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The peer went away; its users are offline until it reconnects and sends a snapshot. */
+    void dropOrigin(String origin) {
+        lock.lock();
+        try {
+            replace(origin, Map.of());
+            versions.remove(origin);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Lock held
+    private void replace(String origin, Map<String, Integer> received) {
+        Set<String> keys = new HashSet<>(received.keySet());
+        keys.addAll(origins.getOrDefault(origin, Map.of()).keySet());
+        for (String key : keys) {
+            int before = origins.getOrDefault(origin, Map.of()).getOrDefault(key, 0);
+            int after = received.getOrDefault(key, 0);
+            if (after != before) {
+                int split = key.indexOf('\n');
+                change(origin, key.substring(0, split), key.substring(split + 1), after - before);
+            }
+        }
+    }
+
+    /**
+     * Lock held: adds delta connections of user in room at origin and tells subscribers
+     * when that puts the user in or out of the room, or online or offline.
+     *
+     * @return false when there was nothing to remove
+     */
+    private boolean change(String origin, String user, String room, int delta) {
+        Map<String, Integer> entries = origins.computeIfAbsent(origin, o -> new HashMap<>());
+        String key = user + "\n" + room;
+        int count = entries.getOrDefault(key, 0) + delta;
+        if (count < 0) {
+            return false;
+        }
+        if (count == 0) {
+            entries.remove(key);
+            if (entries.isEmpty()) {
+                origins.remove(origin);
+            }
+        } else {
+            entries.put(key, count);
+        }
+        Map<String, Integer> members = rooms.computeIfAbsent(room, r -> new ConcurrentHashMap<>());
+        if (adjust(members, user, delta)) {
+            publish(room, user, delta > 0);
+        }
+        if (members.isEmpty()) {
+            rooms.remove(room);
+        }
+        if (adjust(users, user, delta)) {
+            publish(EVERYONE, user, delta > 0);
+        }
+        return true;
+    }
+
+    // Lock held. @return true when the count went from zero or to zero
+    private static boolean adjust(Map<String, Integer> counts, String user, int delta) {
+        int before = counts.getOrDefault(user, 0);
+        int after = Math.max(0, before + delta);
+        if (after == 0) {
+            counts.remove(user);
+        } else {
+            counts.put(user, after);
+        }
+        return (before == 0) != (after == 0);
+    }
+
+    // Lock held
+    private void publish(String room, String user, boolean online) {
+        Set<ChatConnection> watching = subscribers.get(room);
+        if (watching == null) {
+            return;
+        }
+        ChatFrame change = ChatFrame.of(ChatFrame.Type.PRESENCE, null, room, (online ? "+" : "-") + user);
+        for (ChatConnection client : watching) {
+            client.sendMessage(change);
+        }
+    }
+
+    /** Sends the client who is in room (or online, for EVERYONE) now, then every change to it. */
+    void subscribe(String room, ChatConnection client) {
+        lock.lock();
+        try {
+            subscribers.computeIfAbsent(room, r -> new HashSet<>()).add(client);
+            subscriptions.computeIfAbsent(client, c -> new HashSet<>()).add(room);
+            Set<String> present = room.equals(EVERYONE) ? onlineUsers() : usersIn(room);
+            client.sendMessage(ChatFrame.of(ChatFrame.Type.PRESENCE_SYNC, null, room, String.join(",", present)));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void unsubscribeAll(ChatConnection client) {
+        lock.lock();
+        try {
+            Set<String> watched = subscriptions.remove(client);
+            if (watched == null) {
+                return;
+            }
+            for (String room : watched) {
+                Set<ChatConnection> watching = subscribers.get(room);
+                watching.remove(client);
+                if (watching.isEmpty()) {
+                    subscribers.remove(room);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Users with a connection in the room on any server; a live view. */
+    Set<String> usersIn(String room) {
+        Map<String, Integer> members = rooms.get(room);
+        return members != null ? Collections.unmodifiableSet(members.keySet()) : Set.of();
+    }
+
+    /** Users connected to any server; a live view. */
+    Set<String> onlineUsers() {
+        return Collections.unmodifiableSet(users.keySet());
+    }
+
+    boolean isOnline(String user) {
+        return users.containsKey(user);
+    }
+
+    int onlineCount() {
+        return users.size();
+    }
+}
@@ -14,6 +14,7 @@ import javafx.scene.text.FontWeight;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
@@ -53,14 +54,25 @@ public class PrivateChatController {
     private Socket socket;
     private BufferedReader in;
     private PrintWriter out;
+    // Set instead of in/out when the server accepted binary frames
+    private boolean binary;
+    private DataInputStream frameIn;
+    private OutputStream frameOut;
     private String currentUsername;
     private String currentChatUser;
     private ObservableList<String> onlineUsers;
+    // FX thread only: onlineUsers as a set, the list version it reflects (0 while a first
+    // page is awaited), and pages still to come that belong to an abandoned snapshot
+    private final Set<String> onlineUserSet = new HashSet<>();
+    private long usersVersion;
+    private int usersPagesOutstanding;
+    private int usersPagesToSkip;
     private Map<String, List<ChatMessage>> messageHistory;
     private boolean connected = false;
 
     private static final String SERVER_HOST = "localhost";
     private static final int SERVER_PORT = 8888;
+    private static final int USERS_PAGE_SIZE = 200;
 
     @FXML
     public void initialize() {
@@ -105,19 +117,13 @@ public class PrivateChatController {
 
         new Thread(() -> {
             try {
-                socket = new Socket(SERVER_HOST, SERVER_PORT);
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
-
-                // Wait for username prompt
-                String prompt = in.readLine();
-                if (prompt.equals("ENTER_USERNAME")) {
-                    out.println(currentUsername);
+                String response = connectBinary();
+                if (response == null) {
+                    response = connectText();
                 }
 
                 // Wait for success
-                String response = in.readLine();
-                if (response.startsWith("SUCCESS:")) {
+                if (response != null && response.startsWith("SUCCESS:")) {
                     connected = true;
                     Platform.runLater(() -> {
                         connectionStatusLabel.setText("● Online");
@@ -126,6 +132,7 @@ public class PrivateChatController {
 
                     // Start listening for messages
                     listenForMessages();
+                    Platform.runLater(this::refreshOnlineUsers);
                 }
             } catch (IOException e) {
                 Platform.runLater(() -> {
@@ -138,7 +145,66 @@ public class PrivateChatController {
         }).start();
     }
 
+    /**
+     * Asks for binary frames right after the username prompt.
+     *
+     * @return the server's SUCCESS line, or null if it does not speak frames
+     */
+    private String connectBinary() throws IOException {
+        socket = new Socket(SERVER_HOST, SERVER_PORT);
+        InputStream rawIn = new BufferedInputStream(socket.getInputStream());
+        OutputStream rawOut = new BufferedOutputStream(socket.getOutputStream());
+
+        String prompt = ChatFrame.readLine(rawIn);
+        if (!"ENTER_USERNAME".equals(prompt)) {
+            return null;
+        }
+        rawOut.write((ChatFrame.NEGOTIATE + "\n").getBytes(StandardCharsets.UTF_8));
+        rawOut.flush();
+        if (!ChatFrame.NEGOTIATE_OK.equals(ChatFrame.readLine(rawIn))) {
+            // An older server took the request for a username; drop it and use text
+            rawOut.write("DISCONNECT\n".getBytes(StandardCharsets.UTF_8));
+            rawOut.flush();
+            socket.close();
+            return null;
+        }
+
+        binary = true;
+        frameIn = new DataInputStream(rawIn);
+        frameOut = rawOut;
+        sendToServer(ChatFrame.of(ChatFrame.Type.USERNAME, currentUsername, null, null));
+        ChatFrame response = ChatFrame.read(frameIn);
+        return response.getType() == ChatFrame.Type.SUCCESS ? response.toText() : null;
+    }
+
+    private String connectText() throws IOException {
+        binary = false;
+        socket = new Socket(SERVER_HOST, SERVER_PORT);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        out = new PrintWriter(socket.getOutputStream(), true);
+
+        // Wait for username prompt
+        String prompt = in.readLine();
+        if (prompt.equals("ENTER_USERNAME")) {
+            out.println(currentUsername);
+        }
+        return in.readLine();
+    }
+
+    private synchronized void sendToServer(ChatFrame frame) throws IOException {
+        if (binary) {
+            frameOut.write(frame.toBinary());
+            frameOut.flush();
+        } else {
+            out.println(frame.toText());
+        }
+    }
+
     private void listenForMessages() {
+        if (binary) {
+            listenForFrames();
+            return;
+        }
         new Thread(() -> {
             try {
                 String message;
@@ -148,7 +214,22 @@ public class PrivateChatController {
 
                     if (message.startsWith("USERS:")) {
                         String usersList = message.substring(6);
-                        updateOnlineUsers(usersList);
+                        updateOnlineUsers(ChatFrame.of(ChatFrame.Type.USERS, null, null, usersList));
+                    } else if (message.startsWith("USERS_PAGE:")) {
+                        // Format: USERS_PAGE:version:cursor:user,user,...
+                        String[] parts = message.substring(11).split(":", 3);
+                        if (parts.length == 3) {
+                            updateOnlineUsers(ChatFrame.of(ChatFrame.Type.USERS_PAGE, null, parts[1], parts[2])
+                                    .withId(Long.parseLong(parts[0])));
+                        }
+                    } else if (message.startsWith("USER_ONLINE:") || message.startsWith("USER_OFFLINE:")) {
+                        // Format: USER_ONLINE:version:user
+                        boolean online = message.startsWith("USER_ONLINE:");
+                        String[] parts = message.substring(online ? 12 : 13).split(":", 2);
+                        if (parts.length == 2) {
+                            updateOnlineUsers(ChatFrame.of(online ? ChatFrame.Type.USER_ONLINE : ChatFrame.Type.USER_OFFLINE,
+                                    parts[1], null, null).withId(Long.parseLong(parts[0])));
+                        }
                     } else if (message.startsWith("MESSAGE:")) {
                         // Format: MESSAGE:sender:content
                         String[] parts = message.substring(8).split(":", 2);
@@ -168,6 +249,8 @@ public class PrivateChatController {
                     } else if (message.startsWith("ERROR:")) {
                         String error = message.substring(6);
                         Platform.runLater(() -> showAlert("Error", error));
+                    } else if (message.equals("PING")) {
+                        replyPong();
                     }
                 }
             } catch (IOException e) {
@@ -180,20 +263,142 @@ public class PrivateChatController {
         }).start();
     }
 
-    private void updateOnlineUsers(String usersList) {
-        Platform.runLater(() -> {
-            onlineUsers.clear();
-            if (!usersList.isEmpty()) {
-                String[] users = usersList.split(",");
-                for (String user : users) {
-                    if (!user.trim().isEmpty()) {
-                        onlineUsers.add(user.trim());
+    // Answers the server's heartbeat so an idle but open window keeps its connection
+    private void replyPong() {
+        try {
+            sendToServer(ChatFrame.of(ChatFrame.Type.PONG, null, null, null));
+        } catch (IOException e) {
+            System.err.println("Failed to answer PING: " + e.getMessage());
+        }
+    }
+
+    private void listenForFrames() {
+        new Thread(() -> {
+            try {
+                while (true) {
+                    ChatFrame frame = ChatFrame.read(frameIn);
+                    switch (frame.getType()) {
+                        case USERS:
+                        case USERS_PAGE:
+                        case USER_ONLINE:
+                        case USER_OFFLINE:
+                            updateOnlineUsers(frame);
+                            break;
+                        case PRIVATE_MESSAGE:
+                            Platform.runLater(() -> receiveMessage(frame.getSender(), frame.getBodyText()));
+                            break;
+                        case SENT:
+                            Platform.runLater(() -> addSentMessage(frame.getRoom(), frame.getBodyText()));
+                            break;
+                        case ERROR:
+                            Platform.runLater(() -> showAlert("Error", frame.getBodyText()));
+                            break;
+                        case PING:
+                            replyPong();
+                            break;
+                        default:
+                            break;
                     }
                 }
+            } catch (IOException e) {
+                Platform.runLater(() -> {
+                    connectionStatusLabel.setText("● Disconnected");
+                    connectionStatusLabel.setStyle("-fx-text-fill: #f44336;");
+                });
+                System.err.println("Listener error: " + e.getMessage());
+            }
+        }).start();
+    }
+
+    /**
+     * Applies a page of the user list, or a change to it, to onlineUsers. The first page of
+     * a snapshot replaces the list and later pages add to it; a change is applied only on
+     * top of the version before it, and anything else means changes were lost, so the list
+     * is fetched again.
+     */
+    private void updateOnlineUsers(ChatFrame frame) {
+        Platform.runLater(() -> {
+            switch (frame.getType()) {
+                case USERS:
+                    // Whole list from a server without paging
+                    setOnlineUsers(frame.getBodyText(), true);
+                    break;
+                case USERS_PAGE:
+                    usersPagesOutstanding--;
+                    if (usersPagesToSkip > 0) {
+                        usersPagesToSkip--;
+                        break;
+                    }
+                    setOnlineUsers(frame.getBodyText(), usersVersion == 0);
+                    usersVersion = frame.getId();
+                    if (!frame.getRoom().isEmpty()) {
+                        requestUsersPage(frame.getRoom());
+                    }
+                    break;
+                case USER_ONLINE:
+                case USER_OFFLINE:
+                    if (usersVersion == 0) {
+                        break;
+                    }
+                    if (frame.getId() != usersVersion + 1) {
+                        refreshOnlineUsers();
+                        break;
+                    }
+                    usersVersion = frame.getId();
+                    String user = frame.getSender();
+                    if (user.equals(currentUsername)) {
+                        break;
+                    }
+                    if (frame.getType() == ChatFrame.Type.USER_ONLINE) {
+                        if (onlineUserSet.add(user)) {
+                            onlineUsers.add(user);
+                        }
+                    } else if (onlineUserSet.remove(user)) {
+                        onlineUsers.remove(user);
+                    }
+                    break;
+                default:
+                    break;
             }
         });
     }
 
+    // FX thread
+    private void setOnlineUsers(String usersList, boolean replace) {
+        List<String> added = new ArrayList<>();
+        if (replace) {
+            onlineUserSet.clear();
+        }
+        for (String user : usersList.split(",")) {
+            user = user.trim();
+            if (!user.isEmpty() && !user.equals(currentUsername) && onlineUserSet.add(user)) {
+                added.add(user);
+            }
+        }
+        if (replace) {
+            onlineUsers.setAll(added);
+        } else {
+            onlineUsers.addAll(added);
+        }
+    }
+
+    // FX thread: starts a fresh snapshot, ignoring pages of one already under way
+    private void refreshOnlineUsers() {
+        usersPagesToSkip = usersPagesOutstanding;
+        usersVersion = 0;
+        requestUsersPage("");
+    }
+
+    // FX thread
+    private void requestUsersPage(String cursor) {
+        try {
+            sendToServer(ChatFrame.of(ChatFrame.Type.GET_USERS, currentUsername, cursor, String.valueOf(USERS_PAGE_SIZE)));
+            usersPagesOutstanding++;
+        } catch (IOException e) {
+            System.err.println("Error requesting users: " + e.getMessage());
+        }
+    }
+
     private void openChatWithUser(String username) {
         currentChatUser = username;
         chatUserLabel.setText(username);
@@ -226,7 +431,12 @@ public class PrivateChatController {
         }
 
         // Send to server
-        out.println("PRIVATE:" + currentChatUser + ":" + message);
+        try {
+            sendToServer(ChatFrame.of(ChatFrame.Type.PRIVATE, currentUsername, currentChatUser, message));
+        } catch (IOException e) {
+            showAlert("Connection Error", "Failed to send message: " + e.getMessage());
+            return;
+        }
         messageInput.clear();
     }
 
@@ -312,7 +522,7 @@ public class PrivateChatController {
     @FXML
     private void handleRefresh() {
         if (connected) {
-            out.println("GET_USERS");
+            refreshOnlineUsers();
         }
     }
 
@@ -334,8 +544,8 @@ public class PrivateChatController {
 
     private void disconnect() {
         try {
-            if (out != null) {
-                out.println("DISCONNECT");
+            if (connected) {
+                sendToServer(ChatFrame.of(ChatFrame.Type.DISCONNECT, currentUsername, null, null));
             }
             if (socket != null && !socket.isClosed()) {
                 socket.close();
@@ -2,60 +2,170 @@ package com.example.voyeger;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * One-to-one chat between logged-in users, by username.
+ *
+ * Clients keep their list of who is online from one snapshot and a stream of changes:
+ * a client asks for the list a page at a time with GET_USERS:limit[:cursor], where the
+ * cursor is the last name of the page before, and from its first page on receives
+ * USER_ONLINE and USER_OFFLINE for every login and logout. The list has a version that
+ * every change increments; pages and changes carry it, so a client applies a change
+ * only on top of the version before it and starts over from the first page when one
+ * went missing. A login or logout thus costs each watching client one small frame
+ * rather than the whole list. A bare GET_USERS still gets the whole list as USERS.
+ *
+ * A private message to a user who is offline is kept in OfflineMessages, on disk, and
+ * the sender gets SENT as usual; the user receives everything kept for them in a few
+ * batches right after logging in. Kept messages are only let go of once they are queued
+ * to the user's connection.
+ *
+ * Connection threads share no lock: the UserRegistry takes logins and logouts without
+ * waiting, and sending only ever queues to the other client's writer thread.
+ */
 public class PrivateChatServer {
     private static final int PORT = 8888;
-    private static Map<String, ClientHandler> connectedClients = new ConcurrentHashMap<>();
+    private static final AsyncLog LOG = AsyncLog.get("chat.private");
+    private static final int MAX_USERS_PAGE = 1000;
+    private static final UserRegistry<ClientHandler> registry = new UserRegistry<>();
     private static ServerSocket serverSocket;
     private static boolean running = true;
+    // Counted here and read by the metrics endpoint
+    private static final LongAdder accepted = new LongAdder();
+    private static final LongAdder messagesIn = new LongAdder();
+    private static final OutboundQueue.Stats outboundStats = new OutboundQueue.Stats();
+    private static final LongAdder undeliverable = new LongAdder();
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder bytesOut = new LongAdder();
+    private static HeartbeatMonitor heartbeats;
+    private static OfflineMessages offline;
+    private static ChatServerConfig config;
+    private static boolean virtualThreads;
 
     public static void main(String[] args) {
-        System.out.println("Private Chat Server starting on port " + PORT);
+        config = ChatServerConfig.fromSystemProperties();
+        virtualThreads = config.getMode() == ChatServerConfig.Mode.VIRTUAL;
+        LOG.info("server.starting", "port", PORT, "threads", virtualThreads ? "virtual" : "platform");
         try {
             serverSocket = new ServerSocket(PORT);
-            System.out.println("Server is running and waiting for connections...");
+            LOG.info("server.running");
+            if (config.getHeartbeatIdleMillis() > 0) {
+                heartbeats = new HeartbeatMonitor("PrivateChat-" + PORT, config.getHeartbeatIdleMillis(),
+                        config.getHeartbeatTimeoutMillis());
+            }
+            if (config.getOfflineMaxMessages() > 0) {
+                try {
+                    offline = new OfflineMessages(Paths.get(config.getOfflineDir()), config.getOfflineRetentionMillis(),
+                            config.getOfflineMaxMessages(), config.getOfflineMaxPerSender(),
+                            config.getOfflineMaxRecipientsPerSender(), config.getOfflineMaxBytes());
+                } catch (IOException e) {
+                    LOG.error("offline.failed", "dir", config.getOfflineDir(), e);
+                }
+            }
+            startMetrics();
 
             while (running) {
                 try {
                     Socket clientSocket = serverSocket.accept();
-                    System.out.println("New client connected: " + clientSocket.getInetAddress());
+                    accepted.increment();
+                    LOG.info("client.connected", "remote", clientSocket.getInetAddress());
                     ClientHandler handler = new ClientHandler(clientSocket);
-                    new Thread(handler).start();
+                    if (heartbeats != null) {
+                        heartbeats.watch(handler);
+                    }
+                    if (virtualThreads) {
+                        Thread.ofVirtual().name("private-chat-" + clientSocket.getPort()).start(handler);
+                    } else {
+                        new Thread(handler).start();
+                    }
                 } catch (IOException e) {
                     if (running) {
-                        System.err.println("Error accepting client: " + e.getMessage());
+                        LOG.warn("accept.failed", "error", e.getMessage());
                     }
                 }
             }
         } catch (IOException e) {
-            System.err.println("Server error: " + e.getMessage());
+            LOG.error("server.stopped", "error", e.getMessage(), e);
         } finally {
             stop();
         }
     }
 
+    private static void startMetrics() {
+        int metricsPort = config.metricsPortFor(PORT);
+        if (metricsPort <= 0) {
+            return;
+        }
+        ServerMetrics metrics = new ServerMetrics("PrivateChat-" + PORT);
+        metrics.gauge("private_chat_clients_connected", "Users logged in now", registry::size);
+        metrics.gauge("private_chat_user_list_version", "Logins and logouts announced to clients watching the user list",
+                registry::version);
+        metrics.counter("private_chat_connections_accepted_total", "Client connections accepted", accepted::sum);
+        metrics.counter("private_chat_messages_in_total", "Frames received from clients", messagesIn::sum);
+        metrics.counter("private_chat_messages_out_total", "Frames queued to clients", outboundStats.enqueued::sum);
+        metrics.counter("private_chat_socket_writes_total", "Socket writes the queued frames went out in",
+                outboundStats.writes::sum);
+        metrics.counter("private_chat_outbound_dropped_total", "Frames dropped from full client queues",
+                outboundStats.dropped::sum);
+        metrics.counter("private_chat_messages_undeliverable_total", "Private messages to users not online",
+                undeliverable::sum);
+        if (offline != null) {
+            metrics.counter("private_chat_offline_stored_total", "Private messages kept for users not online",
+                    offline.stored::sum);
+            metrics.counter("private_chat_offline_delivered_total", "Kept messages delivered at login",
+                    offline.delivered::sum);
+            metrics.counter("private_chat_offline_expired_total", "Kept messages dropped after the retention period",
+                    offline.expired::sum);
+            metrics.counter("private_chat_offline_rejected_total", "Messages not kept because a quota was used up",
+                    offline.rejected::sum);
+            metrics.gauge("private_chat_offline_waiting", "Kept messages waiting for their recipient",
+                    offline::waitingCount);
+        }
+        metrics.counter("private_chat_bytes_in_total", "Bytes read from clients", bytesIn::sum);
+        metrics.counter("private_chat_bytes_out_total", "Bytes written to clients", bytesOut::sum);
+        if (heartbeats != null) {
+            metrics.counter("private_chat_heartbeat_evictions_total", "Clients closed for not answering a PING",
+                    heartbeats::evictedCount);
+        }
+        metrics.counter("log_records_dropped_total", "Log records dropped because the log buffer was full",
+                AsyncLog::droppedCount);
+        metrics.setHealthCheck(() -> running && serverSocket != null && !serverSocket.isClosed());
+        try {
+            MetricsHttpServer.start(config.getMetricsHost(), metricsPort, metrics);
+        } catch (IOException e) {
+            LOG.warn("metrics.failed", "port", metricsPort, e);
+        }
+    }
+
     public static void stop() {
         running = false;
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
             }
-            for (ClientHandler handler : connectedClients.values()) {
+            for (ClientHandler handler : registry.snapshot()) {
                 handler.disconnect();
             }
-            connectedClients.clear();
+            if (offline != null) {
+                offline.close();
+            }
         } catch (IOException e) {
-            System.err.println("Error stopping server: " + e.getMessage());
+            LOG.warn("server.stop.failed", "error", e.getMessage());
         }
     }
 
-    static class ClientHandler implements Runnable {
+    static class ClientHandler implements Runnable, HeartbeatMonitor.Peer, UserRegistry.Client {
         private Socket socket;
-        private BufferedReader in;
-        private PrintWriter out;
+        private OutputStream out;
+        private boolean binary;
+        private final OutboundQueue outbound = new OutboundQueue(config.getOutboundCapacity(), config.getOverflowPolicy(),
+                outboundStats);
         private String username;
+        private volatile long lastActivity = System.nanoTime();
 
         public ClientHandler(Socket socket) {
             this.socket = socket;
@@ -64,97 +174,249 @@ public class PrivateChatServer {
         @Override
         public void run() {
             try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
+                InputStream in = new BufferedInputStream(new ServerMetrics.CountingInputStream(socket.getInputStream(), bytesIn::add));
+                out = new BufferedOutputStream(new ServerMetrics.CountingOutputStream(socket.getOutputStream(), bytesOut::add),
+                        config.getFlushBytes());
 
-                // Get username
-                out.println("ENTER_USERNAME");
-                username = in.readLine();
+                // Get username, or a binary protocol request followed by a USERNAME frame
+                writeLine("ENTER_USERNAME");
+                DataInputStream frameIn = null;
+                BufferedReader lineIn = null;
+                String first = ChatFrame.readLine(in);
+                lastActivity = System.nanoTime();
+                if (ChatFrame.NEGOTIATE.equals(first)) {
+                    binary = true;
+                    writeLine(ChatFrame.NEGOTIATE_OK);
+                    frameIn = new DataInputStream(in);
+                    ChatFrame hello = ChatFrame.read(frameIn);
+                    username = hello.getType() == ChatFrame.Type.USERNAME ? hello.getSender() : null;
+                } else {
+                    username = first;
+                    lineIn = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                }
 
                 if (username == null || username.trim().isEmpty()) {
                     disconnect();
                     return;
                 }
+                startWriter();
 
-                synchronized (connectedClients) {
-                    connectedClients.put(username, this);
-                }
-
-                out.println("SUCCESS:Connected as " + username);
-                System.out.println("User registered: " + username);
-
-                // Broadcast online users
-                broadcastOnlineUsers();
+                send(ChatFrame.of(ChatFrame.Type.SUCCESS, null, null, "Connected as " + username));
+                registry.register(this);
+                deliverOffline(this);
+                LOG.info("user.registered", "user", username, "binary", binary);
 
                 // Handle incoming messages
-                String message;
-                while ((message = in.readLine()) != null) {
-                    System.out.println("Received from " + username + ": " + message);
-
-                    if (message.startsWith("PRIVATE:")) {
-                        // Format: PRIVATE:recipient:message
-                        String[] parts = message.substring(8).split(":", 2);
-                        if (parts.length == 2) {
-                            String recipient = parts[0];
-                            String msg = parts[1];
-                            sendPrivateMessage(recipient, msg);
+                while (true) {
+                    ChatFrame frame;
+                    if (binary) {
+                        try {
+                            frame = ChatFrame.read(frameIn);
+                        } catch (EOFException e) {
+                            break;
+                        }
+                    } else {
+                        String message = lineIn.readLine();
+                        if (message == null) {
+                            break;
                         }
-                    } else if (message.equals("GET_USERS")) {
-                        sendOnlineUsers();
-                    } else if (message.equals("DISCONNECT")) {
+                        LOG.debug("client.line", "user", username, "line", message);
+                        frame = parseLine(message);
+                        if (frame == null) {
+                            continue;
+                        }
+                    }
+
+                    lastActivity = System.nanoTime();
+                    messagesIn.increment();
+                    if (frame.getType() == ChatFrame.Type.PRIVATE) {
+                        sendPrivateMessage(frame.getRoom(), frame.getBodyText());
+                    } else if (frame.getType() == ChatFrame.Type.GET_USERS) {
+                        if (frame.getBody().length == 0) {
+                            sendOnlineUsers();
+                        } else {
+                            sendUsersPage(frame.getRoom(), frame.getBodyText());
+                        }
+                    } else if (frame.getType() == ChatFrame.Type.PING) {
+                        send(ChatFrame.of(ChatFrame.Type.PONG, null, null, null));
+                    } else if (frame.getType() == ChatFrame.Type.DISCONNECT) {
                         break;
                     }
                 }
             } catch (IOException e) {
-                System.err.println("Client handler error for " + username + ": " + e.getMessage());
+                LOG.warn("client.error", "user", username, "error", e.getMessage());
             } finally {
                 disconnect();
             }
         }
 
+        private ChatFrame parseLine(String message) {
+            if (message.startsWith("PRIVATE:")) {
+                // Format: PRIVATE:recipient:message
+                String[] parts = message.substring(8).split(":", 2);
+                if (parts.length == 2) {
+                    return ChatFrame.of(ChatFrame.Type.PRIVATE, username, parts[0], parts[1]);
+                }
+            } else if (message.equals("GET_USERS")) {
+                return ChatFrame.of(ChatFrame.Type.GET_USERS, username, null, null);
+            } else if (message.startsWith("GET_USERS:")) {
+                // Format: GET_USERS:limit or GET_USERS:limit:cursor
+                String[] parts = message.substring(10).split(":", 2);
+                return ChatFrame.of(ChatFrame.Type.GET_USERS, username, parts.length == 2 ? parts[1] : null, parts[0]);
+            } else if (message.equals("DISCONNECT")) {
+                return ChatFrame.of(ChatFrame.Type.DISCONNECT, username, null, null);
+            } else if (message.equals("PING") || message.equals("PONG")) {
+                return ChatFrame.fromText(message, null);
+            }
+            return null;
+        }
+
         private void sendPrivateMessage(String recipient, String message) {
-            ClientHandler recipientHandler = connectedClients.get(recipient);
+            ClientHandler recipientHandler = registry.get(recipient);
             if (recipientHandler != null) {
-                recipientHandler.out.println("MESSAGE:" + username + ":" + message);
-                out.println("SENT:" + recipient + ":" + message);
-                System.out.println("Message sent from " + username + " to " + recipient);
+                recipientHandler.send(ChatFrame.of(ChatFrame.Type.PRIVATE_MESSAGE, username, recipient, message));
+                send(ChatFrame.of(ChatFrame.Type.SENT, username, recipient, message));
+                LOG.debug("message.sent", "from", username, "to", recipient);
+            } else if (offline != null && offline.store(ChatFrame.of(ChatFrame.Type.PRIVATE_MESSAGE, username, recipient, message))) {
+                send(ChatFrame.of(ChatFrame.Type.SENT, username, recipient, message));
+                LOG.debug("message.kept", "from", username, "to", recipient);
+                // The recipient may have logged in and collected their messages while this one was stored
+                recipientHandler = registry.get(recipient);
+                if (recipientHandler != null) {
+                    deliverOffline(recipientHandler);
+                }
             } else {
-                out.println("ERROR:User " + recipient + " is not online");
+                undeliverable.increment();
+                send(ChatFrame.of(ChatFrame.Type.ERROR, null, recipient, offline != null
+                        ? "User " + recipient + " is not online and no more messages can be kept for now"
+                        : "User " + recipient + " is not online"));
+            }
+        }
+
+        // Messages stop waiting only once they are in the recipient's queue; if the queue is
+        // closed or too full for them, they are given back for the next login or store
+        private static void deliverOffline(ClientHandler recipient) {
+            if (offline == null) {
+                return;
+            }
+            int chunk = Math.min(FrameWriter.MAX_BATCH, Math.max(1, config.getOutboundCapacity() / 2));
+            OfflineMessages.Delivery kept;
+            while ((kept = offline.handOut(recipient.username, chunk)) != null) {
+                if (!recipient.outbound.offerAllOrNone(kept.messages())) {
+                    offline.giveBack(kept);
+                    LOG.info("offline.deferred", "user", recipient.username, "messages", kept.messages().size());
+                    return;
+                }
+                offline.delivered(kept);
+                LOG.info("offline.delivered", "user", recipient.username, "messages", kept.messages().size());
             }
         }
 
         private void sendOnlineUsers() {
             StringBuilder users = new StringBuilder("USERS:");
-            synchronized (connectedClients) {
-                for (String user : connectedClients.keySet()) {
-                    if (!user.equals(username)) {
-                        users.append(user).append(",");
-                    }
+            for (ClientHandler handler : registry.snapshot()) {
+                if (!handler.username.equals(username)) {
+                    users.append(handler.username).append(",");
                 }
             }
-            out.println(users.toString());
+            send(ChatFrame.of(ChatFrame.Type.USERS, null, null, users.substring(6)));
+        }
+
+        private void sendUsersPage(String cursor, String limitText) {
+            try {
+                registry.sendPage(this, cursor, Math.min(Math.max(1, Integer.parseInt(limitText.trim())), MAX_USERS_PAGE));
+            } catch (NumberFormatException e) {
+                send(ChatFrame.of(ChatFrame.Type.ERROR, null, null, "Bad page size " + limitText));
+            }
         }
 
-        private void broadcastOnlineUsers() {
-            synchronized (connectedClients) {
-                for (ClientHandler handler : connectedClients.values()) {
-                    handler.sendOnlineUsers();
+        // After the handshake the writer owns the socket output and batches what is queued
+        private void startWriter() {
+            Runnable writer = () -> {
+                try {
+                    new FrameWriter(outbound, out, binary, config.getFlushMillis(), config.getFlushBytes()).run();
+                } catch (IOException e) {
+                    if (!socket.isClosed()) {
+                        LOG.warn("client.write.failed", "user", username, "error", e.getMessage());
+                        close();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
+            };
+            String name = "private-chat-writer-" + socket.getPort();
+            if (virtualThreads) {
+                Thread.ofVirtual().name(name).start(writer);
+            } else {
+                Thread thread = new Thread(writer, name);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        // Called from other clients' threads too; only queues, the writer does the I/O
+        @Override
+        public void send(ChatFrame message) {
+            if (!outbound.offer(message)) {
+                LOG.warn("client.slow", "user", username);
+                close();
+            }
+        }
+
+        // Handshake only, before the writer starts
+        private void writeLine(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public long lastActivityNanos() {
+            return lastActivity;
+        }
+
+        // Called on the heartbeat thread; send only queues, so it never waits on the socket
+        @Override
+        public void sendPing() {
+            send(ChatFrame.of(ChatFrame.Type.PING, null, null, null));
+        }
+
+        // Only closes the socket; the handler's own thread then fails its read and runs disconnect()
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.warn("client.close.failed", "user", username, "error", e.getMessage());
             }
         }
 
+        @Override
+        public boolean isClosed() {
+            return socket.isClosed();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return socket.getInetAddress().getHostAddress();
+        }
+
         public void disconnect() {
+            outbound.close();
             try {
                 if (username != null) {
-                    connectedClients.remove(username);
-                    System.out.println("User disconnected: " + username);
-                    broadcastOnlineUsers();
+                    registry.unregister(this);
+                    LOG.info("user.disconnected", "user", username);
                 }
                 if (socket != null && !socket.isClosed()) {
                     socket.close();
                 }
             } catch (IOException e) {
-                System.err.println("Error disconnecting client: " + e.getMessage());
+                LOG.warn("client.close.failed", "user", username, "error", e.getMessage());
             }
         }
     }
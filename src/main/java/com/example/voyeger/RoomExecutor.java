@@ -0,0 +1,94 @@
+package com.example.voyeger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs each room's events on one worker thread out of a fixed pool, picked by hashing
+ * the room name, so a room is a single-threaded actor: its joins, messages, relays and
+ * leaves run one at a time and in the order they were submitted, while different
+ * rooms spread across the workers and never wait on each other.
+ *
+ * Submitting only appends to the worker's lock-free queue, and wakes the worker just
+ * when it has gone to sleep, so a busy worker costs its producers no system call. Tasks
+ * must not block: everything a room does here is queueing to connections, the mesh or
+ * the message log. With no workers every task runs on the caller's thread.
+ */
+final class RoomExecutor {
+    private static final AsyncLog LOG = AsyncLog.get("chat.rooms");
+
+    private final Worker[] workers;
+
+    RoomExecutor(String name, int workerCount) {
+        this.workers = new Worker[workerCount];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(name + "-room-" + i);
+        }
+    }
+
+    /** Runs task on the room's worker after everything submitted for the room before it. */
+    void execute(String room, Runnable task) {
+        if (workers.length == 0) {
+            task.run();
+            return;
+        }
+        int hash = room.hashCode() * 0x9E3779B9;
+        workers[Math.floorMod(hash ^ (hash >>> 16), workers.length)].submit(task);
+    }
+
+    /** Tasks submitted and not yet finished, over all workers. */
+    long queuedCount() {
+        long queued = 0;
+        for (Worker worker : workers) {
+            queued += worker.submitted.sum() - worker.completed.sum();
+        }
+        return queued;
+    }
+
+    private static final class Worker implements Runnable {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final LongAdder submitted = new LongAdder();
+        private final LongAdder completed = new LongAdder();
+        private final Thread thread;
+        private volatile boolean sleeping;
+
+        Worker(String name) {
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void submit(Runnable task) {
+            submitted.increment();
+            tasks.add(task);
+            if (sleeping) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task = tasks.poll();
+                if (task == null) {
+                    // Announce the sleep before the last look, so a task added meanwhile is seen or unparks us
+                    sleeping = true;
+                    if (tasks.isEmpty()) {
+                        LockSupport.park(this);
+                    }
+                    sleeping = false;
+                    continue;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LOG.error("room.task.failed", "worker", thread.getName(), e);
+                } finally {
+                    completed.increment();
+                }
+            }
+        }
+    }
+}
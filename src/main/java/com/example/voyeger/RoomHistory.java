@@ -0,0 +1,227 @@
+package com.example.voyeger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * The last few chat messages of every room on one ChatServer, so a joining or
+ * reconnecting client can be caught up from memory.
+ *
+ * Each room gets a fixed-size ring allocated on its first message. Recording a message
+ * stamps it with the room's next sequence number; the stored frame is the same object
+ * that is broadcast, so its cached wire encodings are shared with the live fan-out and
+ * a catch-up costs no re-encoding.
+ *
+ * Recording a message and handing it to the room's local members happen under the
+ * room's lock, as do joining the room and queueing its backlog. A joiner therefore
+ * gets every message exactly once: either in the backlog or live, never both and never
+ * out of order. Only local delivery runs under the lock; it just enqueues. Since rooms
+ * run on their RoomExecutor worker, the lock is only ever contended by HISTORY
+ * requests and peers reading a room for catch-up.
+ */
+class RoomHistory {
+    private final int capacity;
+    private final Map<String, Ring> rooms = new ConcurrentHashMap<>();
+
+    RoomHistory(int capacity) {
+        this.capacity = capacity;
+    }
+
+    boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * Stamps the frame with the room's next sequence, keeps it and passes it to
+     * deliverLocal before the next message can be recorded.
+     *
+     * @return the stamped frame
+     */
+    ChatFrame record(ChatFrame frame, Consumer<ChatFrame> deliverLocal) {
+        if (capacity <= 0) {
+            deliverLocal.accept(frame);
+            return frame;
+        }
+        return ring(frame.getRoom()).record(frame, deliverLocal);
+    }
+
+    /**
+     * Runs join, then passes the messages after the client's last known position to
+     * replay, with no message recorded in between.
+     */
+    void join(String room, long afterId, long afterSeq, Runnable join, Consumer<List<ChatFrame>> replay) {
+        if (capacity <= 0) {
+            join.run();
+            return;
+        }
+        ring(room).join(afterId, afterSeq, join, replay);
+    }
+
+    /** Refills a room from persisted messages (oldest first) and continues its sequence after them. */
+    void restore(String room, List<ChatFrame> frames) {
+        if (capacity > 0 && !frames.isEmpty()) {
+            ring(room).restore(frames);
+        }
+    }
+
+    /** Whether the room's ring still holds the message with this id. */
+    boolean holds(String room, long id) {
+        Ring ring = capacity > 0 ? rooms.get(room) : null;
+        return ring != null && ring.holds(id);
+    }
+
+    /**
+     * Messages after the one with the given id, oldest first, for a peer catching up a
+     * resumed client; everything held when the id is not. Joins nothing.
+     */
+    List<ChatFrame> after(String room, long afterId) {
+        Ring ring = capacity > 0 ? rooms.get(room) : null;
+        return ring != null ? ring.after(afterId) : List.of();
+    }
+
+    /** Id of the newest message held for the room, or 0 when nothing is. */
+    long newestId(String room) {
+        Ring ring = capacity > 0 ? rooms.get(room) : null;
+        return ring != null ? ring.newestId() : 0;
+    }
+
+    /** Oldest sequence still held for the room, or 0 when nothing is. */
+    long oldestSeq(String room) {
+        Ring ring = capacity > 0 ? rooms.get(room) : null;
+        return ring != null ? ring.oldestSeq() : 0;
+    }
+
+    private Ring ring(String room) {
+        return rooms.computeIfAbsent(room, r -> new Ring(capacity));
+    }
+
+    private static class Ring {
+        private final ChatFrame[] frames;
+        private final ReentrantLock lock = new ReentrantLock();
+        private long lastSeq;
+        private int size;
+
+        Ring(int capacity) {
+            frames = new ChatFrame[capacity];
+        }
+
+        ChatFrame record(ChatFrame frame, Consumer<ChatFrame> deliverLocal) {
+            lock.lock();
+            try {
+                ChatFrame stamped = frame.withSeq(++lastSeq);
+                frames[(int) (lastSeq % frames.length)] = stamped;
+                if (size < frames.length) {
+                    size++;
+                }
+                deliverLocal.accept(stamped);
+                return stamped;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void restore(List<ChatFrame> restored) {
+            lock.lock();
+            try {
+                for (ChatFrame frame : restored) {
+                    if (frame.getSeq() != lastSeq + 1) {
+                        // The ring only holds an unbroken run, so start over after a gap in the log
+                        size = 0;
+                    }
+                    lastSeq = frame.getSeq();
+                    frames[(int) (lastSeq % frames.length)] = frame;
+                    if (size < frames.length) {
+                        size++;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long oldestSeq() {
+            lock.lock();
+            try {
+                return size == 0 ? 0 : lastSeq - size + 1;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long newestId() {
+            lock.lock();
+            try {
+                return size == 0 ? 0 : frames[(int) (lastSeq % frames.length)].getId();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean holds(long id) {
+            lock.lock();
+            try {
+                for (long seq = lastSeq; seq > lastSeq - size; seq--) {
+                    if (frames[(int) (seq % frames.length)].getId() == id) {
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        List<ChatFrame> after(long afterId) {
+            lock.lock();
+            try {
+                return since(afterId, 0);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void join(long afterId, long afterSeq, Runnable join, Consumer<List<ChatFrame>> replay) {
+            lock.lock();
+            try {
+                join.run();
+                List<ChatFrame> backlog = since(afterId, afterSeq);
+                if (!backlog.isEmpty()) {
+                    replay.accept(backlog);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Messages after a client's last known position, oldest first. The id is tried
+         * first because it means the same thing on every server; the sequence is only
+         * meaningful to the server that assigned it. Caller holds the lock.
+         */
+        private List<ChatFrame> since(long afterId, long afterSeq) {
+            long first = lastSeq - size + 1;
+            if (afterId != 0) {
+                // An id we no longer (or never) had: send everything rather than guess
+                long found = 0;
+                for (long seq = lastSeq; seq >= first && found == 0; seq--) {
+                    if (frames[(int) (seq % frames.length)].getId() == afterId) {
+                        found = seq;
+                    }
+                }
+                afterSeq = found;
+            } else if (afterSeq > lastSeq) {
+                // A sequence from before this server restarted
+                afterSeq = 0;
+            }
+            List<ChatFrame> backlog = new ArrayList<>((int) Math.max(0, lastSeq - Math.max(afterSeq, first - 1)));
+            for (long seq = Math.max(afterSeq + 1, first); seq <= lastSeq; seq++) {
+                backlog.add(frames[(int) (seq % frames.length)]);
+            }
+            return backlog;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.voyeger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Room name to member connections for one ChatServer. Broadcasts look up only the
+ * sender's room, so a message costs O(room members) rather than O(all clients).
+ */
+class RoomIndex {
+    private final Map<String, Set<ChatConnection>> rooms = new ConcurrentHashMap<>();
+
+    /** @return true when the client is the room's first member on this server */
+    boolean join(String room, ChatConnection client) {
+        boolean[] created = new boolean[1];
+        // compute() holds the bin lock, so a concurrent leave cannot drop the set we add to
+        rooms.compute(room, (r, members) -> {
+            if (members == null) {
+                members = ConcurrentHashMap.newKeySet();
+                created[0] = true;
+            }
+            members.add(client);
+            return members;
+        });
+        return created[0];
+    }
+
+    /** @return true when the room has no members left on this server */
+    boolean leave(String room, ChatConnection client) {
+        if (room == null) {
+            return false;
+        }
+        boolean[] emptied = new boolean[1];
+        rooms.computeIfPresent(room, (r, members) -> {
+            members.remove(client);
+            emptied[0] = members.isEmpty();
+            return emptied[0] ? null : members;
+        });
+        return emptied[0];
+    }
+
+    Set<ChatConnection> members(String room) {
+        if (room == null) {
+            return Collections.emptySet();
+        }
+        Set<ChatConnection> members = rooms.get(room);
+        return members != null ? members : Collections.emptySet();
+    }
+
+    /** Rooms with at least one member on this server. */
+    List<String> roomNames() {
+        return new ArrayList<>(rooms.keySet());
+    }
+
+    int roomCount() {
+        return rooms.size();
+    }
+}
@@ -10,7 +10,10 @@ public class ServerCoordinator {
 
         // Create and start all servers
         for (int port : PORTS) {
-            ChatServer server = new ChatServer(port);
+            // Servers in this JVM are linked directly below, so no network mesh
+            ChatServerConfig config = ChatServerConfig.fromSystemProperties(port);
+            config.getPeers().clear();
+            ChatServer server = new ChatServer(port, config);
             servers.add(server);
             new Thread(() -> {
                 System.out.println("Starting server on port " + port);
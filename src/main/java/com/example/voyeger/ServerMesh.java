@@ -0,0 +1,439 @@
+package com.example.voyeger;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TCP links between ChatServer processes so rooms span JVMs and hosts.
+ *
+ * Every server listens on its peer port for inbound links and dials one outbound
+ * link per configured peer. Links are one-directional: a server only writes on the
+ * links it dialed and only reads on the ones it accepted. Links carry ChatFrame
+ * binary frames: a HELLO handshake first, then the room frames to deliver, each with
+ * its room field set.
+ *
+ * The peer port is bound to chat.peerHost, by default the advertised host, and a link
+ * carries nothing until both ends have proved they hold the cluster secret (see
+ * PeerAuth); a peer that fails the handshake is dropped. A server without a secret can
+ * only mesh over loopback, with the proofs left empty.
+ *
+ * Routing is interest based. Each server tells its peers which rooms it has members
+ * in (an INTEREST frame listing them, resent whenever a room gains its first or loses
+ * its last local member), and a message only goes down links whose peer asked for
+ * its room. Until a peer's interest is known its link gets everything, so a peer
+ * that cannot dial back still receives messages. Every server is one hop from every
+ * other, so messages are never forwarded and cannot loop; message ids let the
+ * receiver drop the copies a resent batch can produce.
+ *
+ * A peer only learns of a room's first local member when the INTEREST naming it arrives,
+ * and until then does not send the room's messages. So an INTEREST that adds rooms is
+ * followed on the same link by a CATCH_UP for each of them (see below), from the newest
+ * message held here. The peer reads both in order, so every message it published before
+ * taking the new interest into account is in the history it answers the CATCH_UP from,
+ * and every later one is relayed. A room with nothing held here has no such position,
+ * and a CATCH_UP from id 0 would be answered with the peer's whole history, delivered
+ * as if it were new; such a room gets no CATCH_UP, and its members see the peer's
+ * messages from the time the peer reads the INTEREST.
+ *
+ * A client that fails over may resume on a server that was not getting its room's
+ * messages. That server sends every peer a CATCH_UP frame with the room and the last
+ * message id the client saw. Peers that hold later messages send each one back down
+ * their own link inside a CATCH_UP frame, its binary encoding as the body, so the
+ * receiver can tell old messages from live relays; duplicates are dropped by id.
+ *
+ * Presence goes to every peer whatever its interest: PRESENCE deltas as they happen,
+ * and a PRESENCE_SYNC snapshot first thing on each new link and whenever a peer that
+ * missed a delta asks for one with an empty PRESENCE_SYNC (see PresenceIndex).
+ */
+class ServerMesh {
+    private static final AsyncLog LOG = AsyncLog.get("chat.mesh");
+    private static final int LINK_QUEUE_CAPACITY = 10_000;
+    private static final int MAX_BATCH = 256;
+    private static final long INITIAL_BACKOFF_MS = 500;
+    private static final long MAX_BACKOFF_MS = 10_000;
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+    private static final byte[] NO_PROOF = new byte[0];
+
+    private final ChatServer server;
+    private final String selfAddress;
+    private final String bindHost;
+    private final int peerPort;
+    // Null when no cluster secret is configured
+    private final PeerAuth auth;
+    // Keyed by the host:port from chat.peers, which is what a peer announces in its HELLO
+    private final Map<String, PeerLink> links = new LinkedHashMap<>();
+
+    ServerMesh(ChatServer server, String selfAddress, String bindHost, int peerPort, List<String> peers, PeerAuth auth) {
+        this.server = server;
+        this.selfAddress = selfAddress;
+        this.bindHost = bindHost;
+        this.peerPort = peerPort;
+        this.auth = auth;
+        for (String peer : peers) {
+            int colon = peer.lastIndexOf(':');
+            links.put(peer, new PeerLink(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+        }
+    }
+
+    void start() {
+        InetAddress bindAddress;
+        try {
+            bindAddress = InetAddress.getByName(bindHost);
+        } catch (UnknownHostException e) {
+            LOG.error("mesh.disabled", "server", server.getServerName(), "peerHost", bindHost, e);
+            return;
+        }
+        if (auth == null) {
+            if (!bindAddress.isLoopbackAddress()) {
+                LOG.error("mesh.disabled", "server", server.getServerName(), "reason",
+                        "chat.clusterSecret is required to mesh beyond loopback", null);
+                return;
+            }
+            LOG.warn("mesh.unauthenticated", "server", server.getServerName(), "reason", "chat.clusterSecret is not set");
+        }
+
+        Thread listener = new Thread(() -> acceptPeers(bindAddress), server.getServerName() + "-mesh-listener");
+        listener.setDaemon(true);
+        listener.start();
+
+        for (PeerLink link : links.values()) {
+            Thread writer = new Thread(link, server.getServerName() + "-mesh-" + link.host + ":" + link.port);
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    /** Queues a room frame on every link whose peer has members in the room. Never blocks the caller. */
+    void relay(ChatFrame frame) {
+        for (PeerLink link : links.values()) {
+            if (link.wants(frame.getRoom())) {
+                link.enqueue(frame);
+            }
+        }
+    }
+
+    /** Asks every peer for the room's messages after afterId. */
+    void requestCatchUp(String room, long afterId) {
+        ChatFrame request = ChatFrame.of(ChatFrame.Type.CATCH_UP, server.getServerName(), room, null).withId(afterId);
+        for (PeerLink link : links.values()) {
+            link.enqueue(request);
+        }
+    }
+
+    /** Queues a presence delta for every peer. Called in version order; never blocks. */
+    void relayPresence(ChatFrame delta) {
+        for (PeerLink link : links.values()) {
+            link.enqueue(delta);
+        }
+    }
+
+    /** A room gained its first or lost its last local member; peers need a fresh room list. */
+    void interestChanged() {
+        for (PeerLink link : links.values()) {
+            link.markInterestDirty();
+        }
+    }
+
+    private void acceptPeers(InetAddress bindAddress) {
+        try (ServerSocket serverSocket = new ServerSocket(peerPort, 50, bindAddress)) {
+            LOG.info("mesh.listening", "server", server.getServerName(), "host", bindHost, "port", peerPort);
+            while (true) {
+                Socket socket = serverSocket.accept();
+                Thread reader = new Thread(() -> readPeer(socket),
+                        server.getServerName() + "-mesh-in-" + socket.getPort());
+                reader.setDaemon(true);
+                reader.start();
+            }
+        } catch (IOException e) {
+            LOG.error("mesh.listener.stopped", "server", server.getServerName(), "error", e.getMessage(), e);
+        }
+    }
+
+    private void readPeer(Socket socket) {
+        String peerName;
+        PeerLink replyLink;
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            ChatFrame hello = acceptHandshake(socket, in);
+            if (hello == null) {
+                LOG.warn("mesh.inbound.rejected", "server", server.getServerName(),
+                        "remote", socket.getRemoteSocketAddress());
+                socket.close();
+                return;
+            }
+            peerName = hello.getSender();
+            replyLink = links.get(hello.getRoom());
+            LOG.info("mesh.inbound.up", "server", server.getServerName(), "peer", peerName,
+                    "interestKnown", replyLink != null);
+        } catch (IOException e) {
+            LOG.warn("mesh.inbound.rejected", "remote", socket.getRemoteSocketAddress(), "error", e.getMessage());
+            closeQuietly(socket);
+            return;
+        }
+
+        try (in) {
+            while (true) {
+                ChatFrame frame = ChatFrame.read(in);
+                if (frame.getType() == ChatFrame.Type.HELLO) {
+                    // Only expected during the handshake
+                    continue;
+                } else if (frame.getType() == ChatFrame.Type.INTEREST) {
+                    if (replyLink != null) {
+                        replyLink.setInterest(frame.getBodyText());
+                    }
+                } else if (frame.getType() == ChatFrame.Type.PRESENCE) {
+                    if (!server.presence().applyDelta(frame) && replyLink != null) {
+                        LOG.info("mesh.presence.gap", "peer", peerName, "version", frame.getId());
+                        replyLink.enqueue(ChatFrame.of(ChatFrame.Type.PRESENCE_SYNC, server.getServerName(), null, null));
+                    }
+                } else if (frame.getType() == ChatFrame.Type.PRESENCE_SYNC) {
+                    if (frame.getId() != 0) {
+                        server.presence().applySnapshot(frame);
+                    } else if (replyLink != null) {
+                        replyLink.markPresenceDirty();
+                    }
+                } else if (frame.getType() == ChatFrame.Type.CATCH_UP) {
+                    if (frame.getBody().length > 0) {
+                        server.receiveCatchUp(unwrap(frame.getBody()), peerName);
+                    } else if (replyLink != null && frame.getId() != 0) {
+                        // Id 0 names no position to catch up from, only "everything"
+                        List<ChatFrame> missed = server.historyAfter(frame.getRoom(), frame.getId());
+                        for (ChatFrame message : missed) {
+                            replyLink.enqueue(new ChatFrame(ChatFrame.Type.CATCH_UP, server.getServerName(),
+                                    message.getRoom(), System.currentTimeMillis(), message.toBinary()));
+                        }
+                        LOG.debug("mesh.catchup", "peer", peerName, "room", frame.getRoom(), "count", missed.size());
+                    }
+                } else if (!frame.getRoom().isEmpty()) {
+                    server.receiveMessageFromOtherServer(frame, peerName);
+                }
+            }
+        } catch (EOFException e) {
+            LOG.info("mesh.inbound.closed", "server", server.getServerName(), "peer", peerName);
+        } catch (IOException e) {
+            LOG.warn("mesh.inbound.lost", "peer", peerName, "error", e.getMessage());
+        } finally {
+            if (replyLink != null) {
+                // Its room list is stale now; send it everything until it reconnects and tells us again
+                replyLink.clearInterest();
+            }
+            server.presence().dropOrigin(peerName);
+        }
+    }
+
+    /**
+     * Accepting side of the handshake: sends a challenge, checks the proof in the peer's
+     * HELLO and proves itself in return. Returns the HELLO, whose room field carries the
+     * peer's address, or null if the peer does not hold the cluster secret.
+     */
+    private ChatFrame acceptHandshake(Socket socket, DataInputStream in) throws IOException {
+        long challenge = auth != null ? auth.challenge() : 0;
+        OutputStream out = socket.getOutputStream();
+        out.write(ChatFrame.of(ChatFrame.Type.HELLO, server.getServerName(), null, null).withId(challenge).toBinary());
+        out.flush();
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        ChatFrame hello = ChatFrame.read(in);
+        socket.setSoTimeout(0);
+        if (hello.getType() != ChatFrame.Type.HELLO) {
+            return null;
+        }
+        byte[] expected = auth != null
+                ? auth.dialerProof(hello.getSender(), hello.getRoom(), challenge, hello.getId()) : NO_PROOF;
+        if (!PeerAuth.matches(expected, hello.getBody())) {
+            return null;
+        }
+        byte[] proof = auth != null ? auth.acceptorProof(server.getServerName(), challenge, hello.getId()) : NO_PROOF;
+        out.write(new ChatFrame(ChatFrame.Type.HELLO, server.getServerName(), null, System.currentTimeMillis(), proof)
+                .toBinary());
+        out.flush();
+        return hello;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Already failed; nothing more to report
+        }
+    }
+
+    // A CATCH_UP body is a complete binary frame, length prefix included
+    private static ChatFrame unwrap(byte[] wrapped) throws IOException {
+        try {
+            return ChatFrame.decode(ByteBuffer.wrap(wrapped, 4, wrapped.length - 4));
+        } catch (RuntimeException e) {
+            throw new IOException("malformed catch-up frame", e);
+        }
+    }
+
+    /**
+     * Outbound link to one peer. Messages go through a bounded queue drained by this
+     * link's own thread, which writes whatever has piled up as one batch and flushes
+     * once. A dead peer reconnects with backoff and never stalls local broadcasts.
+     */
+    private class PeerLink implements Runnable {
+        private final String host;
+        private final int port;
+        private final BlockingQueue<ChatFrame> queue = new ArrayBlockingQueue<>(LINK_QUEUE_CAPACITY);
+        private final List<ChatFrame> batch = new ArrayList<>(MAX_BATCH);
+        private final AtomicLong dropped = new AtomicLong();
+        // Rooms the peer has members in, or null while unknown
+        private volatile Set<String> interest;
+        private final AtomicBoolean interestDirty = new AtomicBoolean(true);
+        private final AtomicBoolean presenceDirty = new AtomicBoolean(true);
+        // Writer thread only: the rooms last announced on the current connection
+        private Set<String> announced;
+        // Queued only to wake the writer when our room list or presence has to be sent; never sent itself
+        private final ChatFrame wakeMarker = ChatFrame.of(ChatFrame.Type.INTEREST, null, null, null);
+
+        PeerLink(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        boolean wants(String room) {
+            Set<String> rooms = interest;
+            return rooms == null || rooms.contains(room);
+        }
+
+        void setInterest(String roomList) {
+            Set<String> rooms = new HashSet<>();
+            for (String room : roomList.split("\n")) {
+                if (!room.isEmpty()) {
+                    rooms.add(room);
+                }
+            }
+            interest = rooms;
+        }
+
+        void clearInterest() {
+            interest = null;
+        }
+
+        void markInterestDirty() {
+            if (interestDirty.compareAndSet(false, true)) {
+                enqueue(wakeMarker);
+            }
+        }
+
+        void markPresenceDirty() {
+            if (presenceDirty.compareAndSet(false, true)) {
+                enqueue(wakeMarker);
+            }
+        }
+
+        void enqueue(ChatFrame frame) {
+            // Drop the oldest message rather than block the broadcasting thread
+            while (!queue.offer(frame)) {
+                if (queue.poll() != null) {
+                    dropped.incrementAndGet();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            long backoff = INITIAL_BACKOFF_MS;
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress(host, port), 2000);
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                    if (!dialHandshake(socket, out)) {
+                        LOG.warn("mesh.outbound.rejected", "server", server.getServerName(), "peer", host + ":" + port);
+                        throw new IOException("peer failed the handshake");
+                    }
+                    LOG.info("mesh.outbound.up", "server", server.getServerName(), "peer", host + ":" + port);
+                    backoff = INITIAL_BACKOFF_MS;
+                    // A new connection may be a restarted peer, so it always gets our room list and presence first
+                    interestDirty.set(true);
+                    presenceDirty.set(true);
+                    // Until its first INTEREST arrives the peer sends everything, so nothing needs catching up
+                    announced = null;
+                    writeLoop(out);
+                } catch (IOException e) {
+                    long lost = dropped.getAndSet(0);
+                    if (lost > 0) {
+                        LOG.warn("mesh.outbound.dropped", "peer", host + ":" + port, "count", lost);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                try {
+                    TimeUnit.MILLISECONDS.sleep(backoff);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            }
+        }
+
+        /**
+         * Dialing side of the handshake: answers the peer's challenge with our HELLO and
+         * proof, then checks the peer's proof. True once both ends hold the cluster secret.
+         */
+        private boolean dialHandshake(Socket socket, OutputStream out) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            ChatFrame challenge = ChatFrame.read(in);
+            long ours = auth != null ? auth.challenge() : 0;
+            byte[] proof = auth != null
+                    ? auth.dialerProof(server.getServerName(), selfAddress, challenge.getId(), ours) : NO_PROOF;
+            // The room field carries our address, which the peer looks its reply link up by
+            out.write(new ChatFrame(ChatFrame.Type.HELLO, server.getServerName(), selfAddress,
+                    System.currentTimeMillis(), ours, 0, proof).toBinary());
+            out.flush();
+            ChatFrame answer = ChatFrame.read(in);
+            socket.setSoTimeout(0);
+            if (challenge.getType() != ChatFrame.Type.HELLO || answer.getType() != ChatFrame.Type.HELLO) {
+                return false;
+            }
+            byte[] expected = auth != null ? auth.acceptorProof(answer.getSender(), challenge.getId(), ours) : NO_PROOF;
+            return PeerAuth.matches(expected, answer.getBody());
+        }
+
+        private void writeLoop(OutputStream out) throws IOException, InterruptedException {
+            while (true) {
+                // A batch left over from a failed write is resent first after reconnecting
+                if (batch.isEmpty() && !interestDirty.get() && !presenceDirty.get()) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                }
+                if (interestDirty.getAndSet(false)) {
+                    // Built at write time, so it is never older than the change that triggered it
+                    List<String> rooms = server.localRooms();
+                    out.write(ChatFrame.of(ChatFrame.Type.INTEREST, server.getServerName(), null,
+                            String.join("\n", rooms)).toBinary());
+                    for (String room : rooms) {
+                        long newest = server.newestMessageId(room);
+                        if (announced != null && !announced.contains(room) && newest != 0) {
+                            out.write(ChatFrame.of(ChatFrame.Type.CATCH_UP, server.getServerName(), room, null)
+                                    .withId(newest).toBinary());
+                        }
+                    }
+                    announced = new HashSet<>(rooms);
+                }
+                if (presenceDirty.getAndSet(false)) {
+                    // Taken after the batch, so any delta in it is already part of the snapshot
+                    out.write(server.presence().snapshot().toBinary());
+                }
+                for (ChatFrame frame : batch) {
+                    if (frame != wakeMarker) {
+                        out.write(frame.toBinary());
+                    }
+                }
+                out.flush();
+                batch.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.example.voyeger;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Live counters, gauges and latency summaries of one chat server, rendered for
+ * MetricsHttpServer in the Prometheus text format or as JSON.
+ *
+ * The server keeps its own LongAdders and hands this registry suppliers that read
+ * them, so nothing on the message path knows about metrics. Counters also get a
+ * per-second rate (in JSON only; Prometheus computes its own from the totals) from
+ * sample(), which the HTTP server calls once a second. Latency quantiles cover the
+ * last one to two minutes; count and sum are totals since startup.
+ */
+class ServerMetrics {
+    private static final int WINDOW_SAMPLES = 60;
+
+    private enum Type { COUNTER, GAUGE, SUMMARY }
+
+    private final String server;
+    private final long startedAt = System.currentTimeMillis();
+    private final List<Metric> metrics = new CopyOnWriteArrayList<>();
+    private volatile BooleanSupplier healthCheck = () -> true;
+    private volatile LongSupplier connections = () -> -1;
+    private volatile int maxConnections;
+    private int samples;
+
+    ServerMetrics(String server) {
+        this.server = server;
+    }
+
+    String getServer() {
+        return server;
+    }
+
+    void counter(String name, String help, LongSupplier total) {
+        metrics.add(new Metric(name, help, Type.COUNTER, total, null));
+    }
+
+    void gauge(String name, String help, LongSupplier value) {
+        metrics.add(new Metric(name, help, Type.GAUGE, value, null));
+    }
+
+    /** Exported in seconds; the Latency records microseconds. */
+    void latency(String name, String help, Latency latency) {
+        metrics.add(new Metric(name, help, Type.SUMMARY, null, latency));
+    }
+
+    void setHealthCheck(BooleanSupplier healthCheck) {
+        this.healthCheck = healthCheck;
+    }
+
+    boolean isHealthy() {
+        return healthCheck.getAsBoolean();
+    }
+
+    /** What /health reports as the server's load; maxConnections 0 means no cap. */
+    void setLoad(LongSupplier connections, int maxConnections) {
+        this.connections = connections;
+        this.maxConnections = maxConnections;
+    }
+
+    /** Open client connections, or -1 when the server did not say. */
+    long connections() {
+        return connections.getAsLong();
+    }
+
+    int maxConnections() {
+        return maxConnections;
+    }
+
+    /** Updates per-second rates; also rolls latency windows once a minute. Called from one thread. */
+    void sample() {
+        long now = System.nanoTime();
+        boolean rotate = ++samples % WINDOW_SAMPLES == 0;
+        for (Metric metric : metrics) {
+            if (metric.type == Type.COUNTER) {
+                long total = metric.value.getAsLong();
+                if (metric.lastSampleNanos != 0) {
+                    metric.perSecond = (total - metric.lastTotal) * 1e9 / Math.max(1, now - metric.lastSampleNanos);
+                }
+                metric.lastTotal = total;
+                metric.lastSampleNanos = now;
+            } else if (metric.type == Type.SUMMARY && rotate) {
+                metric.latency.rotate();
+            }
+        }
+    }
+
+    String toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        String label = "server=\"" + server + "\"";
+        for (Metric metric : metrics) {
+            out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            out.append("# TYPE ").append(metric.name).append(' ').append(metric.type.name().toLowerCase(Locale.ROOT)).append('\n');
+            if (metric.type != Type.SUMMARY) {
+                out.append(metric.name).append('{').append(label).append("} ").append(metric.value.getAsLong()).append('\n');
+                continue;
+            }
+            LatencyHistogram recent = metric.latency.recent();
+            for (String quantile : new String[] {"0.5", "0.99", "0.999"}) {
+                out.append(metric.name).append('{').append(label).append(",quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(recent.getValueAtPercentile(Double.parseDouble(quantile) * 100))).append('\n');
+            }
+            out.append(metric.name).append("_sum{").append(label).append("} ").append(seconds(metric.latency.sum.sum())).append('\n');
+            out.append(metric.name).append("_count{").append(label).append("} ").append(metric.latency.count.sum()).append('\n');
+        }
+        return out.toString();
+    }
+
+    String toJson() {
+        StringBuilder out = new StringBuilder(2048);
+        out.append("{\"server\":\"").append(server).append("\",\"uptimeSeconds\":")
+                .append((System.currentTimeMillis() - startedAt) / 1000)
+                .append(",\"healthy\":").append(isHealthy()).append(",\"metrics\":{");
+        boolean first = true;
+        for (Metric metric : metrics) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            out.append('"').append(metric.name).append("\":");
+            switch (metric.type) {
+                case COUNTER:
+                    out.append("{\"total\":").append(metric.value.getAsLong())
+                            .append(",\"perSecond\":").append(String.format(Locale.ROOT, "%.2f", metric.perSecond)).append('}');
+                    break;
+                case GAUGE:
+                    out.append(metric.value.getAsLong());
+                    break;
+                case SUMMARY:
+                    LatencyHistogram recent = metric.latency.recent();
+                    out.append("{\"count\":").append(metric.latency.count.sum())
+                            .append(",\"p50\":").append(seconds(recent.getValueAtPercentile(50)))
+                            .append(",\"p99\":").append(seconds(recent.getValueAtPercentile(99)))
+                            .append(",\"p999\":").append(seconds(recent.getValueAtPercentile(99.9)))
+                            .append(",\"max\":").append(seconds(recent.getMax())).append('}');
+                    break;
+            }
+        }
+        return out.append("}}").toString();
+    }
+
+    private static String seconds(long micros) {
+        return String.format(Locale.ROOT, "%.6f", micros / 1e6);
+    }
+
+    private static final class Metric {
+        final String name;
+        final String help;
+        final Type type;
+        final LongSupplier value;
+        final Latency latency;
+        // Written by the sampler thread, read by HTTP requests
+        volatile double perSecond;
+        long lastTotal;
+        long lastSampleNanos;
+
+        Metric(String name, String help, Type type, LongSupplier value, Latency latency) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+            this.latency = latency;
+        }
+    }
+
+    /**
+     * A latency distribution in microseconds. Records go into the current window; each
+     * rotation keeps one previous window, so quantiles reflect recent behaviour rather
+     * than the whole uptime.
+     */
+    static final class Latency {
+        private volatile LatencyHistogram current = new LatencyHistogram();
+        private volatile LatencyHistogram previous = new LatencyHistogram();
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        void record(long micros) {
+            current.record(micros);
+            count.increment();
+            sum.add(Math.max(0, micros));
+        }
+
+        private void rotate() {
+            previous = current;
+            current = new LatencyHistogram();
+        }
+
+        private LatencyHistogram recent() {
+            LatencyHistogram merged = new LatencyHistogram();
+            merged.add(previous);
+            merged.add(current);
+            return merged;
+        }
+    }
+
+    /** Counts bytes read from a socket stream. */
+    static final class CountingInputStream extends FilterInputStream {
+        private final LongConsumer bytes;
+
+        CountingInputStream(InputStream in, LongConsumer bytes) {
+            super(in);
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                bytes.accept(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = in.read(buffer, offset, length);
+            if (n > 0) {
+                bytes.accept(n);
+            }
+            return n;
+        }
+    }
+
+    /** Counts bytes written to a socket stream. */
+    static final class CountingOutputStream extends FilterOutputStream {
+        private final LongConsumer bytes;
+
+        CountingOutputStream(OutputStream out, LongConsumer bytes) {
+            super(out);
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytes.accept(1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            bytes.accept(length);
+        }
+    }
+}
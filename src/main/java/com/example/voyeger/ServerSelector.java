@@ -0,0 +1,189 @@
+package com.example.voyeger;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Chooses which chat server a client connects to, without a central balancer.
+ *
+ * Servers that answered their probe come first, least loaded first. A server's score is
+ * its connection count plus its round trip in milliseconds, and scores within
+ * max(2, 10%) of the best count as a tie. The room's home server, the first in its ring
+ * preference list, wins a tie: that is where the room's messages are routed and kept, so
+ * joining anywhere else costs a relay hop that only a real difference in load pays for.
+ * Without the home server in the tie, the first choice is a random one of the tied
+ * servers, so clients probing at the same moment, which all see the same counts, spread
+ * out instead of all landing on the one that looked emptiest.
+ *
+ * Servers that could not be probed follow in preference order, so when no /health
+ * answers at all the order is the ring's, and a failover lands on the server that takes
+ * over the room. Servers that are DOWN, or hold at least OVERLOAD_FRACTION of their
+ * connection cap, go last.
+ *
+ * Probes go to each server's /health endpoint (MetricsHttpServer, on
+ * ChatServerConfig.getMetricsHost at the chat port + METRICS_PORT_OFFSET), never to the
+ * chat port, so they take no accept-rate tokens and never count as clients. Probing
+ * blocks for up to PROBE_TIMEOUT_MILLIS, so order() must not run on the UI thread.
+ */
+class ServerSelector {
+    private static final AsyncLog LOG = AsyncLog.get("chat.client");
+    private static final int PROBE_TIMEOUT_MILLIS = 1000;
+    static final double OVERLOAD_FRACTION = 0.8;
+    private static final Pattern CONNECTIONS = Pattern.compile("\"connections\":(-?\\d+)");
+    private static final Pattern MAX_CONNECTIONS = Pattern.compile("\"maxConnections\":(\\d+)");
+
+    /** What one probe found; connections is -1 when the server's /health did not answer. */
+    static final class Probe {
+        final String server;
+        final boolean down;
+        final int connections;
+        final int maxConnections;
+        final long rttNanos;
+
+        Probe(String server, boolean down, int connections, int maxConnections, long rttNanos) {
+            this.server = server;
+            this.down = down;
+            this.connections = connections;
+            this.maxConnections = maxConnections;
+            this.rttNanos = rttNanos;
+        }
+
+        static Probe unknown(String server) {
+            return new Probe(server, false, -1, 0, 0);
+        }
+
+        boolean answered() {
+            return !down && connections >= 0;
+        }
+
+        boolean overloaded() {
+            return down || (maxConnections > 0 && connections >= OVERLOAD_FRACTION * maxConnections);
+        }
+
+        double score() {
+            return connections + rttNanos / 1e6;
+        }
+    }
+
+    private final ConsistentHashRing ring;
+    private final HttpClient http = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofMillis(PROBE_TIMEOUT_MILLIS))
+            .build();
+
+    ServerSelector(ConsistentHashRing ring) {
+        this.ring = ring;
+    }
+
+    /** Every server, in the order a client joining the room should try them. Blocks while probing. */
+    List<String> order(String room) {
+        List<String> servers = ring.preferenceList(room);
+        List<Probe> probes = probeAll(servers);
+        return order(room, probes);
+    }
+
+    /** Orders probes given in preference order, home server first. */
+    static List<String> order(String room, List<Probe> probes) {
+        List<Probe> answered = new ArrayList<>();
+        List<Probe> unprobed = new ArrayList<>();
+        List<Probe> overloaded = new ArrayList<>();
+        for (Probe probe : probes) {
+            if (probe.overloaded()) {
+                overloaded.add(probe);
+            } else if (probe.answered()) {
+                answered.add(probe);
+            } else {
+                unprobed.add(probe);
+            }
+        }
+        // Stable, so equal scores keep their preference order
+        answered.sort(Comparator.comparingDouble(Probe::score));
+        if (answered.size() > 1) {
+            double best = answered.get(0).score();
+            double limit = best + Math.max(2, best * 0.1);
+            Probe home = probes.get(0);
+            Probe first;
+            if (answered.contains(home) && home.score() <= limit) {
+                first = home;
+            } else {
+                int tied = 1;
+                while (tied < answered.size() && answered.get(tied).score() <= limit) {
+                    tied++;
+                }
+                first = answered.get(ThreadLocalRandom.current().nextInt(tied));
+            }
+            answered.remove(first);
+            answered.add(0, first);
+        }
+
+        List<String> order = new ArrayList<>(probes.size());
+        for (List<Probe> group : List.of(answered, unprobed, overloaded)) {
+            for (Probe probe : group) {
+                order.add(probe.server);
+            }
+        }
+        if (!answered.isEmpty() && answered.get(0) != probes.get(0)) {
+            LOG.info("server.selected", "room", room, "server", answered.get(0).server,
+                    "connections", answered.get(0).connections, "home", probes.get(0).server);
+        }
+        return order;
+    }
+
+    /** Probes all servers concurrently; results are in the order of the input. */
+    List<Probe> probeAll(List<String> servers) {
+        List<CompletableFuture<Probe>> futures = new ArrayList<>(servers.size());
+        for (String server : servers) {
+            futures.add(probe(server));
+        }
+        List<Probe> probes = new ArrayList<>(servers.size());
+        for (int i = 0; i < servers.size(); i++) {
+            probes.add(futures.get(i).join());
+        }
+        return probes;
+    }
+
+    private CompletableFuture<Probe> probe(String server) {
+        URI uri;
+        try {
+            int colon = server.lastIndexOf(':');
+            int port = Integer.parseInt(server.substring(colon + 1)) + ChatServerConfig.METRICS_PORT_OFFSET;
+            uri = URI.create("http://" + server.substring(0, colon) + ":" + port + "/health");
+        } catch (RuntimeException e) {
+            return CompletableFuture.completedFuture(Probe.unknown(server));
+        }
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofMillis(PROBE_TIMEOUT_MILLIS))
+                .GET()
+                .build();
+        long start = System.nanoTime();
+        return http.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .thenApply(response -> parse(server, response.statusCode(), response.body(), System.nanoTime() - start))
+                .exceptionally(e -> {
+                    LOG.debug("server.probe.failed", "server", server, "error", e.getMessage());
+                    return Probe.unknown(server);
+                });
+    }
+
+    /** Reads a /health answer; servers from before it reported load count as unprobed unless DOWN. */
+    static Probe parse(String server, int status, String body, long rttNanos) {
+        if (status == 503) {
+            return new Probe(server, true, -1, 0, rttNanos);
+        }
+        Matcher connections = CONNECTIONS.matcher(body);
+        if (status != 200 || !connections.find()) {
+            return Probe.unknown(server);
+        }
+        Matcher max = MAX_CONNECTIONS.matcher(body);
+        return new Probe(server, false, Integer.parseInt(connections.group(1)),
+                max.find() ? Integer.parseInt(max.group(1)) : 0, rttNanos);
+    }
+}
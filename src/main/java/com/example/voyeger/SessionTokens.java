@@ -0,0 +1,91 @@
+package com.example.voyeger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+
+/**
+ * Resume tokens that any server of the cluster can check, without asking the one that
+ * issued them.
+ *
+ * A token is issuedAt.nonce.mac in hex: the mac is an HMAC-SHA256 over the user, the
+ * room, the issue time and the nonce under the cluster secret (chat.clusterSecret), cut
+ * to 128 bits. Without the secret nobody can make one up, and a token only resumes the
+ * user and room it was issued for, within maxAgeMillis of being issued. The nonce keeps
+ * two windows of one user in one room from sharing a token.
+ */
+final class SessionTokens {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int MAC_BYTES = 16;
+    // Tolerated difference between the clocks of the issuing and the checking server
+    private static final long CLOCK_SKEW_MILLIS = 60_000;
+
+    private final SecretKeySpec key;
+    private final long maxAgeMillis;
+    private final SecureRandom random = new SecureRandom();
+
+    SessionTokens(byte[] secret, long maxAgeMillis) {
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /** A secret for a server that was given none; its tokens then only resume on itself. */
+    static byte[] randomSecret() {
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        return secret;
+    }
+
+    String issue(String user, String room, long now) {
+        long nonce = random.nextLong();
+        HexFormat hex = HexFormat.of();
+        return Long.toHexString(now) + "." + Long.toHexString(nonce) + "." + hex.formatHex(mac(user, room, now, nonce));
+    }
+
+    /** True if the token was issued for this user and room, by a server with the secret, and is not too old. */
+    boolean verify(String token, String user, String room, long now) {
+        String[] parts = token.split("\\.", -1);
+        if (parts.length != 3 || parts[2].length() != 2 * MAC_BYTES) {
+            return false;
+        }
+        long issuedAt;
+        long nonce;
+        byte[] mac;
+        try {
+            issuedAt = Long.parseUnsignedLong(parts[0], 16);
+            nonce = Long.parseUnsignedLong(parts[1], 16);
+            mac = HexFormat.of().parseHex(parts[2]);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        if (issuedAt > now + CLOCK_SKEW_MILLIS || now - issuedAt > maxAgeMillis) {
+            return false;
+        }
+        return MessageDigest.isEqual(mac, mac(user, room, issuedAt, nonce));
+    }
+
+    private byte[] mac(String user, String room, long issuedAt, long nonce) {
+        byte[] userBytes = user.getBytes(StandardCharsets.UTF_8);
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        // Lengths first, so no user and room pair reads the same as another
+        ByteBuffer input = ByteBuffer.allocate(8 + userBytes.length + roomBytes.length + 16);
+        input.putInt(userBytes.length).put(userBytes).putInt(roomBytes.length).put(roomBytes)
+                .putLong(issuedAt).putLong(nonce);
+        try {
+            // Mac instances are not thread-safe, and a JOIN is rare enough to make one each time
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            byte[] full = mac.doFinal(input.array());
+            byte[] cut = new byte[MAC_BYTES];
+            System.arraycopy(full, 0, cut, 0, MAC_BYTES);
+            return cut;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+}
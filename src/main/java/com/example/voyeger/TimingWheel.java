@@ -0,0 +1,123 @@
+package com.example.voyeger;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel: one thread and a ring of buckets stand in for any number of
+ * pending timeouts. Each tick the thread runs the tasks in the next bucket whose
+ * deadline has come; a timeout further away than one turn of the wheel waits in its
+ * bucket for the right number of rounds.
+ *
+ * Scheduling only appends to a lock-free queue, and the buckets belong to the wheel
+ * thread alone, so scheduling and expiry are O(1) whatever the number of timeouts.
+ * Deadlines are rounded up to the tick, so a task runs at most one tick late. Tasks
+ * run on the wheel thread and must not block; anything slow should be handed off.
+ */
+final class TimingWheel {
+    private static final AsyncLog LOG = AsyncLog.get("timer");
+
+    private final long tickNanos;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final long startNanos = System.nanoTime();
+    private final Thread worker;
+    private volatile boolean stopped;
+    private long tick;
+
+    TimingWheel(String name, long tick, TimeUnit unit, int wheelSize) {
+        this.tickNanos = Math.max(1, unit.toNanos(tick));
+        int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+        this.buckets = new Timeout[size];
+        this.mask = size - 1;
+        this.worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /** Runs task on the wheel thread after roughly delay. */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + Math.max(0, unit.toNanos(delay)));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    void stop() {
+        stopped = true;
+        LockSupport.unpark(worker);
+    }
+
+    private void run() {
+        while (!stopped) {
+            long deadline = (tick + 1) * tickNanos;
+            long sleep = deadline - (System.nanoTime() - startNanos);
+            if (sleep > 0) {
+                LockSupport.parkNanos(this, sleep);
+                continue;
+            }
+            transferPending();
+            expire(buckets[(int) (tick & mask)], deadline);
+            tick++;
+        }
+    }
+
+    // Wheel thread only: files new timeouts under the tick they are due in
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long dueTick = Math.max(tick, (timeout.deadlineNanos + tickNanos - 1) / tickNanos - 1);
+            timeout.remainingRounds = (dueTick - tick) / buckets.length;
+            int index = (int) (dueTick & mask);
+            timeout.next = buckets[index];
+            buckets[index] = timeout;
+        }
+    }
+
+    // Wheel thread only: runs what is due in the bucket and keeps the rest
+    private void expire(Timeout head, long deadline) {
+        int index = (int) (tick & mask);
+        buckets[index] = null;
+        Timeout timeout = head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.next = null;
+            if (timeout.cancelled) {
+                // Dropped
+            } else if (timeout.remainingRounds > 0 || timeout.deadlineNanos > deadline) {
+                timeout.remainingRounds--;
+                timeout.next = buckets[index];
+                buckets[index] = timeout;
+            } else {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    LOG.error("timer.task.failed", e);
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    /** A scheduled task. Cancelling is lazy: the wheel discards it when it comes up. */
+    static final class Timeout {
+        private final Runnable task;
+        private final long deadlineNanos;
+        private volatile boolean cancelled;
+        private long remainingRounds;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+    }
+}
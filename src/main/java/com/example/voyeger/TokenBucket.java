@@ -0,0 +1,49 @@
+package com.example.voyeger;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that refills at a steady rate up to a burst, safe to share between
+ * threads without a lock.
+ *
+ * Rather than a token count and a refill timestamp it keeps one number, the time at
+ * which the bucket will be full again (the "generic cell rate algorithm" form of a
+ * token bucket): taking n tokens pushes that time n token intervals later, and is
+ * refused when it would land more than a burst ahead of now. Taking is one CAS, and an
+ * idle bucket needs no refill work at all.
+ */
+final class TokenBucket {
+    private final long nanosPerToken;
+    private final long burstNanos;
+    private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+    TokenBucket(double tokensPerSecond, long burst) {
+        this.nanosPerToken = Math.max(1, (long) (1_000_000_000L / tokensPerSecond));
+        this.burstNanos = nanosPerToken * Math.max(1, burst);
+    }
+
+    /**
+     * Takes n tokens if the bucket holds them. A full bucket always gives, so a request
+     * larger than the whole burst still gets through now and then, leaving the bucket in
+     * debt for as long as it would have taken to save up for it.
+     */
+    boolean tryTake(long n) {
+        long now = System.nanoTime();
+        while (true) {
+            long current = fullAt.get();
+            boolean full = current - now <= 0;
+            long next = (full ? now : current) + n * nanosPerToken;
+            if (!full && next - now > burstNanos) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /** A full bucket behaves exactly like a new one, so it can be dropped and recreated. */
+    boolean isFull() {
+        return fullAt.get() - System.nanoTime() <= 0;
+    }
+}
@@ -17,6 +17,7 @@ import java.util.regex.Pattern;
  */
 public class TripApiClient {
     private static final String BASE_URL = "http://localhost:5000";
+    private static final AsyncLog LOG = AsyncLog.get("api");
 
     public static List<Trip> fetchSoloTrips(String excludeUsername) {
         try {
@@ -28,8 +29,7 @@ public class TripApiClient {
             String jsonResponse = httpGet(url);
             return parseTripsFromJson(jsonResponse);
         } catch (Exception e) {
-            System.err.println("❌ Error fetching solo trips: " + e.getMessage());
-            e.printStackTrace();
+            LOG.error("trips.solo.failed", e);
             return new ArrayList<>();
         }
     }
@@ -44,8 +44,7 @@ public class TripApiClient {
             String jsonResponse = httpGet(url);
             return parseTripsFromJson(jsonResponse);
         } catch (Exception e) {
-            System.err.println("❌ Error fetching group trips: " + e.getMessage());
-            e.printStackTrace();
+            LOG.error("trips.group.failed", e);
             return new ArrayList<>();
         }
     }
@@ -74,7 +73,7 @@ public class TripApiClient {
         return response.toString();
     }
 
-    private static List<Trip> parseTripsFromJson(String json) {
+    static List<Trip> parseTripsFromJson(String json) {
         List<Trip> trips = new ArrayList<>();
 
         // Simple regex-based JSON parsing (works for clean JSON arrays)
@@ -90,7 +89,7 @@ public class TripApiClient {
                     trips.add(trip);
                 }
             } catch (Exception e) {
-                System.err.println("Error parsing trip: " + e.getMessage());
+                LOG.warn("trip.parse.failed", "error", e.getMessage());
             }
         }
 
@@ -174,7 +173,7 @@ public class TripApiClient {
             return trip;
 
         } catch (Exception e) {
-            System.err.println("Error in parseSingleTrip: " + e.getMessage());
+            LOG.warn("trip.parse.failed", "error", e.getMessage());
             return null;
         }
     }
@@ -208,16 +207,15 @@ public class TripApiClient {
                 "\"message\":\"" + escapeJson(message != null ? message : "") + "\"" +
                 "}";
 
-            System.out.println("📤 Sending join request to: " + url);
-            System.out.println("📤 Payload: " + jsonPayload);
+            LOG.info("join-request.send", "trip", tripId, "requester", requesterUsername);
+            LOG.debug("join-request.payload", "body", jsonPayload);
 
             String response = httpPost(url, jsonPayload);
-            System.out.println("✅ Join request response: " + response);
+            LOG.debug("join-request.response", "body", response);
 
             return response != null && response.contains("insertedId");
         } catch (Exception e) {
-            System.err.println("❌ Error sending join request: " + e.getMessage());
-            e.printStackTrace();
+            LOG.error("join-request.send.failed", e);
             return false;
         }
     }
@@ -234,8 +232,7 @@ public class TripApiClient {
                 URLEncoder.encode(username, StandardCharsets.UTF_8);
             return httpGet(url);
         } catch (Exception e) {
-            System.err.println("❌ Error fetching join requests: " + e.getMessage());
-            e.printStackTrace();
+            LOG.error("join-requests.fetch.failed", e);
             return "[]";
         }
     }
@@ -251,8 +248,7 @@ public class TripApiClient {
             String jsonResponse = fetchJoinRequests(tripId, username);
             return parseJoinRequestsFromJson(jsonResponse, tripId);
         } catch (Exception e) {
-            System.err.println("❌ Error parsing join requests: " + e.getMessage());
-            e.printStackTrace();
+            LOG.error("join-requests.parse.failed", e);
             return new ArrayList<>();
         }
     }
@@ -275,11 +271,11 @@ public class TripApiClient {
                     requests.add(request);
                 }
             } catch (Exception e) {
-                System.err.println("Error parsing join request: " + e.getMessage());
+                LOG.warn("join-request.parse.failed", "error", e.getMessage());
             }
         }
 
-        System.out.println("✅ Parsed " + requests.size() + " join requests from backend");
+        LOG.debug("join-requests.parsed", "count", requests.size());
         return requests;
     }
 
@@ -316,7 +312,7 @@ public class TripApiClient {
             return request;
 
         } catch (Exception e) {
-            System.err.println("Error in parseSingleJoinRequest: " + e.getMessage());
+            LOG.warn("join-request.parse.failed", "error", e.getMessage());
             return null;
         }
     }
@@ -334,7 +330,7 @@ public class TripApiClient {
         conn.getOutputStream().write(jsonPayload.getBytes(StandardCharsets.UTF_8));
 
         int responseCode = conn.getResponseCode();
-        System.out.println("📡 HTTP Response Code: " + responseCode);
+        LOG.debug("http.response", "status", responseCode);
 
         if (responseCode != 200 && responseCode != 201) {
             // Read error response
@@ -345,7 +341,7 @@ public class TripApiClient {
                 errorResponse.append(line);
             }
             errorReader.close();
-            System.err.println("❌ Error response: " + errorResponse.toString());
+            LOG.warn("http.error", "status", responseCode, "body", errorResponse);
             throw new Exception("HTTP " + responseCode + ": " + errorResponse.toString());
         }
 
@@ -410,8 +406,7 @@ public class TripApiClient {
             String jsonResponse = httpGet(url);
             return parseNotificationsFromJson(jsonResponse);
         } catch (Exception e) {
-            System.err.println("❌ Error fetching notifications: " + e.getMessage());
-            e.printStackTrace();
+            LOG.error("notifications.fetch.failed", e);
             return new ArrayList<>();
         }
     }
@@ -424,24 +419,22 @@ public class TripApiClient {
     public static int fetchNotificationCount(String username) {
         try {
             String url = BASE_URL + "/notifications/" + URLEncoder.encode(username, StandardCharsets.UTF_8) + "/count";
-            System.out.println("🔍 Fetching notification count for user: " + username);
-            System.out.println("📡 URL: " + url);
+            LOG.debug("notifications.count.fetch", "user", username);
 
             String jsonResponse = httpGet(url);
-            System.out.println("📥 Response: " + jsonResponse);
+            LOG.debug("notifications.count.response", "body", jsonResponse);
 
             // Extract count from JSON response {"count": 5}
             String countStr = extractJsonValue(jsonResponse, "count");
             if (countStr != null) {
                 int count = Integer.parseInt(countStr);
-                System.out.println("✅ Notification count: " + count);
+                LOG.debug("notifications.count", "user", username, "count", count);
                 return count;
             }
-            System.out.println("⚠️ No count found in response");
+            LOG.warn("notifications.count.missing", "user", username);
             return 0;
         } catch (Exception e) {
-            System.err.println("❌ Error fetching notification count: " + e.getMessage());
-            e.printStackTrace();
+            LOG.error("notifications.count.failed", e);
             return 0;
         }
     }
@@ -449,7 +442,7 @@ public class TripApiClient {
     /**
      * Parse notifications from JSON array
      */
-    private static List<Notification> parseNotificationsFromJson(String json) {
+    static List<Notification> parseNotificationsFromJson(String json) {
         List<Notification> notifications = new ArrayList<>();
 
         // Pattern to match each notification object in the array
@@ -464,11 +457,11 @@ public class TripApiClient {
                     notifications.add(notification);
                 }
             } catch (Exception e) {
-                System.err.println("Error parsing notification: " + e.getMessage());
+                LOG.warn("notification.parse.failed", "error", e.getMessage());
             }
         }
 
-        System.out.println("✅ Parsed " + notifications.size() + " notifications from backend");
+        LOG.debug("notifications.parsed", "count", notifications.size());
         return notifications;
     }
 
@@ -518,7 +511,7 @@ public class TripApiClient {
             );
 
         } catch (Exception e) {
-            System.err.println("Error in parseSingleNotification: " + e.getMessage());
+            LOG.warn("notification.parse.failed", "error", e.getMessage());
             return null;
         }
     }
@@ -532,7 +525,7 @@ public class TripApiClient {
     public static boolean dismissNotification(String username, String notificationId) {
         try {
             String url = BASE_URL + "/notifications/" + URLEncoder.encode(username, StandardCharsets.UTF_8) + "/" + notificationId;
-            System.out.println("🗑️ Dismissing notification: " + notificationId);
+            LOG.info("notification.dismiss", "user", username, "id", notificationId);
 
             URL urlObj = new URL(url);
             HttpURLConnection conn = (HttpURLConnection) urlObj.openConnection();
@@ -541,16 +534,14 @@ public class TripApiClient {
             conn.setReadTimeout(5000);
 
             int responseCode = conn.getResponseCode();
-            System.out.println("📡 HTTP Response Code: " + responseCode);
+            LOG.debug("http.response", "status", responseCode);
 
             if (responseCode == 200) {
-                System.out.println("✅ Notification dismissed successfully");
                 return true;
             }
             return false;
         } catch (Exception e) {
-            System.err.println("❌ Error dismissing notification: " + e.getMessage());
-            e.printStackTrace();
+            LOG.error("notification.dismiss.failed", e);
             return false;
         }
     }
@@ -572,16 +563,15 @@ public class TripApiClient {
                 "\"responderUsername\":\"" + escapeJson(username) + "\"" +
                 "}";
 
-            System.out.println("📤 Approving join request: " + url);
-            System.out.println("📤 Payload: " + jsonPayload);
+            LOG.info("join-request.approve", "url", url);
+            LOG.debug("join-request.payload", "body", jsonPayload);
 
             String response = httpPut(url, jsonPayload);
-            System.out.println("✅ Approve request response: " + response);
+            LOG.debug("join-request.approve.response", "body", response);
 
             return response != null && (response.contains("approved successfully") || response.contains("success"));
         } catch (Exception e) {
-            System.err.println("❌ Error approving join request: " + e.getMessage());
-            e.printStackTrace();
+            LOG.error("join-request.approve.failed", e);
             return false;
         }
     }
@@ -597,11 +587,10 @@ public class TripApiClient {
         try {
             // Group chat is automatically created by backend when request is approved
             // This method just returns the tripId as chatId since backend uses tripId as chatId
-            System.out.println("✅ Group chat automatically created by backend for trip: " + tripId);
+            LOG.debug("group-chat.created", "trip", tripId);
             return tripId;
         } catch (Exception e) {
-            System.err.println("❌ Error in createOrUpdateGroupChat: " + e.getMessage());
-            e.printStackTrace();
+            LOG.error("group-chat.create.failed", e);
             return null;
         }
     }
@@ -617,8 +606,7 @@ public class TripApiClient {
             String jsonResponse = httpGet(url);
             return parseGroupChatFromJson(jsonResponse, tripId);
         } catch (Exception e) {
-            System.err.println("❌ Error fetching group chat: " + e.getMessage());
-            e.printStackTrace();
+            LOG.error("group-chat.fetch.failed", e);
             return null;
         }
     }
@@ -654,11 +642,11 @@ public class TripApiClient {
 
             GroupChat groupChat = new GroupChat(chatId, tripId, chatName, members);
 
-            System.out.println("✅ Parsed group chat: " + chatName + " with " + members.size() + " members");
+            LOG.debug("group-chat.parsed", "name", chatName, "members", members.size());
             return groupChat;
 
         } catch (Exception e) {
-            System.err.println("Error in parseGroupChatFromJson: " + e.getMessage());
+            LOG.warn("group-chat.parse.failed", "error", e.getMessage());
             return null;
         }
     }
@@ -679,14 +667,13 @@ public class TripApiClient {
                 "\"content\":\"" + escapeJson(content) + "\"" +
                 "}";
 
-            System.out.println("📤 Sending chat message to: " + url);
+            LOG.debug("group-chat.send", "trip", tripId, "sender", sender);
 
             String response = httpPost(url, jsonPayload);
-            System.out.println("✅ Message sent successfully");
 
             return response != null && response.contains("success");
         } catch (Exception e) {
-            System.err.println("❌ Error sending chat message: " + e.getMessage());
+            LOG.warn("group-chat.send.failed", "trip", tripId, "error", e.getMessage());
             return false;
         }
     }
@@ -0,0 +1,145 @@
+package com.example.voyeger;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The logged-in users of a PrivateChatServer, and the versioned user list its clients
+ * watch.
+ *
+ * Who is connected under a name is a ConcurrentHashMap: logging in, logging out and
+ * finding a message's recipient never wait on another thread. The user list clients see
+ * is kept apart from it. Every login or logout queues a step, and the steps run one at a
+ * time, in order, on whichever thread finds none running; the others just queue and go
+ * on. A step looks the user up in the map, and only if that differs from the list it
+ * adds or removes the name, increments the version, and queues the change to every
+ * watching client. Pages are cut by a step as well, from the list rather than the map,
+ * so a page and the changes around it always agree on the version. Since every step
+ * reads the map afresh, the list ends up matching it whatever order concurrent logins
+ * and logouts queue their steps in.
+ */
+final class UserRegistry<C extends UserRegistry.Client> {
+    interface Client {
+        String getUsername();
+
+        /** Queues a frame to the client; must not block. */
+        void send(ChatFrame frame);
+    }
+
+    private final Map<String, C> clients = new ConcurrentHashMap<>();
+    private final Queue<Runnable> steps = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean running = new AtomicBoolean();
+    // Only touched by steps, which never run concurrently
+    private final NavigableSet<String> listed = new TreeSet<>();
+    private final Set<C> watchers = new HashSet<>();
+    private long version = 1;
+    private volatile long publishedVersion = 1;
+
+    /** The client logged in under the name, or null. */
+    C get(String username) {
+        return clients.get(username);
+    }
+
+    /** Logs the client in; a second login under the same name takes the name over. */
+    void register(C client) {
+        clients.put(client.getUsername(), client);
+        String username = client.getUsername();
+        run(() -> relist(username));
+    }
+
+    /** Logs the client out, unless a newer login has taken its name over. */
+    void unregister(C client) {
+        String username = client.getUsername();
+        clients.remove(username, client);
+        run(() -> {
+            watchers.remove(client);
+            relist(username);
+        });
+    }
+
+    /** Everyone logged in right now, safe to iterate while logins and logouts go on. */
+    List<C> snapshot() {
+        return new ArrayList<>(clients.values());
+    }
+
+    int size() {
+        return clients.size();
+    }
+
+    /** Version of the user list, for the metrics endpoint. */
+    long version() {
+        return publishedVersion;
+    }
+
+    /**
+     * Queues to client up to limit names after cursor ("" for the first page) as a
+     * USERS_PAGE, and from then on every change to the list.
+     */
+    void sendPage(C client, String cursor, int limit) {
+        run(() -> {
+            StringJoiner names = new StringJoiner(",");
+            String next = "";
+            int count = 0;
+            for (String user : cursor.isEmpty() ? listed : listed.tailSet(cursor, false)) {
+                if (count == limit) {
+                    break;
+                }
+                if (!user.equals(client.getUsername())) {
+                    names.add(user);
+                    count++;
+                }
+                next = user;
+            }
+            // No cursor once the page reaches the end of the list
+            if (next.isEmpty() || listed.higher(next) == null) {
+                next = "";
+            }
+            // A client whose logout step already ran must not come back as a watcher
+            if (clients.get(client.getUsername()) == client) {
+                watchers.add(client);
+            }
+            client.send(ChatFrame.of(ChatFrame.Type.USERS_PAGE, null, next, names.toString()).withId(version));
+        });
+    }
+
+    // Step: brings the list in line with the map for one user and tells the watchers
+    private void relist(String username) {
+        boolean online = clients.containsKey(username);
+        if (online ? !listed.add(username) : !listed.remove(username)) {
+            return;
+        }
+        publishedVersion = ++version;
+        ChatFrame change = ChatFrame.of(online ? ChatFrame.Type.USER_ONLINE : ChatFrame.Type.USER_OFFLINE,
+                username, null, null).withId(version);
+        for (C watcher : watchers) {
+            if (!username.equals(watcher.getUsername())) {
+                watcher.send(change);
+            }
+        }
+    }
+
+    private void run(Runnable step) {
+        steps.add(step);
+        // Whoever gets the flag runs everything queued, so steps run one at a time and in order
+        while (!steps.isEmpty() && running.compareAndSet(false, true)) {
+            try {
+                Runnable next;
+                while ((next = steps.poll()) != null) {
+                    next.run();
+                }
+            } finally {
+                running.set(false);
+            }
+        }
+    }
+}
@@ -2,6 +2,7 @@ module com.example.voyeger {
     requires javafx.controls;
     requires javafx.fxml;
     requires java.net.http;
+    requires jdk.httpserver;
 
     opens com.example.voyeger to javafx.fxml;
     exports com.example.voyeger;
@@ -0,0 +1,158 @@
+package com.example.voyeger;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ChatFrameTest {
+
+    @Test
+    void binaryRoundTripKeepsEveryField() throws IOException {
+        ChatFrame frame = new ChatFrame(ChatFrame.Type.MESSAGE, "ann", "lobby", 1_700_000_000_123L,
+                -42, 7, "héllo\nwörld".getBytes(StandardCharsets.UTF_8));
+        ChatFrame read = readOne(frame.toBinary());
+        assertSameFrame(frame, read);
+        assertArrayEquals(frame.toBinary(), read.toBinary());
+    }
+
+    @Test
+    void idAndSeqAreOnlyWrittenWhenSet() throws IOException {
+        ChatFrame bare = new ChatFrame(ChatFrame.Type.PING, null, null, 1, null);
+        ChatFrame numbered = bare.withId(5).withSeq(6);
+        assertEquals(bare.toBinary().length + 16, numbered.toBinary().length);
+        ChatFrame read = readOne(bare.toBinary());
+        assertEquals(0, read.getId());
+        assertEquals(0, read.getSeq());
+        assertEquals("", read.getSender());
+        assertEquals(0, read.getBody().length);
+    }
+
+    @Test
+    void framesWrittenBackToBackReadOneByOne() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        ChatFrame[] frames = new ChatFrame[50];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = ChatFrame.of(ChatFrame.Type.MESSAGE, "u" + i, "r", "message " + i).withId(i + 1).withSeq(i + 1);
+            wire.write(frames[i].toBinary());
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(wire.toByteArray()));
+        for (ChatFrame frame : frames) {
+            assertSameFrame(frame, ChatFrame.read(in));
+        }
+        assertThrows(EOFException.class, () -> ChatFrame.read(in));
+    }
+
+    @Test
+    void decodeFromABufferAfterTheLengthPrefix() throws IOException {
+        ChatFrame frame = ChatFrame.of(ChatFrame.Type.SESSION, null, null, "token").withId(9);
+        ByteBuffer buffer = ByteBuffer.wrap(frame.toBinary());
+        assertEquals(buffer.remaining() - 4, buffer.getInt());
+        assertSameFrame(frame, ChatFrame.decode(buffer));
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    void streamEndingInsideAFrameIsAnError() {
+        byte[] bytes = ChatFrame.of(ChatFrame.Type.MESSAGE, "ann", "lobby", "hello").toBinary();
+        for (int cut = 1; cut < bytes.length; cut++) {
+            byte[] torn = Arrays.copyOf(bytes, cut);
+            assertThrows(EOFException.class, () -> readOne(torn), "cut at " + cut);
+        }
+    }
+
+    @Test
+    void lengthPrefixShorterThanTheFieldsIsMalformed() {
+        byte[] bytes = ChatFrame.of(ChatFrame.Type.MESSAGE, "ann", "lobby", "hello").toBinary();
+        for (int length = 0; length < bytes.length - 4 - "hello".length(); length++) {
+            byte[] shortened = Arrays.copyOf(bytes, 4 + length);
+            ByteBuffer.wrap(shortened).putInt(length);
+            assertThrows(IOException.class, () -> readOne(shortened), "length " + length);
+        }
+    }
+
+    @Test
+    void badLengthsAndVersionsAreRejected() {
+        byte[] bytes = ChatFrame.of(ChatFrame.Type.MESSAGE, "ann", "lobby", "hello").toBinary();
+
+        byte[] tooLong = bytes.clone();
+        ByteBuffer.wrap(tooLong).putInt(ChatFrame.MAX_FRAME_LENGTH + 1);
+        assertThrows(IOException.class, () -> readOne(tooLong));
+
+        byte[] negative = bytes.clone();
+        ByteBuffer.wrap(negative).putInt(-1);
+        assertThrows(IOException.class, () -> readOne(negative));
+
+        byte[] version = bytes.clone();
+        version[4] = 2;
+        assertThrows(IOException.class, () -> readOne(version));
+
+        byte[] type = bytes.clone();
+        type[5] = 127;
+        assertThrows(IOException.class, () -> readOne(type));
+
+        // Sender length pointing past the end of the frame
+        byte[] sender = bytes.clone();
+        ByteBuffer.wrap(sender).putShort(4 + 3 + 8, (short) 0x7FFF);
+        assertThrows(IOException.class, () -> readOne(sender));
+    }
+
+    @Test
+    void textRoundTripForTheGroupProtocol() {
+        ChatFrame join = ChatFrame.fromText("JOIN:ann:lobby:12:abc", "");
+        assertEquals(ChatFrame.Type.JOIN, join.getType());
+        assertEquals("ann", join.getSender());
+        assertEquals("lobby", join.getRoom());
+        assertEquals("12:abc", join.getBodyText());
+        assertEquals("JOIN:ann:lobby:12:abc", join.toText());
+
+        ChatFrame message = ChatFrame.fromText("MESSAGE:ann:10:15:a: colon", "lobby");
+        assertEquals("a: colon", message.getBodyText());
+        assertEquals("lobby", message.getRoom());
+
+        ChatFrame rendered = ChatFrame.of(ChatFrame.Type.MESSAGE, "bob", "lobby", "two\nlines");
+        ChatFrame parsed = ChatFrame.fromText(rendered.toText(), "lobby");
+        assertEquals("two lines", parsed.getBodyText());
+        assertEquals("bob", parsed.getSender());
+
+        assertNull(ChatFrame.fromText("NONSENSE", "lobby"));
+    }
+
+    @Test
+    void readLineStopsAtTheNewlineAndLeavesTheRest() throws IOException {
+        byte[] frame = ChatFrame.of(ChatFrame.Type.PING, null, null, null).toBinary();
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        wire.write((ChatFrame.NEGOTIATE_OK + "\r\n").getBytes(StandardCharsets.UTF_8));
+        wire.write(frame);
+        ByteArrayInputStream in = new ByteArrayInputStream(wire.toByteArray());
+        assertEquals(ChatFrame.NEGOTIATE_OK, ChatFrame.readLine(in));
+        assertEquals(ChatFrame.Type.PING, ChatFrame.read(new DataInputStream(in)).getType());
+        assertNull(ChatFrame.readLine(in));
+        assertThrows(EOFException.class, () -> ChatFrame.readLine(new ByteArrayInputStream("half".getBytes(StandardCharsets.UTF_8))));
+    }
+
+    private static ChatFrame readOne(byte[] bytes) throws IOException {
+        return ChatFrame.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    private static void assertSameFrame(ChatFrame expected, ChatFrame actual) {
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getSender(), actual.getSender());
+        assertEquals(expected.getRoom(), actual.getRoom());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getSeq(), actual.getSeq());
+        assertArrayEquals(expected.getBody(), actual.getBody());
+    }
+}
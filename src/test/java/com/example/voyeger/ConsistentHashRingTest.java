@@ -0,0 +1,105 @@
+package com.example.voyeger;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConsistentHashRingTest {
+    private static final List<String> SERVERS =
+            List.of("localhost:8081", "localhost:8082", "localhost:8083", "localhost:8084", "localhost:8085");
+    private static final int ROOMS = 50_000;
+
+    @Test
+    void roomsSpreadEvenlyOverServers() {
+        ConsistentHashRing ring = new ConsistentHashRing(SERVERS);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < ROOMS; i++) {
+            counts.merge(ring.nodeFor("room-" + i), 1, Integer::sum);
+        }
+        assertEquals(SERVERS.size(), counts.size());
+        double fair = (double) ROOMS / SERVERS.size();
+        for (Map.Entry<String, Integer> count : counts.entrySet()) {
+            assertTrue(Math.abs(count.getValue() - fair) < 0.25 * fair, count.toString());
+        }
+    }
+
+    @Test
+    void placementDoesNotDependOnMemberOrder() {
+        List<String> reversed = new ArrayList<>(SERVERS);
+        Collections.reverse(reversed);
+        ConsistentHashRing a = new ConsistentHashRing(SERVERS);
+        ConsistentHashRing b = new ConsistentHashRing(reversed);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(a.preferenceList("room-" + i), b.preferenceList("room-" + i));
+        }
+    }
+
+    @Test
+    void removingAServerOnlyMovesItsRooms() {
+        ConsistentHashRing ring = new ConsistentHashRing(SERVERS);
+        Map<String, String> before = placements(ring);
+        ring.remove("localhost:8083");
+        for (Map.Entry<String, String> room : before.entrySet()) {
+            String now = ring.nodeFor(room.getKey());
+            if (room.getValue().equals("localhost:8083")) {
+                // Goes to the next server the room's preference list named
+                assertEquals(new ConsistentHashRing(SERVERS).preferenceList(room.getKey()).get(1), now);
+            } else {
+                assertEquals(room.getValue(), now, room.getKey());
+            }
+        }
+    }
+
+    @Test
+    void addingAServerOnlyTakesRoomsFromOthers() {
+        ConsistentHashRing ring = new ConsistentHashRing(SERVERS);
+        Map<String, String> before = placements(ring);
+        ring.add("localhost:8086");
+        int moved = 0;
+        for (Map.Entry<String, String> room : before.entrySet()) {
+            String now = ring.nodeFor(room.getKey());
+            if (!now.equals(room.getValue())) {
+                assertEquals("localhost:8086", now);
+                moved++;
+            }
+        }
+        double fair = (double) ROOMS / (SERVERS.size() + 1);
+        assertTrue(Math.abs(moved - fair) < 0.25 * fair, "moved " + moved);
+    }
+
+    @Test
+    void preferenceListNamesEveryServerOnceHomeFirst() {
+        ConsistentHashRing ring = new ConsistentHashRing(SERVERS);
+        for (int i = 0; i < 1000; i++) {
+            String room = "room-" + i;
+            List<String> order = ring.preferenceList(room);
+            assertEquals(SERVERS.size(), order.size());
+            assertEquals(new HashSet<>(SERVERS), new HashSet<>(order));
+            assertEquals(ring.nodeFor(room), order.get(0));
+        }
+    }
+
+    @Test
+    void emptyRingPlacesNothing() {
+        ConsistentHashRing ring = new ConsistentHashRing(List.of());
+        assertNull(ring.nodeFor("room"));
+        assertTrue(ring.preferenceList("room").isEmpty());
+    }
+
+    private static Map<String, String> placements(ConsistentHashRing ring) {
+        Map<String, String> placements = new HashMap<>();
+        for (int i = 0; i < ROOMS; i++) {
+            placements.put("room-" + i, ring.nodeFor("room-" + i));
+        }
+        return placements;
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.voyeger;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrameWriterTest {
+
+    /** Stands in for the socket's buffered stream: counts the flushes, each one a socket write. */
+    static final class Socket extends ByteArrayOutputStream {
+        int flushes;
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+
+        String text() {
+            return toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    private final OutboundQueue.Stats stats = new OutboundQueue.Stats();
+    private final OutboundQueue queue = new OutboundQueue(1000, OutboundQueue.OverflowPolicy.DROP_OLDEST, stats);
+    private final Socket socket = new Socket();
+
+    @Test
+    void framesQueuedTogetherGoOutInOneWrite() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            queue.offer(message(i));
+        }
+        new FrameWriter(queue, socket, false, 0, 64 * 1024).writeQueued();
+
+        assertEquals(1, socket.flushes);
+        assertEquals(1, stats.writes.sum());
+        assertEquals(50, stats.enqueued.sum());
+        assertEquals(50, socket.text().lines().count());
+        assertTrue(socket.text().startsWith("MESSAGE:u0:"));
+        assertEquals(0, queue.depth());
+    }
+
+    @Test
+    void aBatchLargerThanMaxBatchIsStillOneWrite() throws Exception {
+        for (int i = 0; i < FrameWriter.MAX_BATCH * 3; i++) {
+            queue.offer(message(i));
+        }
+        new FrameWriter(queue, socket, false, 0, Integer.MAX_VALUE).writeQueued();
+
+        assertEquals(1, socket.flushes);
+        assertEquals(FrameWriter.MAX_BATCH * 3, socket.text().lines().count());
+    }
+
+    @Test
+    void frameOfferedDuringTheLingerSharesTheWrite() throws Exception {
+        FrameWriter writer = new FrameWriter(queue, socket, false, 300, 64 * 1024);
+        Thread thread = Thread.ofPlatform().start(() -> {
+            try {
+                writer.run();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        long start = System.nanoTime();
+        queue.offer(message(1));
+        Thread.sleep(30);
+        queue.offer(message(2));
+        queue.close();
+        thread.join(5000);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(1, socket.flushes, "both frames in one write");
+        assertEquals(1, stats.writes.sum());
+        assertEquals(2, socket.text().lines().count());
+        assertTrue(elapsed >= 250, "the first frame waited out the linger: " + elapsed + "ms");
+    }
+
+    @Test
+    void lingerZeroWritesEachBatchRightAway() throws Exception {
+        FrameWriter writer = new FrameWriter(queue, socket, false, 0, 64 * 1024);
+        queue.offer(message(1));
+        writer.writeQueued();
+        queue.offer(message(2));
+        writer.writeQueued();
+
+        assertEquals(2, socket.flushes);
+        assertEquals(2, stats.writes.sum());
+    }
+
+    @Test
+    void aBatchOfFlushBytesDoesNotLinger() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            queue.offer(message(i));
+        }
+        // Far more linger than the test waits: only the byte threshold can end it
+        FrameWriter writer = new FrameWriter(queue, socket, false, 60_000, 100);
+        long start = System.nanoTime();
+        writer.writeQueued();
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(socket.size() >= 100);
+        assertEquals(1, socket.flushes);
+        assertTrue(elapsed < 5000, "flushed after " + elapsed + "ms");
+    }
+
+    private static ChatFrame message(int i) {
+        return ChatFrame.of(ChatFrame.Type.MESSAGE, "u" + i, "room", "message " + i);
+    }
+}
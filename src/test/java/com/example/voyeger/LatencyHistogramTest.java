@@ -0,0 +1,80 @@
+package com.example.voyeger;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+
+    @Test
+    void smallValuesGetTheirOwnBucket() {
+        for (long value = 0; value < 128; value++) {
+            int index = LatencyHistogram.indexOf(value);
+            assertEquals(value, index);
+            assertEquals(value, LatencyHistogram.highestValueAt(index));
+        }
+    }
+
+    @Test
+    void everyValueLandsInABucketThatCoversIt() {
+        long[] values = {128, 129, 255, 256, 257, 1000, 65_535, 65_536, 1_000_000, 123_456_789L,
+                1L << 40, (1L << 40) + 12_345, Long.MAX_VALUE / 3, Long.MAX_VALUE - 1, Long.MAX_VALUE};
+        for (long value : values) {
+            int index = LatencyHistogram.indexOf(value);
+            long highest = LatencyHistogram.highestValueAt(index);
+            assertTrue(highest >= value, value + " reported as " + highest);
+            // The bucket below ends just under the value's own bucket
+            assertTrue(LatencyHistogram.highestValueAt(index - 1) < value, "bucket below covers " + value);
+            assertTrue(highest - value <= value / 64, value + " reported as " + highest);
+        }
+    }
+
+    @Test
+    void bucketsAreContiguousAndIncreasing() {
+        long previous = -1;
+        int last = LatencyHistogram.indexOf(Long.MAX_VALUE);
+        for (int index = 0; index <= last; index++) {
+            long highest = LatencyHistogram.highestValueAt(index);
+            assertTrue(highest > previous, "bucket " + index);
+            assertEquals(index, LatencyHistogram.indexOf(highest));
+            assertEquals(index, LatencyHistogram.indexOf(previous + 1));
+            previous = highest;
+        }
+        assertEquals(Long.MAX_VALUE, previous);
+    }
+
+    @Test
+    void percentilesStayWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 10_000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(10_000, histogram.getTotalCount());
+        assertEquals(10_000, histogram.getMax());
+        assertEquals(5000.5, histogram.getMean(), 1e-9);
+        assertWithin(5000, histogram.getValueAtPercentile(50));
+        assertWithin(9900, histogram.getValueAtPercentile(99));
+        assertEquals(10_000, histogram.getValueAtPercentile(100));
+        assertEquals(1, histogram.getValueAtPercentile(0));
+    }
+
+    @Test
+    void addMergesCountsAndMax() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        a.record(10);
+        a.record(-5);
+        b.record(1_000_000);
+        a.add(b);
+        assertEquals(3, a.getTotalCount());
+        assertEquals(1_000_010, a.getSum());
+        assertEquals(1_000_000, a.getMax());
+        assertEquals(0, a.getValueAtPercentile(1));
+        assertEquals(1_000_000, a.getValueAtPercentile(100));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual >= expected && actual - expected <= expected / 64, "expected about " + expected + " but got " + actual);
+    }
+}
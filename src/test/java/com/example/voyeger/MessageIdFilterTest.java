@@ -0,0 +1,58 @@
+package com.example.voyeger;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageIdFilterTest {
+
+    @Test
+    void duplicatesAreCaught() {
+        MessageIdFilter filter = new MessageIdFilter(8);
+        assertTrue(filter.firstSeen(1));
+        assertTrue(filter.firstSeen(-1));
+        assertFalse(filter.firstSeen(1));
+        assertFalse(filter.firstSeen(-1));
+    }
+
+    @Test
+    void oldestIdsAreForgottenFirst() {
+        MessageIdFilter filter = new MessageIdFilter(4);
+        for (long id = 1; id <= 6; id++) {
+            assertTrue(filter.firstSeen(id));
+        }
+        // 3..6 are held; a duplicate does not push anything out
+        assertFalse(filter.firstSeen(3));
+        assertFalse(filter.firstSeen(6));
+        assertTrue(filter.firstSeen(2));
+        // 2 took the place of 3
+        assertTrue(filter.firstSeen(3));
+        assertFalse(filter.firstSeen(5));
+    }
+
+    @Test
+    void concurrentCopiesAreDeliveredOnce() throws InterruptedException {
+        MessageIdFilter filter = new MessageIdFilter(100_000);
+        AtomicInteger delivered = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(Thread.ofPlatform().start(() -> {
+                for (long id = 0; id < 20_000; id++) {
+                    if (filter.firstSeen(id)) {
+                        delivered.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(20_000, delivered.get());
+    }
+}
@@ -0,0 +1,164 @@
+package com.example.voyeger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageLogTest {
+    private static final int SEGMENT_BYTES = 64 * 1024;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void messagesSurviveAReopen() throws IOException {
+        write(dir, 1, 100, "a");
+        write(dir, 1, 50, "b");
+        MessageLog log = open(dir);
+        assertEquals(Set.of("a", "b"), log.rooms());
+        assertEquals(range(1, 100), seqs(log.after("a", 0, 1000)));
+        assertEquals(range(41, 50), seqs(log.after("b", 40, 1000)));
+        assertEquals(range(1, 10), seqs(log.after("a", 0, 10)));
+        log.close();
+    }
+
+    @Test
+    void recoveryStopsAtATornRecordAndClearsIt() throws IOException {
+        byte[] next = frame("a", 21).toBinary();
+        // A crash can stop a record anywhere; the zeros after the cut then read as its rest
+        for (int cut : new int[] {2, 4, next.length / 2, next.length - 3, next.length, next.length + 2}) {
+            Path dir = this.dir.resolve("cut-" + cut);
+            write(dir, 1, 20, "a");
+            ByteBuffer torn = ByteBuffer.allocate(next.length + 4).put(next).putInt(0x12345678);
+            try (FileChannel channel = FileChannel.open(onlySegment(dir), StandardOpenOption.WRITE)) {
+                channel.write(torn.flip().limit(cut), end(20));
+            }
+
+            MessageLog log = open(dir);
+            assertEquals(range(1, 20), seqs(log.after("a", 0, 1000)), "cut at " + cut);
+            assertEquals(Set.of("a"), log.rooms());
+            log.close();
+
+            // Appends continue where the good records end, and nothing torn is read back
+            write(dir, 21, 30, "a");
+            log = open(dir);
+            assertEquals(range(1, 30), seqs(log.after("a", 0, 1000)), "cut at " + cut);
+            log.close();
+        }
+    }
+
+    @Test
+    void garbageLengthAfterTheEndIsIgnored() throws IOException {
+        write(dir, 1, 5, "a");
+        try (FileChannel channel = FileChannel.open(onlySegment(dir), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, Integer.MAX_VALUE), end(5));
+        }
+        MessageLog log = open(dir);
+        assertEquals(range(1, 5), seqs(log.after("a", 0, 1000)));
+        log.close();
+    }
+
+    @Test
+    void segmentsWithoutHeaderOrChecksumsAreStillRead() throws IOException {
+        // The format from before checksums: frames back to back from the first byte
+        Files.createDirectories(dir);
+        ByteBuffer old = ByteBuffer.allocate(SEGMENT_BYTES);
+        for (long seq = 1; seq <= 10; seq++) {
+            old.put(frame("a", seq).toBinary());
+        }
+        Files.write(dir.resolve(String.format("%020d.log", 1)), old.array());
+
+        MessageLog log = open(dir);
+        assertEquals(range(1, 10), seqs(log.after("a", 0, 1000)));
+        log.close();
+        write(dir, 11, 15, "a");
+        log = open(dir);
+        assertEquals(range(1, 15), seqs(log.after("a", 0, 1000)));
+        log.close();
+    }
+
+    @Test
+    void segmentsRollAndAreReadAcross() throws IOException {
+        // Bodies of about 1 KB fill a 64 KB segment every 60 or so messages
+        String body = "x".repeat(1000);
+        MessageLog log = open(dir);
+        for (long seq = 1; seq <= 300; seq++) {
+            log.append(ChatFrame.of(ChatFrame.Type.MESSAGE, "ann", "a", body).withId(seq).withSeq(seq));
+        }
+        log.start();
+        log.close();
+        try (Stream<Path> files = Files.list(dir)) {
+            assertTrue(files.filter(f -> f.toString().endsWith(".log")).count() > 1);
+        }
+        log = open(dir);
+        assertEquals(range(1, 300), seqs(log.after("a", 0, 1000)));
+        assertEquals(range(251, 300), seqs(log.before("a", Long.MAX_VALUE, 50)));
+        log.close();
+    }
+
+    private static MessageLog open(Path dir) throws IOException {
+        return new MessageLog(dir, SEGMENT_BYTES, TimeUnit.DAYS.toMillis(1), 1);
+    }
+
+    private static void write(Path dir, long from, long to, String room) throws IOException {
+        MessageLog log = open(dir);
+        for (long seq = from; seq <= to; seq++) {
+            log.append(frame(room, seq));
+        }
+        log.start();
+        log.close();
+    }
+
+    // Where the records of messages 1..count of one room end: after the 8 byte header,
+    // each frame and its 4 byte checksum
+    private static int end(long count) {
+        int end = 8;
+        for (long seq = 1; seq <= count; seq++) {
+            end += frame("a", seq).toBinary().length + 4;
+        }
+        return end;
+    }
+
+    private static Path onlySegment(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            List<Path> segments = files.filter(f -> f.toString().endsWith(".log")).toList();
+            assertEquals(1, segments.size());
+            return segments.get(0);
+        }
+    }
+
+    private static ChatFrame frame(String room, long seq) {
+        return new ChatFrame(ChatFrame.Type.MESSAGE, "ann", room, 1_700_000_000_000L + seq, seq, seq,
+                ("message " + seq).getBytes());
+    }
+
+    private static List<Long> range(long from, long to) {
+        List<Long> seqs = new ArrayList<>();
+        for (long seq = from; seq <= to; seq++) {
+            seqs.add(seq);
+        }
+        return seqs;
+    }
+
+    private static List<Long> seqs(List<ChatFrame> frames) {
+        List<Long> seqs = new ArrayList<>();
+        for (ChatFrame frame : frames) {
+            seqs.add(frame.getSeq());
+        }
+        return seqs;
+    }
+}
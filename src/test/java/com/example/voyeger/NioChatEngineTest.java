@@ -0,0 +1,57 @@
+package com.example.voyeger;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NioChatEngineTest {
+
+    /** Fails on a message saying "boom", the way a bug in frame handling would. */
+    static final class FaultyServer extends ChatServer {
+        FaultyServer(int port, ChatServerConfig config) {
+            super(port, config);
+        }
+
+        @Override
+        boolean handleClientFrame(ChatConnection client, ChatFrame frame) {
+            if (frame.getType() == ChatFrame.Type.MESSAGE && frame.getBodyText().equals("boom")) {
+                throw new IllegalStateException("expected by the test");
+            }
+            return super.handleClientFrame(client, frame);
+        }
+    }
+
+    @Test
+    void aFailingFrameClosesOnlyItsConnection() throws Exception {
+        int port = TextChatClient.freePort();
+        ChatServerConfig config = new ChatServerConfig();
+        config.setMode(ChatServerConfig.Mode.NIO);
+        // One reactor: the one that also accepts, and that every connection shares
+        config.setReactorThreads(1);
+        config.setMetricsPort(0);
+        config.setFilePort(0);
+        TextChatClient.startServer(new FaultyServer(port, config));
+
+        try (TextChatClient bad = TextChatClient.connect(port);
+             TextChatClient good = TextChatClient.connect(port)) {
+            bad.send("JOIN:bad:room");
+            // Its session comes once the join is queued, so it is in the room before the next one
+            bad.readLineStartingWith("SESSION:");
+            good.send("JOIN:good:room");
+            assertEquals("USER_JOIN:good:room", bad.readLineStartingWith("USER_JOIN:"));
+
+            bad.send("MESSAGE:bad:10:00:boom");
+            assertNull(bad.readLineStartingWith("\u0000"), "the failing connection is closed");
+
+            // The reactor still serves the other connection and still accepts new ones
+            try (TextChatClient late = TextChatClient.connect(port)) {
+                late.send("JOIN:late:room");
+                assertEquals("USER_JOIN:late:room", good.readLineStartingWith("USER_JOIN:late"));
+                late.send("MESSAGE:late:10:01:hello");
+                assertTrue(good.readLineStartingWith("MESSAGE:late").endsWith(":hello"));
+            }
+        }
+    }
+}
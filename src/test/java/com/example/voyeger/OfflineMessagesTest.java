@@ -0,0 +1,101 @@
+package com.example.voyeger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OfflineMessagesTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void deliveredMessagesAreGoneAfterARestart() throws IOException {
+        OfflineMessages store = open();
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(store.store(message("ann", "bob", "m" + i)));
+        }
+        OfflineMessages.Delivery first = store.handOut("bob", 3);
+        assertEquals(List.of("m1", "m2", "m3"), bodies(first));
+        store.delivered(first);
+        store.close();
+
+        OfflineMessages reopened = open();
+        assertEquals(2, reopened.waitingCount());
+        OfflineMessages.Delivery rest = reopened.handOut("bob", 10);
+        assertEquals(List.of("m4", "m5"), bodies(rest));
+        reopened.delivered(rest);
+        assertNull(reopened.handOut("bob", 10));
+        assertEquals(0, reopened.waitingCount());
+        reopened.close();
+    }
+
+    @Test
+    void givenBackMessagesComeAgainAndSurviveARestart() throws IOException {
+        OfflineMessages store = open();
+        store.store(message("ann", "bob", "m1"));
+        store.store(message("ann", "bob", "m2"));
+        OfflineMessages.Delivery delivery = store.handOut("bob", 10);
+        // One hand-out at a time, so two threads delivering to bob cannot both send them
+        assertNull(store.handOut("bob", 10));
+        store.giveBack(delivery);
+        assertEquals(List.of("m1", "m2"), bodies(store.handOut("bob", 10)));
+        store.close();
+
+        OfflineMessages reopened = open();
+        assertEquals(List.of("m1", "m2"), bodies(reopened.handOut("bob", 10)));
+        reopened.close();
+    }
+
+    @Test
+    void messagesStoredDuringAHandOutStayWaiting() throws IOException {
+        OfflineMessages store = open();
+        store.store(message("ann", "bob", "m1"));
+        OfflineMessages.Delivery delivery = store.handOut("bob", 10);
+        store.store(message("cat", "bob", "m2"));
+        store.delivered(delivery);
+        assertEquals(1, store.waitingCount());
+        assertEquals(List.of("m2"), bodies(store.handOut("bob", 10)));
+        store.close();
+    }
+
+    @Test
+    void quotasAreHandedBackOnDelivery() throws IOException {
+        OfflineMessages store = new OfflineMessages(dir, TimeUnit.DAYS.toMillis(1), 2, 100, 100, 1 << 20);
+        assertTrue(store.store(message("ann", "bob", "m1")));
+        assertTrue(store.store(message("ann", "bob", "m2")));
+        assertFalse(store.store(message("ann", "bob", "m3")));
+        OfflineMessages.Delivery delivery = store.handOut("bob", 10);
+        assertNotNull(delivery);
+        store.delivered(delivery);
+        assertTrue(store.store(message("ann", "bob", "m3")));
+        store.close();
+    }
+
+    private OfflineMessages open() throws IOException {
+        return new OfflineMessages(dir, TimeUnit.DAYS.toMillis(1), 100, 100, 100, 1 << 20);
+    }
+
+    private static ChatFrame message(String sender, String recipient, String text) {
+        return ChatFrame.of(ChatFrame.Type.PRIVATE_MESSAGE, sender, recipient, text);
+    }
+
+    private static List<String> bodies(OfflineMessages.Delivery delivery) {
+        List<String> bodies = new ArrayList<>();
+        for (ChatFrame message : delivery.messages()) {
+            bodies.add(message.getBodyText());
+        }
+        return bodies;
+    }
+}
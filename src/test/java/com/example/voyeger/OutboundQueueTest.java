@@ -0,0 +1,43 @@
+package com.example.voyeger;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboundQueueTest {
+
+    @Test
+    void offerAllOrNoneQueuesNothingWithoutRoomForAll() {
+        OutboundQueue.Stats stats = new OutboundQueue.Stats();
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.OverflowPolicy.DISCONNECT, stats);
+        queue.offer(frame("a"));
+        queue.offer(frame("b"));
+        assertFalse(queue.offerAllOrNone(List.of(frame("c"), frame("d"), frame("e"))));
+        assertEquals(2, queue.depth());
+        assertEquals(0, stats.disconnected.sum());
+
+        assertTrue(queue.offerAllOrNone(List.of(frame("c"), frame("d"))));
+        List<ChatFrame> drained = new ArrayList<>();
+        queue.drainTo(drained, 10);
+        assertEquals(4, drained.size());
+        assertEquals("d", drained.get(3).getBodyText());
+    }
+
+    @Test
+    void offerAllOrNoneRefusesAClosedQueue() {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.OverflowPolicy.DROP_OLDEST, new OutboundQueue.Stats());
+        queue.close();
+        // Plain offers pretend to succeed on a closed queue; these must not
+        assertTrue(queue.offer(frame("a")));
+        assertFalse(queue.offerAllOrNone(List.of(frame("b"))));
+    }
+
+    private static ChatFrame frame(String text) {
+        return ChatFrame.of(ChatFrame.Type.PRIVATE_MESSAGE, "ann", "bob", text);
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.voyeger;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PeerAuthTest {
+    private final PeerAuth dialer = new PeerAuth("cluster".getBytes(StandardCharsets.UTF_8));
+    private final PeerAuth acceptor = new PeerAuth("cluster".getBytes(StandardCharsets.UTF_8));
+
+    @Test
+    void serversWithTheSameSecretAcceptEachOther() {
+        long theirs = acceptor.challenge();
+        long ours = dialer.challenge();
+        byte[] hello = dialer.dialerProof("Server-8081", "localhost:9081", theirs, ours);
+        assertTrue(PeerAuth.matches(acceptor.dialerProof("Server-8081", "localhost:9081", theirs, ours), hello));
+        byte[] answer = acceptor.acceptorProof("Server-8082", theirs, ours);
+        assertTrue(PeerAuth.matches(dialer.acceptorProof("Server-8082", theirs, ours), answer));
+    }
+
+    @Test
+    void anotherSecretNameAddressOrChallengeIsRefused() {
+        byte[] hello = dialer.dialerProof("Server-8081", "localhost:9081", 1, 2);
+        PeerAuth stranger = new PeerAuth("other".getBytes(StandardCharsets.UTF_8));
+        assertFalse(PeerAuth.matches(stranger.dialerProof("Server-8081", "localhost:9081", 1, 2), hello));
+        assertFalse(PeerAuth.matches(acceptor.dialerProof("Server-8083", "localhost:9081", 1, 2), hello));
+        assertFalse(PeerAuth.matches(acceptor.dialerProof("Server-8081", "localhost:9083", 1, 2), hello));
+        // A recorded HELLO answers only the challenge it was made for
+        assertFalse(PeerAuth.matches(acceptor.dialerProof("Server-8081", "localhost:9081", 3, 2), hello));
+        // Lengths go into the mac, so moving characters between the name and the address does not help
+        assertFalse(PeerAuth.matches(acceptor.dialerProof("Server-808", "1localhost:9081", 1, 2), hello));
+        assertFalse(PeerAuth.matches(acceptor.dialerProof("Server-8081", "localhost:9081", 1, 2), new byte[0]));
+    }
+
+    @Test
+    void oneSidesProofIsNotTheOthers() {
+        // A fake acceptor cannot answer by echoing a proof it was sent
+        assertFalse(PeerAuth.matches(dialer.acceptorProof("Server-8081", 1, 2), dialer.dialerProof("Server-8081", "", 1, 2)));
+    }
+}
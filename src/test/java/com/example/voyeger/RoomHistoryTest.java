@@ -0,0 +1,110 @@
+package com.example.voyeger;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RoomHistoryTest {
+
+    @Test
+    void recordingStampsConsecutiveSequences() {
+        RoomHistory history = new RoomHistory(4);
+        List<ChatFrame> delivered = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            ChatFrame stamped = history.record(message(i), delivered::add);
+            assertEquals(i, stamped.getSeq());
+        }
+        assertEquals(List.of(1L, 2L, 3L), seqs(delivered));
+        assertEquals(1, history.oldestSeq("r"));
+        assertEquals(3, history.newestId("r"));
+    }
+
+    @Test
+    void ringKeepsTheNewestAfterWrappingAround() {
+        RoomHistory history = new RoomHistory(4);
+        for (int i = 1; i <= 10; i++) {
+            history.record(message(i), frame -> { });
+        }
+        assertEquals(7, history.oldestSeq("r"));
+        assertEquals(10, history.newestId("r"));
+        assertFalse(history.holds("r", 6));
+        assertTrue(history.holds("r", 7));
+
+        assertEquals(List.of(9L, 10L), seqs(join(history, 0, 8)));
+        // Further back than the ring reaches: everything it still has
+        assertEquals(List.of(7L, 8L, 9L, 10L), seqs(join(history, 0, 2)));
+        assertEquals(List.of(), join(history, 0, 10));
+        // A sequence from before a restart of this server
+        assertEquals(List.of(7L, 8L, 9L, 10L), seqs(join(history, 0, 50)));
+    }
+
+    @Test
+    void idsArePreferredOverSequences() {
+        RoomHistory history = new RoomHistory(4);
+        for (int i = 1; i <= 10; i++) {
+            history.record(message(i), frame -> { });
+        }
+        assertEquals(List.of(10L), seqs(join(history, 9, 1)));
+        // An id the ring no longer has: send everything rather than guess
+        assertEquals(List.of(7L, 8L, 9L, 10L), seqs(join(history, 3, 9)));
+        assertEquals(List.of(8L, 9L, 10L), seqs(history.after("r", 7)));
+    }
+
+    @Test
+    void sequencesBeyondIntRangeStillIndexTheRing() {
+        RoomHistory history = new RoomHistory(3);
+        long base = 3L * Integer.MAX_VALUE;
+        List<ChatFrame> restored = new ArrayList<>();
+        for (long seq = base; seq < base + 5; seq++) {
+            restored.add(message(seq).withSeq(seq));
+        }
+        history.restore("r", restored);
+        assertEquals(base + 2, history.oldestSeq("r"));
+
+        ChatFrame next = history.record(message(99), frame -> { });
+        assertEquals(base + 5, next.getSeq());
+        assertEquals(List.of(base + 4, base + 5), seqs(join(history, 0, base + 3)));
+    }
+
+    @Test
+    void restoreStartsOverAfterAGapInTheLog() {
+        RoomHistory history = new RoomHistory(10);
+        history.restore("r", List.of(message(1).withSeq(1), message(2).withSeq(2),
+                message(5).withSeq(5), message(6).withSeq(6)));
+        assertEquals(5, history.oldestSeq("r"));
+        assertEquals(List.of(5L, 6L), seqs(join(history, 0, 0)));
+    }
+
+    @Test
+    void disabledHistoryDeliversAndKeepsNothing() {
+        RoomHistory history = new RoomHistory(0);
+        List<ChatFrame> delivered = new ArrayList<>();
+        history.record(message(1), delivered::add);
+        assertEquals(1, delivered.size());
+        assertEquals(0, history.oldestSeq("r"));
+        assertEquals(List.of(), join(history, 0, 0));
+    }
+
+    private static ChatFrame message(long id) {
+        return ChatFrame.of(ChatFrame.Type.MESSAGE, "ann", "r", "m" + id).withId(id);
+    }
+
+    private static List<ChatFrame> join(RoomHistory history, long afterId, long afterSeq) {
+        List<ChatFrame> backlog = new ArrayList<>();
+        history.join("r", afterId, afterSeq, () -> { }, backlog::addAll);
+        return backlog;
+    }
+
+    private static List<Long> seqs(List<ChatFrame> frames) {
+        List<Long> seqs = new ArrayList<>();
+        for (ChatFrame frame : frames) {
+            seqs.add(frame.getSeq());
+        }
+        return seqs;
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.voyeger;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+class ServerMeshTest {
+
+    @Test
+    void joiningAnEmptyRoomDoesNotReplayThePeersHistoryAsNew() throws Exception {
+        int portA = TextChatClient.freePort();
+        int portB = TextChatClient.freePort();
+        int peerPortA = TextChatClient.freePort();
+        int peerPortB = TextChatClient.freePort();
+        TextChatClient.startServer(new ChatServer(portA, meshConfig(portA, peerPortA, peerPortB)));
+        TextChatClient.startServer(new ChatServer(portB, meshConfig(portB, peerPortB, peerPortA)));
+
+        try (TextChatClient warmA = TextChatClient.connect(portA);
+             TextChatClient warmB = TextChatClient.connect(portB);
+             TextChatClient sender = TextChatClient.connect(portA);
+             TextChatClient listener = TextChatClient.connect(portA);
+             TextChatClient joiner = TextChatClient.connect(portB)) {
+            // Both links up and both room lists known: a message gets through each way
+            warmA.send("JOIN:warmA:warm");
+            warmB.send("JOIN:warmB:warm");
+            assertNotNull(sendUntilReceived(warmA, "warmA", warmB));
+            assertNotNull(sendUntilReceived(warmB, "warmB", warmA));
+
+            // History on A in a room B has no members in, so B is not sent any of it
+            sender.send("JOIN:sender:room");
+            listener.send("JOIN:listener:room");
+            listener.readLineStartingWith("SESSION:");
+            for (int i = 1; i <= 3; i++) {
+                sender.send("MESSAGE:sender:10:00:old" + i);
+            }
+            assertEquals("MESSAGE:sender:10:00:old3", listener.readLineStartingWith("MESSAGE:sender:10:00:old3"));
+
+            joiner.send("JOIN:joiner:room");
+            joiner.readLineStartingWith("SESSION:");
+            String first = sendUntilReceived(sender, "sender", joiner);
+            sender.send("MESSAGE:sender:10:02:last");
+
+            List<String> received = new ArrayList<>();
+            received.add(first);
+            String line;
+            do {
+                line = joiner.readLineStartingWith("MESSAGE:");
+                received.add(line);
+            } while (!line.endsWith(":last"));
+            for (String message : received) {
+                assertFalse(message.contains(":old"), "history delivered as new: " + received);
+            }
+        }
+    }
+
+    private static ChatServerConfig meshConfig(int port, int peerPort, int otherPeerPort) {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setPeerPort(peerPort);
+        config.setAdvertisedAddress("localhost:" + port);
+        config.getPeers().add("localhost:" + otherPeerPort);
+        config.setClusterSecret("test");
+        config.setMetricsPort(0);
+        config.setFilePort(0);
+        return config;
+    }
+
+    /** Sends numbered messages until one reaches the receiver, and returns the line it got. */
+    private static String sendUntilReceived(TextChatClient from, String user, TextChatClient to) throws Exception {
+        to.setReadTimeout(200);
+        try {
+            for (int i = 0; i < 50; i++) {
+                from.send("MESSAGE:" + user + ":10:01:new" + i);
+                try {
+                    return to.readLineStartingWith("MESSAGE:");
+                } catch (SocketTimeoutException e) {
+                    // The link or the room list is not there yet
+                }
+            }
+            return null;
+        } finally {
+            to.setReadTimeout(5000);
+        }
+    }
+}
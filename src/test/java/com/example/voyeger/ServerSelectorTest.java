@@ -0,0 +1,100 @@
+package com.example.voyeger;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ServerSelectorTest {
+
+    @Test
+    void leastLoadedServerLeadsEvenBelowTheThreshold() {
+        List<ServerSelector.Probe> probes = List.of(
+                up("home", 79, 100), up("b", 0, 100), up("c", 5, 100));
+        assertEquals(List.of("b", "c", "home"), ServerSelector.order("room", probes));
+    }
+
+    @Test
+    void homeServerWinsATie() {
+        List<ServerSelector.Probe> probes = List.of(
+                up("home", 11, 1000), up("b", 10, 1000), up("c", 50, 1000));
+        for (int i = 0; i < 50; i++) {
+            assertEquals(List.of("home", "b", "c"), ServerSelector.order("room", probes));
+        }
+        List<ServerSelector.Probe> idle = List.of(up("home", 0, 100), up("b", 0, 100), up("c", 0, 100));
+        assertEquals(List.of("home", "b", "c"), ServerSelector.order("room", idle));
+    }
+
+    @Test
+    void loadCountsOnServersWithoutACap() {
+        List<ServerSelector.Probe> probes = List.of(up("home", 50_000, 0), up("b", 0, 100));
+        assertEquals(List.of("b", "home"), ServerSelector.order("room", probes));
+    }
+
+    @Test
+    void roundTripAddsToTheScore() {
+        List<ServerSelector.Probe> probes = List.of(
+                new ServerSelector.Probe("home", false, 5, 100, 50_000_000), up("b", 10, 100));
+        assertEquals(List.of("b", "home"), ServerSelector.order("room", probes));
+    }
+
+    @Test
+    void unprobedServersFollowTheAnsweredOnesInPreferenceOrder() {
+        List<ServerSelector.Probe> probes = List.of(
+                ServerSelector.Probe.unknown("home"), up("b", 30, 100), ServerSelector.Probe.unknown("c"), up("d", 0, 100));
+        assertEquals(List.of("d", "b", "home", "c"), ServerSelector.order("room", probes));
+        List<ServerSelector.Probe> silent = List.of(
+                ServerSelector.Probe.unknown("home"), ServerSelector.Probe.unknown("b"), ServerSelector.Probe.unknown("c"));
+        assertEquals(List.of("home", "b", "c"), ServerSelector.order("room", silent));
+    }
+
+    @Test
+    void overloadedHomeServerGoesLastAndTheLeastLoadedLeads() {
+        List<ServerSelector.Probe> probes = List.of(
+                up("home", 80, 100), up("b", 60, 100), up("c", 3, 100), up("d", 90, 100), ServerSelector.Probe.unknown("e"));
+        List<String> order = ServerSelector.order("room", probes);
+        assertEquals("c", order.get(0));
+        assertEquals(List.of("c", "b", "e", "home", "d"), order);
+    }
+
+    @Test
+    void closeScoresShareTheFirstPlace() {
+        List<ServerSelector.Probe> probes = List.of(
+                up("home", 100, 100), up("b", 10, 1000), up("c", 11, 1000), up("d", 500, 1000));
+        List<String> firsts = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            firsts.add(ServerSelector.order("room", probes).get(0));
+        }
+        assertTrue(firsts.contains("b") && firsts.contains("c"), firsts.toString());
+        assertFalse(firsts.contains("d") || firsts.contains("home"));
+    }
+
+    @Test
+    void downHomeServerIsSkippedEvenWithoutLoadFromOthers() {
+        List<ServerSelector.Probe> probes = List.of(
+                ServerSelector.parse("home", 503, "{\"status\":\"DOWN\"}", 0),
+                ServerSelector.Probe.unknown("b"), ServerSelector.Probe.unknown("c"));
+        assertEquals(List.of("b", "c", "home"), ServerSelector.order("room", probes));
+    }
+
+    @Test
+    void parsesHealthAnswers() {
+        ServerSelector.Probe probe = ServerSelector.parse("s",
+                200, "{\"server\":\"Server-8081\",\"status\":\"UP\",\"connections\":12,\"maxConnections\":100}", 1000);
+        assertEquals(12, probe.connections);
+        assertEquals(100, probe.maxConnections);
+        assertTrue(probe.answered());
+        // A server from before /health reported load
+        ServerSelector.Probe old = ServerSelector.parse("s", 200, "{\"server\":\"Server-8081\",\"status\":\"UP\"}", 1000);
+        assertEquals(-1, old.connections);
+        assertFalse(old.overloaded());
+    }
+
+    private static ServerSelector.Probe up(String server, int connections, int maxConnections) {
+        return new ServerSelector.Probe(server, false, connections, maxConnections, 0);
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.voyeger;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SessionTokensTest {
+    private static final long HOUR = 3_600_000;
+    private final SessionTokens tokens = new SessionTokens("cluster".getBytes(StandardCharsets.UTF_8), HOUR);
+
+    @Test
+    void aTokenResumesItsUserAndRoomOnAnyServerWithTheSecret() {
+        String token = tokens.issue("ann", "lobby", 1000);
+        SessionTokens otherServer = new SessionTokens("cluster".getBytes(StandardCharsets.UTF_8), HOUR);
+        assertTrue(tokens.verify(token, "ann", "lobby", 2000));
+        assertTrue(otherServer.verify(token, "ann", "lobby", 2000));
+    }
+
+    @Test
+    void anotherUserRoomOrSecretIsRefused() {
+        String token = tokens.issue("ann", "lobby", 1000);
+        assertFalse(tokens.verify(token, "bob", "lobby", 2000));
+        assertFalse(tokens.verify(token, "ann", "kitchen", 2000));
+        // Lengths go into the mac, so moving a character between the fields does not help
+        assertFalse(tokens.verify(tokens.issue("an", "nlobby", 1000), "ann", "lobby", 2000));
+        assertFalse(new SessionTokens("other".getBytes(StandardCharsets.UTF_8), HOUR).verify(token, "ann", "lobby", 2000));
+    }
+
+    @Test
+    void expiredAndFutureTokensAreRefused() {
+        String token = tokens.issue("ann", "lobby", 10 * HOUR);
+        assertTrue(tokens.verify(token, "ann", "lobby", 11 * HOUR));
+        assertFalse(tokens.verify(token, "ann", "lobby", 11 * HOUR + 1));
+        assertFalse(tokens.verify(token, "ann", "lobby", 9 * HOUR));
+    }
+
+    @Test
+    void forgedAndMangledTokensAreRefused() {
+        String token = tokens.issue("ann", "lobby", 1000);
+        assertFalse(tokens.verify("0123456789abcdef0123456789abcdef", "ann", "lobby", 2000));
+        assertFalse(tokens.verify("", "ann", "lobby", 2000));
+        assertFalse(tokens.verify("3e8.1.zz", "ann", "lobby", 2000));
+        assertFalse(tokens.verify(token + "0", "ann", "lobby", 2000));
+        String[] parts = token.split("\\.");
+        String otherTime = Long.toHexString(1001) + "." + parts[1] + "." + parts[2];
+        assertFalse(tokens.verify(otherTime, "ann", "lobby", 2000));
+        char last = token.charAt(token.length() - 1);
+        String flipped = token.substring(0, token.length() - 1) + (last == '0' ? '1' : '0');
+        assertFalse(tokens.verify(flipped, "ann", "lobby", 2000));
+    }
+
+    @Test
+    void twoJoinsAtTheSameMomentGetDifferentTokens() {
+        assertNotEquals(tokens.issue("ann", "lobby", 1000), tokens.issue("ann", "lobby", 1000));
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.voyeger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/** A text protocol chat client for tests that run servers in-process. */
+final class TextChatClient implements AutoCloseable {
+    private final Socket socket;
+    private final BufferedReader in;
+    private final PrintWriter out;
+
+    private TextChatClient(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        this.out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+    }
+
+    static TextChatClient connect(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            try {
+                Socket socket = new Socket("localhost", port);
+                socket.setSoTimeout(5000);
+                return new TextChatClient(socket);
+            } catch (IOException e) {
+                // The server thread may not be listening yet
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /** A port nothing listens on right now. */
+    static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    /** Starts the server on a daemon thread, as its launcher would on the main one. */
+    static void startServer(ChatServer server) {
+        Thread thread = new Thread(server::start, "test-" + server.getServerName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void send(String line) {
+        out.println(line);
+    }
+
+    /** The next line with the prefix, or null once the server closes the connection. */
+    String readLineStartingWith(String prefix) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null && !line.startsWith(prefix)) {
+            // Session tokens, history and pings are not what the tests are about
+        }
+        return line;
+    }
+
+    void setReadTimeout(int millis) throws IOException {
+        socket.setSoTimeout(millis);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.voyeger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimingWheelTest {
+    // 5 ms ticks on 8 buckets: anything past 40 ms waits in its bucket for more rounds
+    private final TimingWheel wheel = new TimingWheel("test-wheel", 5, TimeUnit.MILLISECONDS, 8);
+
+    @AfterEach
+    void stop() {
+        wheel.stop();
+    }
+
+    @Test
+    void runsTasksNoEarlierThanTheirDelayAndInOrder() throws InterruptedException {
+        // At least two ticks apart: within one tick the order is not kept
+        long[] delays = {150, 10, 90, 0, 60, 40, 20};
+        List<Long> order = Collections.synchronizedList(new ArrayList<>());
+        List<String> early = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(delays.length);
+        long start = System.nanoTime();
+        for (long delay : delays) {
+            wheel.schedule(() -> {
+                long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                if (elapsed < delay) {
+                    early.add(delay + " ms task ran after " + elapsed + " ms");
+                }
+                order.add(delay);
+                done.countDown();
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(List.of(), early);
+        List<Long> sorted = new ArrayList<>(order);
+        Collections.sort(sorted);
+        assertEquals(sorted, order);
+    }
+
+    @Test
+    void timeoutsSeveralRoundsAwayWaitForTheirRound() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+        // Same bucket as a 5 ms timeout, six rounds later
+        wheel.schedule(done::countDown, 245, TimeUnit.MILLISECONDS);
+        assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 245);
+    }
+
+    @Test
+    void cancelledTimeoutsNeverRun() throws InterruptedException {
+        AtomicBoolean ran = new AtomicBoolean();
+        CountDownLatch later = new CountDownLatch(1);
+        TimingWheel.Timeout timeout = wheel.schedule(() -> ran.set(true), 20, TimeUnit.MILLISECONDS);
+        wheel.schedule(later::countDown, 60, TimeUnit.MILLISECONDS);
+        timeout.cancel();
+        assertTrue(later.await(1, TimeUnit.SECONDS));
+        assertFalse(ran.get());
+    }
+
+    @Test
+    void aFailingTaskDoesNotStopTheWheel() throws InterruptedException {
+        CountDownLatch after = new CountDownLatch(1);
+        wheel.schedule(() -> {
+            throw new IllegalStateException("expected by the test");
+        }, 5, TimeUnit.MILLISECONDS);
+        wheel.schedule(after::countDown, 30, TimeUnit.MILLISECONDS);
+        assertTrue(after.await(1, TimeUnit.SECONDS));
+    }
+}
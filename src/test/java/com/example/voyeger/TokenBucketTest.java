@@ -0,0 +1,81 @@
+package com.example.voyeger;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketTest {
+
+    @Test
+    void givesTheBurstThenRefuses() {
+        // One token a thousand seconds: nothing refills while the test runs
+        TokenBucket bucket = new TokenBucket(0.001, 5);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryTake(1), "token " + i);
+        }
+        assertFalse(bucket.tryTake(1));
+        assertFalse(bucket.isFull());
+    }
+
+    @Test
+    void takesSeveralTokensAtOnce() {
+        TokenBucket bucket = new TokenBucket(0.001, 10);
+        assertTrue(bucket.tryTake(4));
+        assertTrue(bucket.tryTake(6));
+        assertFalse(bucket.tryTake(1));
+    }
+
+    @Test
+    void fullBucketLetsAnOversizedRequestThroughAndGoesIntoDebt() {
+        TokenBucket bucket = new TokenBucket(0.001, 2);
+        assertTrue(bucket.tryTake(100));
+        assertFalse(bucket.tryTake(1));
+    }
+
+    @Test
+    void refillsAtItsRate() throws InterruptedException {
+        // A token every 50 ms
+        TokenBucket bucket = new TokenBucket(20, 1);
+        assertTrue(bucket.tryTake(1));
+        assertFalse(bucket.tryTake(1));
+        Thread.sleep(120);
+        assertTrue(bucket.isFull());
+        assertTrue(bucket.tryTake(1));
+        // Idle time beyond a full bucket is not saved up
+        assertFalse(bucket.tryTake(1));
+    }
+
+    @Test
+    void concurrentTakersNeverGetMoreThanTheBurst() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(0.001, 1000);
+        AtomicInteger taken = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(Thread.ofPlatform().start(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 500; i++) {
+                    if (bucket.tryTake(1)) {
+                        taken.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1000, taken.get());
+    }
+}
@@ -0,0 +1,168 @@
+package com.example.voyeger;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserRegistryTest {
+
+    static final class Client implements UserRegistry.Client {
+        final String username;
+        final List<ChatFrame> received = Collections.synchronizedList(new ArrayList<>());
+
+        Client(String username) {
+            this.username = username;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public void send(ChatFrame frame) {
+            received.add(frame);
+        }
+    }
+
+    @Test
+    void pagesWalkTheListWithoutTheWatcher() {
+        UserRegistry<Client> registry = new UserRegistry<>();
+        for (String name : List.of("ann", "bob", "cat", "dan", "eve")) {
+            registry.register(new Client(name));
+        }
+        Client bob = registry.get("bob");
+
+        registry.sendPage(bob, "", 2);
+        registry.sendPage(bob, "cat", 2);
+        ChatFrame first = bob.received.get(0);
+        ChatFrame second = bob.received.get(1);
+
+        assertEquals(ChatFrame.Type.USERS_PAGE, first.getType());
+        assertEquals("ann,cat", first.getBodyText());
+        assertEquals("cat", first.getRoom());
+        assertEquals("dan,eve", second.getBodyText());
+        assertEquals("", second.getRoom());
+        assertEquals(registry.version(), first.getId());
+        assertEquals(first.getId(), second.getId());
+    }
+
+    @Test
+    void changesFollowThePageVersionOneByOne() {
+        UserRegistry<Client> registry = new UserRegistry<>();
+        Client watcher = new Client("w");
+        registry.register(watcher);
+        registry.register(new Client("a"));
+        registry.sendPage(watcher, "", 100);
+
+        Client b = new Client("b");
+        registry.register(b);
+        registry.unregister(registry.get("a"));
+        registry.unregister(b);
+
+        List<ChatFrame> frames = watcher.received;
+        assertEquals(4, frames.size());
+        long version = frames.get(0).getId();
+        assertEquals(ChatFrame.Type.USER_ONLINE, frames.get(1).getType());
+        assertEquals("b", frames.get(1).getSender());
+        assertEquals(ChatFrame.Type.USER_OFFLINE, frames.get(2).getType());
+        assertEquals("a", frames.get(2).getSender());
+        for (int i = 1; i < frames.size(); i++) {
+            assertEquals(version + i, frames.get(i).getId());
+        }
+        assertEquals(version + 3, registry.version());
+    }
+
+    @Test
+    void aSecondLoginTakesTheNameOver() {
+        UserRegistry<Client> registry = new UserRegistry<>();
+        Client first = new Client("sam");
+        Client second = new Client("sam");
+        registry.register(first);
+        long version = registry.version();
+        registry.register(second);
+        // Same name still listed: no change for the watchers
+        assertEquals(version, registry.version());
+        registry.unregister(first);
+        assertSame(second, registry.get("sam"));
+        registry.unregister(second);
+        assertNull(registry.get("sam"));
+        assertEquals(version + 1, registry.version());
+    }
+
+    @Test
+    void pageAndChangesAgreeUnderConcurrentLogins() throws InterruptedException {
+        UserRegistry<Client> registry = new UserRegistry<>();
+        Client watcher = new Client("watcher");
+        registry.register(watcher);
+        int threads = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            workers.add(Thread.ofPlatform().start(() -> {
+                Client[] mine = new Client[20];
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 5000; i++) {
+                    int slot = ThreadLocalRandom.current().nextInt(mine.length);
+                    if (mine[slot] == null) {
+                        mine[slot] = new Client("u" + id + "-" + slot);
+                        registry.register(mine[slot]);
+                    } else {
+                        registry.unregister(mine[slot]);
+                        mine[slot] = null;
+                    }
+                    if (id == 0 && i == 2500) {
+                        registry.sendPage(watcher, "", Integer.MAX_VALUE);
+                    }
+                }
+            }));
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        List<ChatFrame> frames = new ArrayList<>(watcher.received);
+        ChatFrame page = frames.get(0);
+        assertEquals(ChatFrame.Type.USERS_PAGE, page.getType());
+        Set<String> listed = new TreeSet<>();
+        if (!page.getBodyText().isEmpty()) {
+            listed.addAll(Arrays.asList(page.getBodyText().split(",")));
+        }
+        long version = page.getId();
+        for (ChatFrame change : frames.subList(1, frames.size())) {
+            assertEquals(++version, change.getId());
+            if (change.getType() == ChatFrame.Type.USER_ONLINE) {
+                assertTrue(listed.add(change.getSender()), "online twice: " + change.getSender());
+            } else {
+                assertEquals(ChatFrame.Type.USER_OFFLINE, change.getType());
+                assertTrue(listed.remove(change.getSender()), "offline while not listed: " + change.getSender());
+            }
+        }
+        assertEquals(registry.version(), version);
+
+        Set<String> online = new TreeSet<>();
+        for (Client client : registry.snapshot()) {
+            online.add(client.getUsername());
+        }
+        online.remove(watcher.getUsername());
+        assertEquals(online, listed);
+    }
+}